@@ -0,0 +1,212 @@
+package com.telefonica.myapplication2;
+
+import android.util.Log;
+
+import net.majorkernelpanic.streaming.audio.AudioStream;
+import net.majorkernelpanic.streaming.video.VideoQuality;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * Keeps the total egress of the RTSP server within a budget. Every client of a session costs
+ * the bitrate of its tracks, except for multicast groups that cost it once. New clients are
+ * only admitted if the budget can hold them, and the video streams are degraded in steps to
+ * make room: lower bitrate, then lower frame rate. A client whose video can't fit is only
+ * sent the audio, and a client whose audio can't fit either is refused.
+ * Shared encoders are degraded for all their clients at once.
+ */
+class BandwidthGovernor {
+
+	public final static String TAG = "BandwidthGovernor";
+
+	/** The budget is shared equally between the clients, the streams of the clients already there are degraded to make room. */
+	public final static int POLICY_FAIR_SHARE = 0;
+
+	/** The clients already there keep their bandwidth, new clients get what is left. */
+	public final static int POLICY_FIRST_COME = 1;
+
+	/** Steps of the degradation of the video streams. */
+	public final static int LEVEL_FULL = 0;
+	public final static int LEVEL_LOW_BITRATE = 1;
+	public final static int LEVEL_LOW_FRAMERATE = 2;
+
+	/** Below this fraction of the bitrate of its quality, the frame rate of a stream is halved as well. */
+	private final static float FRAMERATE_THRESHOLD = 0.5f;
+
+	private long mBudget = 0;
+	private int mPolicy = POLICY_FAIR_SHARE;
+	private int mLevel = LEVEL_FULL;
+	// Sessions that have clients, oldest first
+	private LinkedHashSet<Session> mSessions = new LinkedHashSet<Session>();
+
+	/** What a session costs and what it is given. */
+	private static class Demand {
+		final Session session;
+		int audio, audioClients, video, videoClients;
+		// Video bitrate allocated to each client
+		int rate;
+
+		Demand(Session session) {
+			this.session = session;
+		}
+	}
+
+	/**
+	 * Sets the total egress budget. Call {@link #update(Collection)} for it to take effect.
+	 * @param budget The budget in bit/s, 0 for no limit
+	 */
+	public synchronized void setBudget(long budget) {
+		mBudget = budget;
+	}
+
+	public synchronized long getBudget() {
+		return mBudget;
+	}
+
+	/**
+	 * Sets how the budget is split between the clients.
+	 * @param policy {@link #POLICY_FAIR_SHARE} or {@link #POLICY_FIRST_COME}
+	 */
+	public synchronized void setPolicy(int policy) {
+		mPolicy = policy;
+	}
+
+	/** Returns the highest degradation step applied by the last {@link #update(Collection)}. */
+	public synchronized int getLevel() {
+		return mLevel;
+	}
+
+	/**
+	 * Tells whether a track can be sent to one more client.
+	 * @param sessions All the sessions of the server
+	 * @param session The session of the client
+	 * @param id The id of the track (0 for audio, 1 for video)
+	 */
+	public synchronized boolean admit(Collection<Session> sessions, Session session, int id) {
+		if (mBudget <= 0) return true;
+		List<Demand> demands = getDemands(sessions, session, id);
+		if (!allocate(demands)) return false;
+		for (Demand demand : demands) {
+			if (demand.videoClients > 0 && demand.rate < Math.min(H264VideoStream.MIN_BITRATE, demand.video)) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Splits the budget between the clients of the sessions and limits the video encoders accordingly.
+	 * Must be called whenever a client comes or leaves.
+	 * @param sessions All the sessions of the server
+	 * @return True if the highest degradation step has changed, see {@link #getLevel()}
+	 */
+	public synchronized boolean update(Collection<Session> sessions) {
+		List<Demand> demands = getDemands(sessions, null, -1);
+		mSessions = new LinkedHashSet<Session>();
+		for (Demand demand : demands) {
+			if (demand.audioClients+demand.videoClients > 0) mSessions.add(demand.session);
+		}
+		if (mBudget <= 0 || !allocate(demands)) {
+			// No limit, or the budget can't even hold the audio: the video is not degraded further
+			for (Demand demand : demands) {
+				demand.rate = mBudget <= 0 ? demand.video : Math.min(H264VideoStream.MIN_BITRATE, demand.video);
+			}
+		}
+		int level = LEVEL_FULL;
+		for (Demand demand : demands) {
+			if (demand.videoClients > 0) level = Math.max(level, apply(demand));
+		}
+		if (level == mLevel) return false;
+		Log.i(TAG,"Degradation step "+mLevel+" -> "+level);
+		mLevel = level;
+		return true;
+	}
+
+	/**
+	 * Returns what each session costs, the oldest sessions first.
+	 * The client of the track of the session given, if any, is added.
+	 */
+	private List<Demand> getDemands(Collection<Session> sessions, Session session, int id) {
+		List<Session> ordered = new ArrayList<Session>(sessions.size());
+		for (Session s : mSessions) {
+			if (sessions.contains(s)) ordered.add(s);
+		}
+		for (Session s : sessions) {
+			if (!mSessions.contains(s)) ordered.add(s);
+		}
+		List<Demand> demands = new ArrayList<Demand>(ordered.size());
+		for (Session s : ordered) {
+			Demand demand = new Demand(s);
+			AudioStream audio = s.getAudioTrack();
+			MyH264Stream video = s.getVideoTrack();
+			if (audio != null) {
+				demand.audio = audio.getAudioQuality().bitRate;
+				demand.audioClients = s.getDestinationCount(0);
+			}
+			if (video != null) {
+				demand.video = video.getVideoQuality().bitrate;
+				demand.videoClients = s.getDestinationCount(1);
+			}
+			if (s == session) {
+				if (id == 0) demand.audioClients++;
+				else demand.videoClients++;
+			}
+			demands.add(demand);
+		}
+		return demands;
+	}
+
+	/**
+	 * Allocates the budget left by the audio streams to the video streams.
+	 * @return False if the audio streams alone exceed the budget
+	 */
+	private boolean allocate(List<Demand> demands) {
+		long remaining = mBudget;
+		int clients = 0;
+		for (Demand demand : demands) {
+			remaining -= (long) demand.audio*demand.audioClients;
+			clients += demand.videoClients;
+		}
+		if (remaining < 0) return false;
+		if (mPolicy == POLICY_FIRST_COME) {
+			for (Demand demand : demands) {
+				if (demand.videoClients == 0) continue;
+				demand.rate = (int) Math.min(demand.video, remaining/demand.videoClients);
+				remaining -= (long) demand.rate*demand.videoClients;
+			}
+		} else {
+			// The streams that need less than an equal share leave what they don't use to the others
+			List<Demand> sorted = new ArrayList<Demand>(demands);
+			Collections.sort(sorted, new Comparator<Demand>() {
+				@Override
+				public int compare(Demand lhs, Demand rhs) {
+					return lhs.video < rhs.video ? -1 : (lhs.video == rhs.video ? 0 : 1);
+				}
+			});
+			for (Demand demand : sorted) {
+				if (demand.videoClients == 0) continue;
+				demand.rate = (int) Math.min(demand.video, remaining/clients);
+				remaining -= (long) demand.rate*demand.videoClients;
+				clients -= demand.videoClients;
+			}
+		}
+		return true;
+	}
+
+	/** Limits the video encoder of a session to its allocation and returns the resulting step. */
+	private int apply(Demand demand) {
+		MyH264Stream stream = demand.session.getVideoTrack();
+		VideoQuality quality = stream.getVideoQuality();
+		int level;
+		if (demand.rate >= demand.video) level = LEVEL_FULL;
+		else if (demand.rate >= demand.video*FRAMERATE_THRESHOLD) level = LEVEL_LOW_BITRATE;
+		else level = LEVEL_LOW_FRAMERATE;
+		stream.setBitrateLimit(H264VideoStream.LIMIT_SERVER, level == LEVEL_FULL ? 0 : demand.rate);
+		stream.setMaxFrameRate(H264VideoStream.LIMIT_SERVER, level == LEVEL_LOW_FRAMERATE ? quality.framerate/2 : 0);
+		return level;
+	}
+
+}
@@ -0,0 +1,120 @@
+package com.telefonica.myapplication2;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import net.majorkernelpanic.streaming.rtp.RtpSocket;
+import net.majorkernelpanic.streaming.video.VideoQuality;
+
+/**
+ * Keeps the queueing latency of a video stream bounded when the uplink can't keep up, without
+ * any feedback from the receivers. It samples the FIFO of the {@link RtpSocket} of the stream and
+ * steps the bitrate of the encoder down a ladder derived from the {@link VideoQuality} when packets
+ * pile up, and back up once the FIFO has been drained for a while. The lowest rungs of the ladder
+ * also halve the frame rate if {@link #setFrameRateAdaptation(boolean)} is enabled.
+ */
+class BitrateController implements Runnable {
+
+	public final static String TAG = "BitrateController";
+
+	/** Interval between two samples in ms. */
+	public final static long SAMPLE_INTERVAL = 500;
+
+	/** The link is considered congested above those values. */
+	public final static long LAG_HIGH = 200;
+	public final static float QUEUE_HIGH = 0.3f;
+
+	/** The link is considered clear below those values. */
+	public final static long LAG_LOW = 40;
+	public final static float QUEUE_LOW = 0.05f;
+
+	/** How long in ms the link must stay clear before the bitrate is stepped up. */
+	public final static long STEP_UP_DELAY = 5000;
+
+	/** Bitrate and frame rate of each rung, relatively to the {@link VideoQuality}. */
+	private final static float[] BITRATES = new float[] {1f, 0.75f, 0.5f, 0.35f, 0.25f};
+	private final static float[] FRAMERATES = new float[] {1f, 1f, 1f, 0.5f, 0.5f};
+
+	private final MyH264Stream mStream;
+	private final Handler mHandler;
+	private boolean mFrameRateAdaptation = false;
+	private boolean mRunning = false;
+	private int mRung = 0, mCongested = 0;
+	private long mClearSince = 0;
+
+	public BitrateController(MyH264Stream stream, Handler handler) {
+		mStream = stream;
+		mHandler = handler;
+	}
+
+	/** Allows the controller to lower the frame rate on the lowest rungs of the ladder. */
+	public void setFrameRateAdaptation(boolean enabled) {
+		mFrameRateAdaptation = enabled;
+	}
+
+	public void start() {
+		mHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				if (mRunning) return;
+				mRunning = true;
+				mRung = mCongested = 0;
+				mClearSince = SystemClock.elapsedRealtime();
+				mHandler.postDelayed(BitrateController.this, SAMPLE_INTERVAL);
+			}
+		});
+	}
+
+	public void stop() {
+		mHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				mRunning = false;
+				mHandler.removeCallbacks(BitrateController.this);
+				mStream.setMaxFrameRate(H264VideoStream.LIMIT_SENDER, 0);
+			}
+		});
+	}
+
+	@Override
+	public void run() {
+		if (!mRunning || !mStream.isStreaming()) {
+			mRunning = false;
+			return;
+		}
+		RtpSocket socket = mStream.getPacketizer().getRtpSocket();
+		float queue = (float) socket.getQueueLength()/socket.getQueueCapacity();
+		long lag = socket.getSendLag();
+		long now = SystemClock.elapsedRealtime();
+
+		if (lag > LAG_HIGH || queue > QUEUE_HIGH) {
+			// Two samples in a row so that a single big key frame does not trigger a step down
+			if (++mCongested >= 2 && mRung < BITRATES.length-1) {
+				setRung(mRung+1, lag, queue);
+				mCongested = 0;
+			}
+			mClearSince = now;
+		} else {
+			mCongested = 0;
+			if (lag > LAG_LOW || queue > QUEUE_LOW) {
+				mClearSince = now;
+			} else if (now-mClearSince >= STEP_UP_DELAY && mRung > 0) {
+				setRung(mRung-1, lag, queue);
+				mClearSince = now;
+			}
+		}
+		mHandler.postDelayed(this, SAMPLE_INTERVAL);
+	}
+
+	private void setRung(int rung, long lag, float queue) {
+		VideoQuality quality = mStream.getVideoQuality();
+		mRung = rung;
+		int bitrate = (int) (quality.bitrate*BITRATES[rung]);
+		int framerate = mFrameRateAdaptation ? (int) (quality.framerate*FRAMERATES[rung]) : 0;
+		Log.d(TAG,"Rung "+rung+" lag: "+lag+" ms queue: "+(int)(queue*100)+"% bitrate: "+bitrate/1000+" kbps");
+		mStream.setBitrateLimit(H264VideoStream.LIMIT_SENDER, rung == 0 ? 0 : bitrate);
+		mStream.setMaxFrameRate(H264VideoStream.LIMIT_SENDER, framerate == quality.framerate ? 0 : framerate);
+	}
+
+}
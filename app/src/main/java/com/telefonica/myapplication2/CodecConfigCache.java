@@ -0,0 +1,73 @@
+package com.telefonica.myapplication2;
+
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.Editor;
+import android.os.Build;
+import android.util.Log;
+
+import net.majorkernelpanic.streaming.mp4.MP4Config;
+import net.majorkernelpanic.streaming.video.VideoQuality;
+
+import java.util.Map;
+
+/**
+ * Remembers the SPS, PPS and profile-level of an encoder in the SharedPreferences so that
+ * {@link MyH264Stream#configure()} does not have to run a test encoder for seconds before every
+ * DESCRIBE. Entries are keyed by device build, encoder name and {@link VideoQuality}, and the key
+ * carries {@link #VERSION} so that entries written by older versions are simply never read again.
+ * An entry is replaced as soon as the encoder is seen emitting other parameter sets.
+ */
+class CodecConfigCache {
+
+	public final static String TAG = "CodecConfigCache";
+
+	/** Must be incremented whenever the format of the entries or the way they are obtained changes. */
+	public final static int VERSION = 2;
+
+	private final static String PREFIX = "codec-config-";
+
+	// Entries of older versions are removed once per process
+	private static boolean sPurged = false;
+
+	private final SharedPreferences mSettings;
+
+	CodecConfigCache(SharedPreferences settings) {
+		mSettings = settings;
+	}
+
+	/** Returns the key of the entry of an encoder for a given quality. */
+	static String keyOf(String encoder, VideoQuality quality) {
+		// The fingerprint changes with system updates, that may come with new encoder firmwares
+		return PREFIX+VERSION+"-"+Integer.toHexString(Build.FINGERPRINT.hashCode())+"-"+encoder+"-"+
+				quality.resX+"x"+quality.resY+"-"+quality.framerate+"-"+quality.bitrate;
+	}
+
+	/** Returns the cached config, or null if there is none. */
+	MP4Config get(String key) {
+		String value = mSettings.getString(key, null);
+		if (value == null) return null;
+		String[] s = value.split(",");
+		if (s.length != 3) return null;
+		return new MP4Config(s[0], s[1], s[2]);
+	}
+
+	/** Stores a config, and removes the entries of older versions the first time. */
+	void put(String key, MP4Config config) {
+		Editor editor = mSettings.edit();
+		synchronized (CodecConfigCache.class) {
+			if (!sPurged) {
+				String current = PREFIX+VERSION+"-";
+				for (Map.Entry<String,?> entry : mSettings.getAll().entrySet()) {
+					if (entry.getKey().startsWith(PREFIX) && !entry.getKey().startsWith(current)) {
+						editor.remove(entry.getKey());
+					}
+				}
+				sPurged = true;
+			}
+		}
+		editor.putString(key, config.getProfileLevel()+","+config.getB64SPS()+","+config.getB64PPS());
+		editor.apply();
+		Log.d(TAG,"Stored "+key);
+	}
+
+}
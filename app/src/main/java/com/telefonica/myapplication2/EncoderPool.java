@@ -0,0 +1,269 @@
+package com.telefonica.myapplication2;
+
+import android.annotation.SuppressLint;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.Surface;
+
+import net.majorkernelpanic.streaming.MediaStream;
+import net.majorkernelpanic.streaming.video.VideoQuality;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Keeps a few configured and started H.264 encoders around so that a new stream does not
+ * have to pay for MediaCodec.createByCodecName(), configure(), createInputSurface() and start().
+ * Encoders are keyed by codec name and {@link VideoQuality}. A stream hands its encoder back
+ * with {@link #release(Encoder)}, the encoder is then flushed instead of being released, and
+ * it is only freed after {@link #IDLE_TIMEOUT} ms without being reused.
+ * Call {@link #getInstance()} to get access to the pool.
+ */
+@SuppressLint("NewApi")
+public class EncoderPool {
+
+	public final static String TAG = "EncoderPool";
+
+	/** Idle encoders are released after this delay in ms. */
+	public final static long IDLE_TIMEOUT = 30000;
+
+	/** Maximum number of idle encoders kept for a given configuration. */
+	public final static int MAX_IDLE = 1;
+
+	/** An encoder of the pool, together with its input surface. */
+	public static class Encoder {
+
+		public final MediaCodec codec;
+		public final Surface surface;
+
+		private final String mKey;
+		private long mReleaseTime = 0;
+
+		private Encoder(String key, MediaCodec codec, Surface surface) {
+			this.mKey = key;
+			this.codec = codec;
+			this.surface = surface;
+		}
+
+	}
+
+	private final HashMap<String,LinkedList<Encoder>> mIdle = new HashMap<String,LinkedList<Encoder>>();
+	private final HashSet<String> mWarming = new HashSet<String>();
+	private final Handler mHandler;
+
+	// Removes the default public constructor
+	private EncoderPool() {
+		HandlerThread thread = new HandlerThread("com.telefonica.myapplication2.EncoderPool");
+		thread.start();
+		mHandler = new Handler(thread.getLooper());
+	}
+
+	// The EncoderPool implements the singleton pattern
+	private static volatile EncoderPool sInstance = null;
+
+	/**
+	 * Returns a reference to the {@link EncoderPool}.
+	 * @return The reference to the {@link EncoderPool}
+	 */
+	public final static EncoderPool getInstance() {
+		if (sInstance == null) {
+			synchronized (EncoderPool.class) {
+				if (sInstance == null) {
+					EncoderPool.sInstance = new EncoderPool();
+				}
+			}
+		}
+		return sInstance;
+	}
+
+	/**
+	 * Returns a started encoder for the given configuration.
+	 * An idle encoder is reused if there is one, otherwise a new one is created.
+	 * If an encoder with the same configuration is being warmed up, we wait for it.
+	 * @param name The name of the codec
+	 * @param quality The quality of the stream
+	 * @throws InterruptedIOException If the thread is interrupted while waiting, its interrupt status is kept
+	 */
+	public Encoder acquire(String name, VideoQuality quality) throws IOException {
+		String key = keyOf(name, quality);
+		synchronized (mIdle) {
+			while (mWarming.contains(key)) {
+				try {
+					mIdle.wait();
+				} catch (InterruptedException e) {
+					// The stream is being stopped, the caller must not go on with a half warmed up encoder
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while waiting for encoder "+key);
+				}
+			}
+			LinkedList<Encoder> idle = mIdle.get(key);
+			if (idle != null && !idle.isEmpty()) {
+				Encoder encoder = idle.removeFirst();
+				Log.d(TAG,"Reusing encoder "+key);
+				// A flushed encoder resumes in the middle of a GOP
+				MediaStream.requestSyncFrame(encoder.codec);
+				return encoder;
+			}
+		}
+		Log.d(TAG,"No idle encoder for "+key+", creating one");
+		return create(key, name, quality);
+	}
+
+	/**
+	 * Gives an encoder back to the pool. The encoder is flushed and kept
+	 * around for {@link #IDLE_TIMEOUT} ms, or released if the pool is full.
+	 * @param encoder The encoder returned by {@link #acquire(String, VideoQuality)}
+	 */
+	public void release(Encoder encoder) {
+		try {
+			encoder.codec.flush();
+		} catch (RuntimeException e) {
+			Log.e(TAG,"Flush failed, releasing encoder "+encoder.mKey);
+			destroy(encoder);
+			return;
+		}
+		synchronized (mIdle) {
+			LinkedList<Encoder> idle = mIdle.get(encoder.mKey);
+			if (idle == null) {
+				idle = new LinkedList<Encoder>();
+				mIdle.put(encoder.mKey, idle);
+			}
+			if (idle.size() >= MAX_IDLE) {
+				destroy(encoder);
+				return;
+			}
+			encoder.mReleaseTime = SystemClock.elapsedRealtime();
+			idle.add(encoder);
+		}
+		mHandler.removeCallbacks(mEvictIdle);
+		mHandler.postDelayed(mEvictIdle, IDLE_TIMEOUT);
+	}
+
+	/**
+	 * Creates an encoder for the given configuration in the background,
+	 * unless there is already an idle one.
+	 * @param name The name of the codec
+	 * @param quality The quality of the stream
+	 */
+	public void prewarm(final String name, VideoQuality quality) {
+		final VideoQuality q = quality.clone();
+		final String key = keyOf(name, q);
+		synchronized (mIdle) {
+			LinkedList<Encoder> idle = mIdle.get(key);
+			if (mWarming.contains(key) || (idle != null && !idle.isEmpty())) return;
+			mWarming.add(key);
+		}
+		mHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				Encoder encoder = null;
+				try {
+					encoder = create(key, name, q);
+				} catch (Exception e) {
+					Log.e(TAG,"Could not warm up encoder "+key+": "+e.getMessage());
+				}
+				synchronized (mIdle) {
+					mWarming.remove(key);
+					mIdle.notifyAll();
+				}
+				if (encoder != null) release(encoder);
+			}
+		});
+	}
+
+	/** Releases all idle encoders. */
+	public void clear() {
+		synchronized (mIdle) {
+			for (LinkedList<Encoder> idle : mIdle.values()) {
+				for (Encoder encoder : idle) {
+					destroy(encoder);
+				}
+			}
+			mIdle.clear();
+		}
+	}
+
+	private Runnable mEvictIdle = new Runnable() {
+		@Override
+		public void run() {
+			long now = SystemClock.elapsedRealtime(), next = Long.MAX_VALUE;
+			synchronized (mIdle) {
+				for (LinkedList<Encoder> idle : mIdle.values()) {
+					for (Iterator<Encoder> it = idle.iterator(); it.hasNext();) {
+						Encoder encoder = it.next();
+						if (now-encoder.mReleaseTime >= IDLE_TIMEOUT) {
+							Log.d(TAG,"Releasing idle encoder "+encoder.mKey);
+							it.remove();
+							destroy(encoder);
+						} else {
+							next = Math.min(next, encoder.mReleaseTime+IDLE_TIMEOUT-now);
+						}
+					}
+				}
+			}
+			if (next != Long.MAX_VALUE) mHandler.postDelayed(mEvictIdle, next);
+		}
+	};
+
+	private Encoder create(String key, String name, VideoQuality quality) throws IOException {
+		boolean layered = Build.VERSION.SDK_INT >= Build.VERSION_CODES.O;
+		long now = SystemClock.elapsedRealtime();
+		MediaCodec codec = MediaCodec.createByCodecName(name);
+		try {
+			codec.configure(createFormat(quality, layered), null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+		} catch (RuntimeException e) {
+			if (!layered) throw e;
+			// Some encoders refuse the temporal layers instead of ignoring them
+			Log.w(TAG,"Temporal layers not supported by "+name);
+			codec.release();
+			codec = MediaCodec.createByCodecName(name);
+			codec.configure(createFormat(quality, false), null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+		}
+		Surface surface = codec.createInputSurface();
+		codec.start();
+		Log.d(TAG,"Encoder "+key+" started in "+(SystemClock.elapsedRealtime()-now)+" ms");
+		return new Encoder(key, codec, surface);
+	}
+
+	/**
+	 * @param layered Whether to ask for {@link H264VideoStream#TEMPORAL_LAYERS} temporal layers, the frames
+	 * of the top layer are then not referenced and can be dropped for the clients with a poor link
+	 */
+	private static MediaFormat createFormat(VideoQuality quality, boolean layered) {
+		MediaFormat format = MediaFormat.createVideoFormat(H264VideoStream.MIME_TYPE, quality.resX, quality.resY);
+		format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+		format.setInteger(MediaFormat.KEY_BIT_RATE, quality.bitrate);
+		format.setInteger(MediaFormat.KEY_FRAME_RATE, quality.framerate);
+		format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, H264VideoStream.IFRAME_INTERVAL);
+		format.setInteger("bitrate-mode", H264VideoStream.VIDEO_ControlRateConstant);
+		if (layered) format.setString("ts-schema", "android.generic."+H264VideoStream.TEMPORAL_LAYERS);
+		return format;
+	}
+
+	private void destroy(Encoder encoder) {
+		try {
+			encoder.codec.stop();
+		} catch (Exception ignore) {}
+		try {
+			encoder.codec.release();
+			encoder.surface.release();
+		} catch (Exception e) {
+			Log.e(TAG,e.getMessage()!=null?e.getMessage():"unknown error");
+		}
+	}
+
+	private static String keyOf(String name, VideoQuality quality) {
+		return name+"-"+quality.resX+"x"+quality.resY+"-"+quality.framerate+"-"+quality.bitrate;
+	}
+
+}
@@ -0,0 +1,280 @@
+package com.telefonica.myapplication2;
+
+import android.util.Log;
+
+import net.majorkernelpanic.streaming.mp4.MP4Parser;
+import net.majorkernelpanic.streaming.mp4.MP4Track;
+import net.majorkernelpanic.streaming.mp4.MP4TrackInputStream;
+import net.majorkernelpanic.streaming.mp4.StsdBox;
+import net.majorkernelpanic.streaming.rtp.AACLATMPacketizer;
+import net.majorkernelpanic.streaming.rtp.AbstractPacketizer;
+import net.majorkernelpanic.streaming.rtp.H264Packetizer;
+import net.majorkernelpanic.streaming.rtp.RtpSocket;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * Streams an mp4 file recorded on the device to one client, see {@link RtspServer#setMediaDirectory(File)}.
+ * The H.264 video and the AAC audio of the file are read with {@link MP4TrackInputStream}s and sent
+ * by the packetizers the camera streams use. Each client gets its own player, so that it can pause
+ * and seek on its own. Playback starts at a sync sample of the video, the audio at the same time.
+ */
+class FilePlayer {
+
+	public final static String TAG = "FilePlayer";
+
+	private final String mPath;
+	private final MP4Parser mParser;
+	// The audio is track 0 and the video track 1, like in a Session
+	private final MP4Track[] mTracks = new MP4Track[2];
+	private final AbstractPacketizer[] mPacketizers = new AbstractPacketizer[2];
+	private final boolean[] mSetUp = new boolean[2];
+	private final String mSessionDescription;
+	// Size of the length that precedes the NAL units in the samples of the video
+	private int mLengthSize = 4;
+
+	// Position in the file in us, and when playback reached it, see System.nanoTime()
+	private long mPosition = 0, mClock = 0;
+	private boolean mPlaying = false;
+
+	/**
+	 * @param path The path of the stream, see {@link Relay#getPath(String)}
+	 * @param file The mp4 file
+	 * @throws IOException If the file has neither H.264 video nor AAC audio
+	 */
+	FilePlayer(String path, File file) throws IOException {
+		mPath = path;
+		mParser = MP4Parser.parse(file.getPath());
+		try {
+			StringBuilder sdp = new StringBuilder();
+			sdp.append("v=0\r\n");
+			sdp.append("o=- "+file.lastModified()+" "+file.lastModified()+" IN IP4 0.0.0.0\r\n");
+			sdp.append("s="+file.getName()+"\r\n");
+			sdp.append("c=IN IP4 0.0.0.0\r\n");
+			sdp.append("t=0 0\r\n");
+			sdp.append("a=recvonly\r\n");
+			sdp.append("a=range:npt=0-"+formatTime(getDuration())+"\r\n");
+
+			MP4Track audio = mParser.getTrack(MP4Track.AUDIO);
+			byte[] config = audio != null && audio.getSampleEntryType().equals("mp4a") ? findAudioConfig(audio.getSampleDescription()) : null;
+			if (config != null) {
+				AACLATMPacketizer packetizer = new AACLATMPacketizer();
+				int samplingRate = (int) audio.getTimescale();
+				packetizer.setSamplingRate(samplingRate);
+				mTracks[0] = audio;
+				mPacketizers[0] = packetizer;
+				sdp.append("m=audio 0 RTP/AVP 96\r\n");
+				sdp.append("a=rtpmap:96 mpeg4-generic/"+samplingRate+"\r\n");
+				sdp.append("a=fmtp:96 streamtype=5; profile-level-id=15; mode=AAC-hbr; config="+MP4Parser.toHexString(config, 0, config.length)+"; SizeLength=13; IndexLength=3; IndexDeltaLength=3;\r\n");
+				sdp.append("a=control:trackID=0\r\n");
+			}
+
+			MP4Track video = mParser.getTrack(MP4Track.VIDEO);
+			// There is no packetizer for H.265, avc1 and avc3 are H.264
+			StsdBox avc = video != null && video.getSampleEntryType().startsWith("avc") ? new StsdBox(video.getSampleDescription()) : null;
+			if (avc != null && !avc.getSPS().isEmpty() && !avc.getPPS().isEmpty()) {
+				H264Packetizer packetizer = new H264Packetizer();
+				packetizer.setStreamParameters(avc.getPPS(), avc.getSPS());
+				mLengthSize = avc.getLengthSize();
+				mTracks[1] = video;
+				mPacketizers[1] = packetizer;
+				sdp.append("m=video 0 RTP/AVP 96\r\n");
+				sdp.append("a=rtpmap:96 H264/90000\r\n");
+				sdp.append("a=fmtp:96 packetization-mode=1;profile-level-id="+avc.getProfileLevel()+";sprop-parameter-sets="+avc.getSpropParameterSets()+";\r\n");
+				sdp.append("a=control:trackID=1\r\n");
+			}
+
+			if (mTracks[0] == null && mTracks[1] == null) throw new IOException("Nothing to stream in "+file.getName());
+			mSessionDescription = sdp.toString();
+		} catch (IOException e) {
+			release();
+			throw e;
+		} catch (RuntimeException e) {
+			release();
+			throw new IOException("Malformed mp4 file: "+file.getName());
+		}
+
+		for (AbstractPacketizer packetizer : mPacketizers) {
+			// The file starts with a key frame, nothing may be dropped
+			if (packetizer != null) packetizer.getRtpSocket().setSkippedPackets(0);
+		}
+	}
+
+	String getPath() {
+		return mPath;
+	}
+
+	String getSessionDescription() {
+		return mSessionDescription;
+	}
+
+	/** Returns whether the file has a track, 0 for the audio and 1 for the video. */
+	boolean hasTrack(int id) {
+		return mTracks[id] != null;
+	}
+
+	int getSSRC(int id) {
+		return mPacketizers[id].getSSRC();
+	}
+
+	/** Returns the duration of the file in us. */
+	long getDuration() {
+		long duration = 0;
+		for (MP4Track track : mParser.getTracks()) {
+			duration = Math.max(duration, track.getDurationUs());
+		}
+		return duration;
+	}
+
+	/**
+	 * Sends a track to the client over UDP.
+	 * @return The local RTP and RTCP ports of the track
+	 */
+	synchronized int[] setup(int id, InetAddress address, int rtpPort, int rtcpPort) {
+		RtpSocket socket = mPacketizers[id].getRtpSocket();
+		socket.addDestination(address, rtpPort, rtcpPort);
+		mSetUp[id] = true;
+		return socket.getLocalPorts();
+	}
+
+	/** Sends a track to the client in its RTSP connection. */
+	synchronized void setup(int id, RtpSocket.InterleavedWriter writer, int channel) {
+		mPacketizers[id].getRtpSocket().addDestination(writer, channel);
+		mSetUp[id] = true;
+	}
+
+	/**
+	 * Starts sending the tracks set up from a position in the file, or from where they were paused.
+	 * @param position The position in us, or -1 to resume
+	 * @return The position playback actually starts from, that of the last sync sample of the video before it
+	 */
+	synchronized long play(long position) {
+		stop();
+		if (position < 0) position = mPosition;
+		position = Math.max(0, Math.min(position, getDuration()));
+		MP4Track video = mTracks[1];
+		if (video != null) {
+			int sample = video.getSyncSample(video.getSampleAt(video.fromUs(position)));
+			position = video.toUs(video.getSampleTime(sample));
+		}
+		mPosition = position;
+		mClock = System.nanoTime()/1000;
+		for (int id=0; id<2; id++) {
+			if (mTracks[id] == null || !mSetUp[id]) continue;
+			mPacketizers[id].setInputStream(new MP4TrackInputStream(mParser.getChannel(), mTracks[id], id == 1 ? mLengthSize : 0, position, mClock));
+			mPacketizers[id].start();
+		}
+		mPlaying = true;
+		Log.d(TAG,"Playing "+mPath+" from "+formatTime(position));
+		return position;
+	}
+
+	/** Stops sending the tracks, {@link #play(long)} with -1 resumes where they stopped. */
+	synchronized void pause() {
+		if (!mPlaying) return;
+		stop();
+		mPosition = Math.min(mPosition+System.nanoTime()/1000-mClock, getDuration());
+	}
+
+	/** Returns the position of the playback in us. */
+	synchronized long getPosition() {
+		return mPlaying ? Math.min(mPosition+System.nanoTime()/1000-mClock, getDuration()) : mPosition;
+	}
+
+	synchronized void release() {
+		stop();
+		for (AbstractPacketizer packetizer : mPacketizers) {
+			if (packetizer != null) packetizer.getRtpSocket().close();
+		}
+		mParser.close();
+	}
+
+	private void stop() {
+		for (AbstractPacketizer packetizer : mPacketizers) {
+			if (packetizer != null) packetizer.stop();
+		}
+		mPlaying = false;
+	}
+
+	/** Formats a time in us as npt, see RFC 2326, section 3.6. */
+	static String formatTime(long us) {
+		return String.format(Locale.US, "%.3f", us/1000000.0);
+	}
+
+	/**
+	 * Parses a Range header like npt=12.5- and returns its start in us, or -1 if it has none.
+	 * Only npt ranges are supported.
+	 */
+	static long parseRange(String range) {
+		if (range == null) return -1;
+		range = range.trim();
+		if (!range.startsWith("npt=")) return -1;
+		int end = range.indexOf('-', 4);
+		String start = (end < 0 ? range.substring(4) : range.substring(4, end)).trim();
+		if (start.length() == 0 || start.equals("now")) return -1;
+		try {
+			return (long) (Double.parseDouble(start)*1000000);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Returns the AudioSpecificConfig found in the esds box of the mp4a sample entry, or null.
+	 * See ISO/IEC 14496-14, section 5.6, and ISO/IEC 14496-1, section 7.2.6.
+	 */
+	private static byte[] findAudioConfig(ByteBuffer stsd) {
+		// The first sample entry, the boxes in it follow the fields of the audio sample entry,
+		// which are longer in the sound descriptions of version 1 and 2 of QuickTime
+		int entry = 8;
+		if (stsd.limit() < entry+36) return null;
+		int version = stsd.getShort(entry+16);
+		int pos = entry+36+(version == 1 ? 16 : version == 2 ? 36 : 0);
+		int end = Math.min(stsd.limit(), entry+stsd.getInt(entry));
+		while (pos+8 <= end) {
+			int size = stsd.getInt(pos);
+			if (size < 8 || pos+size > end) return null;
+			// The esds box is a full box, its descriptors follow its version and flags
+			if (stsd.getInt(pos+4) == 0x65736473) return findDecoderSpecificInfo(stsd, pos+12, pos+size);
+			pos += size;
+		}
+		return null;
+	}
+
+	/** Walks the descriptors of an esds box down to the DecoderSpecificInfo. */
+	private static byte[] findDecoderSpecificInfo(ByteBuffer esds, int pos, int end) {
+		while (pos+2 <= end) {
+			int tag = esds.get(pos++)&0xFF;
+			int length = 0;
+			for (int i=0; i<4 && pos < end; i++) {
+				int b = esds.get(pos++)&0xFF;
+				length = length<<7 | b&0x7F;
+				if ((b&0x80) == 0) break;
+			}
+			if (tag == 0x03) {
+				// ES_Descriptor: ES_ID, flags and the optional fields they announce
+				int flags = esds.get(pos+2)&0xFF;
+				pos += 3;
+				if ((flags&0x80) != 0) pos += 2;
+				if ((flags&0x40) != 0) pos += 1+(esds.get(pos)&0xFF);
+				if ((flags&0x20) != 0) pos += 2;
+			} else if (tag == 0x04) {
+				// DecoderConfigDescriptor: 13 bytes before its own descriptors
+				pos += 13;
+			} else if (tag == 0x05) {
+				if (length == 0 || pos+length > end) return null;
+				byte[] config = new byte[length];
+				for (int i=0; i<length; i++) config[i] = esds.get(pos+i);
+				return config;
+			} else {
+				pos += length;
+			}
+		}
+		return null;
+	}
+
+}
@@ -20,15 +20,17 @@
 
 package com.telefonica.myapplication2;
 
+import android.annotation.SuppressLint;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.Editor;
 import android.hardware.Camera;
 import android.hardware.Camera.CameraInfo;
 import android.hardware.Camera.Parameters;
 import android.media.MediaCodec;
-import android.media.MediaCodecInfo;
-import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Bundle;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.SurfaceHolder;
 import android.view.SurfaceHolder.Callback;
@@ -43,6 +45,7 @@ import net.majorkernelpanic.streaming.rtp.MediaCodecInputStream;
 import net.majorkernelpanic.streaming.video.VideoQuality;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.concurrent.Semaphore;
 
 /** 
@@ -58,6 +61,24 @@ public abstract class H264VideoStream extends MediaStream {
 	protected static final int VIDEO_ControlRateConstant = 2;
 	protected static final String ENCODER_NAME="OMX.Exynos.AVC.Encoder";
 
+	/** Number of temporal layers asked to the encoder, the top one can be dropped for a congested client. */
+	protected static final int TEMPORAL_LAYERS = 2;
+
+	/** Sources of the limits set with {@link #setBitrateLimit(int, int)}. */
+	public static final int LIMIT_RECEIVER = 0;
+	public static final int LIMIT_SENDER = 1;
+	public static final int LIMIT_SERVER = 2;
+	protected static final int LIMIT_COUNT = 3;
+
+	/** The bitrate of the encoder is never lowered below this value in bit/s. */
+	protected static final int MIN_BITRATE = 100000;
+
+	/** Bitrate changes smaller than this fraction of the current bitrate are ignored. */
+	protected static final float BITRATE_HYSTERESIS = 0.1f;
+
+	/** Minimum delay in ms between a change of the bitrate and an increase. */
+	protected static final long BITRATE_RAISE_DELAY = 2000;
+
 	protected VideoQuality mRequestedQuality = VideoQuality.DEFAULT_VIDEO_QUALITY.clone();
 	protected VideoQuality mQuality = mRequestedQuality.clone();
 	protected Callback mSurfaceHolderCallback = null;
@@ -68,6 +89,11 @@ public abstract class H264VideoStream extends MediaStream {
 	protected Camera mCamera;
 	protected Thread mCameraThread;
 	protected Looper mCameraLooper;
+	protected EncoderPool.Encoder mEncoder;
+	protected int[] mBitrateLimits = new int[LIMIT_COUNT];
+	protected int[] mFrameRateLimits = new int[LIMIT_COUNT];
+	protected int mBitrate = 0;
+	protected long mBitrateChanged = 0;
 
 	protected boolean mCameraOpenedManually = true;
 	protected boolean mFlashEnabled = false;
@@ -157,6 +183,8 @@ public abstract class H264VideoStream extends MediaStream {
 	/** 
 	 * Sets the configuration of the stream. You can call this method at any time 
 	 * and changes will take effect next time you call {@link #configure()}.
+	 * The bitrate of the quality is the maximum bitrate of the stream, the encoder
+	 * may be slowed down with {@link #setBitrateLimit(int, int)}.
 	 * @param videoQuality Quality of the stream
 	 */
 	public void setVideoQuality(VideoQuality videoQuality) {
@@ -173,6 +201,67 @@ public abstract class H264VideoStream extends MediaStream {
 		return mRequestedQuality;
 	}
 
+	/**
+	 * Limits the bitrate of the encoder while streaming. The encoder uses the smallest of
+	 * the limits and of the bitrate of the {@link VideoQuality}. Small changes are ignored
+	 * and the bitrate is only raised {@link #BITRATE_RAISE_DELAY} ms after the last change,
+	 * so that the encoder is not reconfigured on every report. Limits are reset when the stream starts.
+	 * @param source Who sets the limit, {@link #LIMIT_RECEIVER} for example
+	 * @param bitrate The limit in bit/s, 0 to remove it
+	 */
+	public synchronized void setBitrateLimit(int source, int bitrate) {
+		mBitrateLimits[source] = bitrate;
+		updateBitrate(false);
+	}
+
+	/**
+	 * Caps the frame rate of the stream by dropping frames before they reach the encoder.
+	 * The smallest of the caps is used, like for {@link #setBitrateLimit(int, int)}.
+	 * @param source Who sets the cap, {@link #LIMIT_SENDER} for example
+	 * @param framerate The maximum frame rate, 0 to remove the cap
+	 */
+	public synchronized void setMaxFrameRate(int source, int framerate) {
+		mFrameRateLimits[source] = framerate;
+		int max = 0;
+		for (int limit : mFrameRateLimits) {
+			if (limit > 0 && (max == 0 || limit < max)) max = limit;
+		}
+		if (mSurfaceView != null) mSurfaceView.setMaxFrameRate(max);
+	}
+
+	/** Returns the bitrate currently requested to the encoder in bit/s. */
+	public int getEncoderBitrate() {
+		return mStreaming ? mBitrate : 0;
+	}
+
+	@SuppressLint("NewApi")
+	private void updateBitrate(boolean force) {
+		if (!mStreaming || mMediaCodec == null) return;
+		int target = mQuality.bitrate;
+		for (int limit : mBitrateLimits) {
+			if (limit > 0) target = Math.min(target, limit);
+		}
+		target = Math.max(target, Math.min(MIN_BITRATE, mQuality.bitrate));
+		long now = SystemClock.elapsedRealtime();
+		if (!force) {
+			if (target == mBitrate) return;
+			if (target > mBitrate && now-mBitrateChanged < BITRATE_RAISE_DELAY) return;
+			if (Math.abs(target-mBitrate) < mBitrate*BITRATE_HYSTERESIS && target != mQuality.bitrate) return;
+		}
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+			Bundle params = new Bundle();
+			params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, target);
+			try {
+				mMediaCodec.setParameters(params);
+				Log.d(TAG,"Bitrate: "+mBitrate/1000+" kbps -> "+target/1000+" kbps");
+				mBitrate = target;
+				mBitrateChanged = now;
+			} catch (IllegalStateException e) {
+				Log.e(TAG,"Could not change the bitrate of the encoder");
+			}
+		}
+	}
+
 	/**
 	 * Some data (SPS and PPS params) needs to be stored when {@link #getSessionDescription()} is called 
 	 * @param prefs The SharedPreferences that will be used to save SPS and PPS parameters
@@ -262,30 +351,41 @@ public abstract class H264VideoStream extends MediaStream {
 		createCamera();
 		updateCamera();
 
-		MediaFormat createVideoFormat = MediaFormat.createVideoFormat(MIME_TYPE, this.mQuality.resX, this.mQuality.resY);
-		createVideoFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
-		createVideoFormat.setInteger(MediaFormat.KEY_BIT_RATE, this.mQuality.bitrate);
-		createVideoFormat.setInteger(MediaFormat.KEY_FRAME_RATE, this.mQuality.framerate);
-		createVideoFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, IFRAME_INTERVAL);
-		createVideoFormat.setInteger("bitrate-mode", VIDEO_ControlRateConstant);
-
-		Log.d("VideoStream", "format: " + createVideoFormat);
-		try {
-			this.mMediaCodec = MediaCodec.createByCodecName(ENCODER_NAME);
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-		this.mMediaCodec.configure(createVideoFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-		this.mSurfaceView.addMediaCodecSurface(this.mMediaCodec.createInputSurface());
-		this.mMediaCodec.start();
+		// The limits of the previous session don't apply to this one
+		Arrays.fill(mBitrateLimits, 0);
+		Arrays.fill(mFrameRateLimits, 0);
+		mSurfaceView.setMaxFrameRate(0);
+		mBitrate = mQuality.bitrate;
+		mBitrateChanged = SystemClock.elapsedRealtime();
+
+		// Takes a started encoder from the pool, it has usually been warmed up by configure()
+		mEncoder = EncoderPool.getInstance().acquire(ENCODER_NAME, mQuality);
+		this.mMediaCodec = mEncoder.codec;
+		this.mSurfaceView.addMediaCodecSurface(mEncoder.surface);
 		this.mPacketizer.setInputStream(new MediaCodecInputStream(this.mMediaCodec));
 		this.mPacketizer.start();
 		this.mStreaming = true;
-
-		mStreaming = true;
 	}
 
 
+	/**
+	 * Gives the encoder back to the {@link EncoderPool} instead of releasing it.
+	 */
+	@Override
+	protected void releaseMediaCodec() {
+		if (mEncoder != null) {
+			// The encoder goes back to the pool with the bitrate it was configured with
+			if (mBitrate != mQuality.bitrate) {
+				Arrays.fill(mBitrateLimits, 0);
+				updateBitrate(true);
+			}
+			EncoderPool.getInstance().release(mEncoder);
+			mEncoder = null;
+		} else {
+			super.releaseMediaCodec();
+		}
+	}
+
 	/**
 	 * Returns a description of the stream using SDP. 
 	 * This method can only be called after {@link Stream#configure()}.
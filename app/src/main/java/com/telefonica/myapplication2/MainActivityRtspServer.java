@@ -39,9 +39,13 @@ public class MainActivityRtspServer extends Activity implements Session.Callback
         edit.putString(RtspServer.KEY_PORT, String.valueOf(1234));
         edit.commit();
 
+        // The parameter sets are looked for now rather than during the first DESCRIBE
+        VideoQuality quality = new VideoQuality(1280, 720, 30, 5000000);
+        MyH264Stream.fillConfigCache(PreferenceManager.getDefaultSharedPreferences(this), quality);
+
         MySessionBuilder.getInstance().setSurfaceView(this.mSurfaceView)
                 .setPreviewOrientation(0)
-                .setVideoQuality(new VideoQuality(1280, 720, 30, 5000000))
+                .setVideoQuality(quality)
                 .setContext(getApplicationContext())
                 .setAudioEncoder(0)
                 .setVideoEncoder(1)
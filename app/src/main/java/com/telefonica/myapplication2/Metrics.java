@@ -0,0 +1,77 @@
+package com.telefonica.myapplication2;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Builds a snapshot in the Prometheus text exposition format (version 0.0.4). The samples of a
+ * metric are grouped under its HELP and TYPE lines whatever the order they are added in.
+ */
+class Metrics {
+
+	public final static String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	public final static String GAUGE = "gauge";
+	public final static String COUNTER = "counter";
+
+	private final LinkedHashMap<String,StringBuilder> mFamilies = new LinkedHashMap<String,StringBuilder>();
+
+	/**
+	 * Adds a sample.
+	 * @param name The name of the metric
+	 * @param type {@link #GAUGE} or {@link #COUNTER}
+	 * @param help The description of the metric, only the first one given is kept
+	 * @param labels Pairs of label names and values, values are escaped
+	 * @param value The value of the sample
+	 */
+	Metrics add(String name, String type, String help, String[] labels, double value) {
+		StringBuilder family = mFamilies.get(name);
+		if (family == null) {
+			family = new StringBuilder();
+			family.append("# HELP ").append(name).append(' ').append(help).append('\n');
+			family.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+			mFamilies.put(name, family);
+		}
+		family.append(name);
+		if (labels != null && labels.length > 0) {
+			family.append('{');
+			for (int i=0; i+1<labels.length; i+=2) {
+				if (i > 0) family.append(',');
+				family.append(labels[i]).append("=\"");
+				escape(family, labels[i+1]);
+				family.append('"');
+			}
+			family.append('}');
+		}
+		family.append(' ');
+		if (value == (long) value) family.append((long) value);
+		else family.append(value);
+		family.append('\n');
+		return this;
+	}
+
+	/** Adds a sample without labels. */
+	Metrics add(String name, String type, String help, double value) {
+		return add(name, type, help, null, value);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder text = new StringBuilder();
+		for (Map.Entry<String,StringBuilder> family : mFamilies.entrySet()) {
+			text.append(family.getValue());
+		}
+		return text.toString();
+	}
+
+	private static void escape(StringBuilder builder, String value) {
+		if (value == null) return;
+		for (int i=0; i<value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '\\' || c == '"') builder.append('\\').append(c);
+			else if (c == '\n') builder.append("\\n");
+			else builder.append(c);
+		}
+	}
+
+}
@@ -21,6 +21,7 @@
 package com.telefonica.myapplication2;
 
 
+import android.content.SharedPreferences;
 import android.graphics.ImageFormat;
 
 import android.hardware.Camera;
@@ -54,11 +55,21 @@ public class MyH264Stream extends H264VideoStream {
 
     public final static String TAG = "H264Stream";
 
+    /** Payload type of the retransmissions (RFC 4588). */
+    public final static int RTX_PAYLOAD_TYPE = 97;
+
+    /** Payload type of the FEC packets (RFC 5109). */
+    public final static int FEC_PAYLOAD_TYPE = 127;
+
     private static final int TEST_U = 160;
     private static final int TEST_V = 200;
     private static final int TEST_Y = 120;
 
-    private MP4Config mConfig;
+    // Only one test encoder runs at a time
+    private static final Object sTestLock = new Object();
+
+    private volatile MP4Config mConfig;
+    private volatile String mConfigKey;
 
     /**
      * Constructs the H.264 stream.
@@ -70,6 +81,18 @@ public class MyH264Stream extends H264VideoStream {
         mCameraImageFormat = ImageFormat.NV21;
         mVideoEncoder = MediaRecorder.VideoEncoder.H264;
         mPacketizer = new H264Packetizer();
+        mPacketizer.getRtpSocket().setRetransmission(RTX_PAYLOAD_TYPE);
+        ((H264Packetizer) mPacketizer).setOnParameterSetsChangedListener(new H264Packetizer.OnParameterSetsChangedListener() {
+            @Override
+            public void onParameterSetsChanged(byte[] sps, byte[] pps) {
+                // The next DESCRIBE announces what the encoder really emits, and so does the cache
+                MP4Config config = new MP4Config(sps, pps);
+                mConfig = config;
+                SharedPreferences settings = mSettings;
+                String key = mConfigKey;
+                if (settings != null && key != null) new CodecConfigCache(settings).put(key, config);
+            }
+        });
     }
 
     /**
@@ -78,9 +101,26 @@ public class MyH264Stream extends H264VideoStream {
     public synchronized String getSessionDescription() throws IllegalStateException {
         if (mConfig == null)
             throw new IllegalStateException("You need to call configure() first !");
-        return "m=video " + String.valueOf(getDestinationPorts()[0]) + " RTP/AVP 96\r\n" +
+        boolean fec = mPacketizer.getRtpSocket().getFecOverhead() > 0;
+        return "m=video " + String.valueOf(getDestinationPorts()[0]) + " RTP/AVP 96 " + RTX_PAYLOAD_TYPE + (fec ? " " + FEC_PAYLOAD_TYPE : "") + "\r\n" +
                 "a=rtpmap:96 H264/90000\r\n" +
-                "a=fmtp:96 packetization-mode=1;profile-level-id=" + mConfig.getProfileLevel() + ";sprop-parameter-sets=" + mConfig.getB64SPS() + "," + mConfig.getB64PPS() + ";\r\n";
+                "a=rtcp-fb:96 nack\r\n" +
+                "a=rtcp-fb:96 nack pli\r\n" +
+                "a=rtcp-fb:96 ccm fir\r\n" +
+                "a=rtcp-fb:96 goog-remb\r\n" +
+                "a=fmtp:96 packetization-mode=1;profile-level-id=" + mConfig.getProfileLevel() + ";sprop-parameter-sets=" + mConfig.getB64SPS() + "," + mConfig.getB64PPS() + ";\r\n" +
+                "a=rtpmap:" + RTX_PAYLOAD_TYPE + " rtx/90000\r\n" +
+                "a=fmtp:" + RTX_PAYLOAD_TYPE + " apt=96\r\n" +
+                (fec ? "a=rtpmap:" + FEC_PAYLOAD_TYPE + " ulpfec/90000\r\n" : "");
+    }
+
+    /**
+     * Sends FEC packets along with the stream, see {@link net.majorkernelpanic.streaming.rtp.RtpSocket#setFec(int, int)}.
+     * FEC is only advertised in the SDP if this is called before {@link #getSessionDescription()}.
+     * @param overhead The overhead in percent, 0 disables FEC
+     */
+    public void setFecOverhead(int overhead) {
+        mPacketizer.getRtpSocket().setFec(FEC_PAYLOAD_TYPE, overhead);
     }
 
     /**
@@ -114,14 +154,55 @@ public class MyH264Stream extends H264VideoStream {
         super.configure();
         mMode = MODE_MEDIACODEC_API_2;
         mQuality = mRequestedQuality.clone();
-        mConfig = testH264();
+        // Running a test encoder takes seconds, the parameter sets are only looked for once per configuration
+        mConfigKey = CodecConfigCache.keyOf(ENCODER_NAME, mQuality);
+        mConfig = findConfig(mSettings, mQuality);
+        // The encoder is created in the background while the client goes on with SETUP
+        EncoderPool.getInstance().prewarm(ENCODER_NAME, mQuality);
+    }
+
+    /**
+     * Runs the test encoder in the background for a quality, so that the first DESCRIBE finds its
+     * parameter sets in the cache. Should be called when the app starts, with the quality of the streams.
+     */
+    public static void fillConfigCache(final SharedPreferences settings, VideoQuality quality) {
+        final VideoQuality q = quality.clone();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    findConfig(settings, q);
+                } catch (Exception e) {
+                    Log.e(TAG, "Could not determine the parameter sets: " + e.getMessage());
+                }
+            }
+        }, TAG).start();
+    }
+
+    /**
+     * Returns the parameter sets of the encoder for a quality, from the cache or from a test encoder.
+     * A DESCRIBE that comes while the cache is being filled waits for it instead of running a second encoder.
+     */
+    private static MP4Config findConfig(SharedPreferences settings, VideoQuality quality) throws IOException {
+        CodecConfigCache cache = settings != null ? new CodecConfigCache(settings) : null;
+        String key = CodecConfigCache.keyOf(ENCODER_NAME, quality);
+        synchronized (sTestLock) {
+            MP4Config config = cache != null ? cache.get(key) : null;
+            if (config != null) {
+                Log.d(TAG, "Parameter sets found in the cache for " + key);
+                return config;
+            }
+            config = testH264(quality);
+            if (config != null && cache != null) cache.put(key, config);
+            return config;
+        }
     }
 
     /**
      * Tests if streaming with the given configuration (bit rate, frame rate, resolution) is possible
      * and determines the pps and sps. Should not be called by the UI thread.
      **/
-    private MP4Config testH264() throws IllegalStateException, IOException {
+    private static MP4Config testH264(VideoQuality quality) throws IllegalStateException, IOException {
         MediaCodec encoder = null;
 
         MediaCodecInfo selectCodec = selectCodec(H264VideoStream.MIME_TYPE, H264VideoStream.ENCODER_NAME);
@@ -135,10 +216,10 @@ public class MyH264Stream extends H264VideoStream {
 
 
         Log.d(TAG, "found colorFormat: " + selectColorFormat);
-        MediaFormat createVideoFormat = MediaFormat.createVideoFormat(H264VideoStream.MIME_TYPE, this.mQuality.resX, this.mQuality.resY);
+        MediaFormat createVideoFormat = MediaFormat.createVideoFormat(H264VideoStream.MIME_TYPE, quality.resX, quality.resY);
         createVideoFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, selectColorFormat);
-        createVideoFormat.setInteger(MediaFormat.KEY_BIT_RATE, this.mQuality.bitrate);
-        createVideoFormat.setInteger(MediaFormat.KEY_FRAME_RATE, this.mQuality.framerate);
+        createVideoFormat.setInteger(MediaFormat.KEY_BIT_RATE, quality.bitrate);
+        createVideoFormat.setInteger(MediaFormat.KEY_FRAME_RATE, quality.framerate);
         createVideoFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, H264VideoStream.IFRAME_INTERVAL);
 
 
@@ -151,7 +232,7 @@ public class MyH264Stream extends H264VideoStream {
 
             encoder.configure(createVideoFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
             encoder.start();
-            String[] base64pps_sps = searchSPSandPPS(encoder, this.mQuality.resX, this.mQuality.resY, this.mQuality.framerate, selectColorFormat);
+            String[] base64pps_sps = searchSPSandPPS(encoder, quality.resX, quality.resY, quality.framerate, selectColorFormat);
             MP4Config mp4Config = new MP4Config(base64pps_sps[1], base64pps_sps[0]);
             Log.d(TAG, "releasing codecs");
 
@@ -166,7 +247,7 @@ public class MyH264Stream extends H264VideoStream {
     }
 
 
-    private String[] searchSPSandPPS(MediaCodec encoder, int width, int height, int framerate, int encoderColorFormat) {
+    private static String[] searchSPSandPPS(MediaCodec encoder, int width, int height, int framerate, int encoderColorFormat) {
         ByteBuffer[] inputBuffers = encoder.getInputBuffers();
         ByteBuffer[] outputBuffers = encoder.getOutputBuffers();
         MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
@@ -267,7 +348,7 @@ public class MyH264Stream extends H264VideoStream {
      * </pre>
      * We draw one of the eight rectangles and leave the rest set to the zero-fill color.
      */
-    private void generateFrame(int frameIndex, int colorFormat, byte[] frameData,
+    private static void generateFrame(int frameIndex, int colorFormat, byte[] frameData,
                                int width, int height) {
         final int HALF_WIDTH = width / 2;
         boolean semiPlanar = isSemiPlanarYUV(colorFormat);
@@ -396,14 +477,14 @@ public class MyH264Stream extends H264VideoStream {
     }
 
 
-    private void check(boolean cond, String message) {
+    private static void check(boolean cond, String message) {
         if (!cond) {
             Log.e(TAG, message);
             throw new IllegalStateException(message);
         }
     }
 
-    private long timestamp() {
+    private static long timestamp() {
         return System.nanoTime() / 1000;
     }
 
@@ -0,0 +1,443 @@
+package com.telefonica.myapplication2;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import net.majorkernelpanic.streaming.rtp.RtpSocket;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.security.SecureRandom;
+import java.util.Iterator;
+
+/**
+ * Re-serves a stream published with ANNOUNCE and RECORD to the clients that PLAY it, without
+ * decoding it. Packets of the publisher are put back in order, then sent to every subscriber
+ * with the SSRC, sequence numbers and timestamps of the relay, so that the subscribers see one
+ * continuous stream even if the publisher reconnects in between.
+ * The publisher sends its packets to UDP ports of the relay, received by a thread of the relay,
+ * or interleaved in its RTSP connection, see {@link #receive(int, byte[], int, int)}.
+ */
+class Relay implements Runnable {
+
+	public final static String TAG = "Relay";
+
+	/** Number of packets that can be held while waiting for a missing one. */
+	public final static int REORDER_WINDOW = 64;
+
+	/** How long in ms a missing packet is waited for before it is considered lost. */
+	public final static long MAX_HOLD = 50;
+
+	private final static int MAX_PACKET_SIZE = 2048;
+	private final static SecureRandom sRandom = new SecureRandom();
+
+	private final String mPath;
+	private final Track[] mTracks = new Track[] {new Track(), new Track()};
+	private volatile String mSessionDescription;
+	private Selector mSelector;
+	private Thread mThread;
+
+	// Guarded by the relays of the RtspServer
+	Object publisher = null;
+	int clients = 0;
+
+	/** Where a track is sent to. */
+	private static class Subscriber {
+		final InetSocketAddress rtp, rtcp;
+		final RtpSocket.InterleavedWriter writer;
+		final int channel;
+
+		Subscriber(InetSocketAddress rtp, InetSocketAddress rtcp, RtpSocket.InterleavedWriter writer, int channel) {
+			this.rtp = rtp;
+			this.rtcp = rtcp;
+			this.writer = writer;
+			this.channel = channel;
+		}
+	}
+
+	/** One track of the stream, what the publisher sends and who it is sent to. */
+	private static class Track {
+
+		// Receiving side, the channels are null if the publisher uses its RTSP connection
+		DatagramChannel rtpIn, rtcpIn;
+		int channel = -1;
+
+		// Sending side
+		final int ssrc = sRandom.nextInt();
+		volatile DatagramChannel out;
+		volatile Subscriber[] subscribers = new Subscriber[0];
+
+		// Reordering
+		private final byte[][] mSlots = new byte[REORDER_WINDOW][];
+		private final int[] mLengths = new int[REORDER_WINDOW];
+		private int mExpected = -1, mHeld = 0;
+		private long mHeldSince = 0;
+
+		// Rewriting
+		private final byte[] mOut = new byte[MAX_PACKET_SIZE];
+		private int mInSsrc = 0, mSeqOffset = 0, mTsOffset = 0;
+		private int mLastSeq = sRandom.nextInt() & 0xFFFF, mLastTs = sRandom.nextInt();
+		private boolean mStarted = false;
+
+		/** Called for each RTP packet of the publisher, in any order. */
+		synchronized void onRtp(byte[] buffer, int offset, int length, long now) {
+			if (length < 12 || length > MAX_PACKET_SIZE) return;
+			int seq = (buffer[offset+2]&0xFF)<<8 | buffer[offset+3]&0xFF;
+			int ssrc = readInt(buffer, offset+8);
+			if (!mStarted || ssrc != mInSsrc) {
+				// A new publisher, or the same one that restarted: the stream of the relay goes on
+				drain(true);
+				mInSsrc = ssrc;
+				mExpected = seq;
+				mSeqOffset = mLastSeq+1-seq;
+				mTsOffset = mLastTs+1-readInt(buffer, offset+4);
+				mStarted = true;
+			}
+			int diff = (short) (seq-mExpected);
+			if (diff < 0) return; // Late or duplicated
+			if (diff == 0 && mHeld == 0) {
+				// In order, nothing to wait for
+				emit(buffer, offset, length);
+				mExpected = (mExpected+1) & 0xFFFF;
+				return;
+			}
+			if (diff >= REORDER_WINDOW) {
+				// Too far ahead, the packets we are waiting for won't come
+				while ((short) (seq-mExpected) >= REORDER_WINDOW) skip();
+			}
+			int slot = seq % REORDER_WINDOW;
+			if (mLengths[slot] > 0) return;
+			if (mSlots[slot] == null) mSlots[slot] = new byte[MAX_PACKET_SIZE];
+			System.arraycopy(buffer, offset, mSlots[slot], 0, length);
+			mLengths[slot] = length;
+			if (mHeld++ == 0) mHeldSince = now;
+			drain(false);
+		}
+
+		/** Gives up on the packets that have been missing for too long. */
+		synchronized void onTick(long now) {
+			if (mHeld > 0 && now-mHeldSince >= MAX_HOLD) {
+				while (mLengths[mExpected % REORDER_WINDOW] == 0) skip();
+				drain(false);
+				mHeldSince = now;
+			}
+		}
+
+		/** Forwards a Sender Report of the publisher, it maps the timestamps of the track to wall clock time. */
+		void onRtcp(byte[] buffer, int offset, int length) {
+			if (length < 28 || (buffer[offset+1]&0xFF) != 200) return;
+			int size = Math.min(length, 28);
+			byte[] report = new byte[size];
+			System.arraycopy(buffer, offset, report, 0, size);
+			// Only the sender info is kept, without report blocks
+			report[0] = (byte) (report[0] & 0xE0);
+			report[2] = 0;
+			report[3] = 6;
+			writeInt(report, 4, ssrc);
+			synchronized (this) {
+				if (!mStarted || readInt(buffer, offset+4) != mInSsrc) return;
+				writeInt(report, 16, readInt(report, 16)+mTsOffset);
+			}
+			for (Subscriber subscriber : subscribers) {
+				if (subscriber.writer != null) {
+					subscriber.writer.writeInterleaved(subscriber.channel+1, report, 0, size);
+				} else {
+					send(ByteBuffer.wrap(report), subscriber.rtcp);
+				}
+			}
+		}
+
+		/** Sends all the packets held that are in order, or all of them. */
+		private void drain(boolean all) {
+			while (mHeld > 0) {
+				int slot = mExpected % REORDER_WINDOW;
+				if (mLengths[slot] == 0) {
+					if (!all) return;
+					mExpected = (mExpected+1) & 0xFFFF;
+					continue;
+				}
+				emit(mSlots[slot], 0, mLengths[slot]);
+				mLengths[slot] = 0;
+				mHeld--;
+				mExpected = (mExpected+1) & 0xFFFF;
+			}
+		}
+
+		/** Moves on past the packet we are waiting for, sending it if it is there. */
+		private void skip() {
+			int slot = mExpected % REORDER_WINDOW;
+			if (mLengths[slot] > 0) {
+				emit(mSlots[slot], 0, mLengths[slot]);
+				mLengths[slot] = 0;
+				mHeld--;
+			}
+			mExpected = (mExpected+1) & 0xFFFF;
+		}
+
+		private void emit(byte[] buffer, int offset, int length) {
+			System.arraycopy(buffer, offset, mOut, 0, length);
+			mLastSeq = ((mOut[2]&0xFF)<<8 | mOut[3]&0xFF)+mSeqOffset & 0xFFFF;
+			mLastTs = readInt(mOut, 4)+mTsOffset;
+			mOut[2] = (byte) (mLastSeq >> 8);
+			mOut[3] = (byte) mLastSeq;
+			writeInt(mOut, 4, mLastTs);
+			writeInt(mOut, 8, ssrc);
+			for (Subscriber subscriber : subscribers) {
+				if (subscriber.writer != null) {
+					subscriber.writer.writeInterleaved(subscriber.channel, mOut, 0, length);
+				} else {
+					send(ByteBuffer.wrap(mOut, 0, length), subscriber.rtp);
+				}
+			}
+		}
+
+		private void send(ByteBuffer packet, InetSocketAddress address) {
+			DatagramChannel out = this.out;
+			if (out == null) return;
+			try {
+				out.send(packet, address);
+			} catch (IOException e) {
+				Log.e(TAG,e.getMessage()!=null?e.getMessage():"unknown error");
+			}
+		}
+
+		synchronized void add(Subscriber subscriber) {
+			Subscriber[] subscribers = new Subscriber[this.subscribers.length+1];
+			System.arraycopy(this.subscribers, 0, subscribers, 0, this.subscribers.length);
+			subscribers[subscribers.length-1] = subscriber;
+			this.subscribers = subscribers;
+		}
+
+		synchronized void remove(InetAddress address, int rtpPort, RtpSocket.InterleavedWriter writer) {
+			for (int i=0; i<subscribers.length; i++) {
+				Subscriber s = subscribers[i];
+				if (writer != null ? s.writer == writer : s.rtp != null && s.rtp.getPort() == rtpPort && s.rtp.getAddress().equals(address)) {
+					Subscriber[] subscribers = new Subscriber[this.subscribers.length-1];
+					System.arraycopy(this.subscribers, 0, subscribers, 0, i);
+					System.arraycopy(this.subscribers, i+1, subscribers, i, subscribers.length-i);
+					this.subscribers = subscribers;
+					return;
+				}
+			}
+		}
+
+	}
+
+	/**
+	 * @param path The path of the stream, see {@link #getPath(String)}
+	 * @param sessionDescription The SDP sent by the publisher with ANNOUNCE
+	 */
+	Relay(String path, String sessionDescription) {
+		mPath = path;
+		mSessionDescription = sessionDescription;
+	}
+
+	/** Returns the path that identifies the stream of an URI, without its query and track. */
+	static String getPath(String uri) {
+		String path = URI.create(uri).getPath();
+		if (path == null) return "/";
+		int i = path.indexOf("/trackID=");
+		if (i >= 0) path = path.substring(0, i);
+		while (path.length() > 1 && path.endsWith("/")) path = path.substring(0, path.length()-1);
+		return path.length() == 0 ? "/" : path;
+	}
+
+	String getPath() {
+		return mPath;
+	}
+
+	String getSessionDescription() {
+		return mSessionDescription;
+	}
+
+	/** Called when the stream is published again, maybe by another publisher. */
+	void setSessionDescription(String sessionDescription) {
+		mSessionDescription = sessionDescription;
+	}
+
+	/** Returns whether the SDP of the publisher has a track, 0 for the audio and 1 for the video. */
+	boolean hasTrack(int id) {
+		String type = id == 0 ? "m=audio" : "m=video";
+		return mSessionDescription.startsWith(type) || mSessionDescription.contains("\n"+type);
+	}
+
+	/** Returns the SSRC of the track as sent by the relay. */
+	int getSSRC(int id) {
+		return mTracks[id].ssrc;
+	}
+
+	/**
+	 * Opens the UDP ports of a track for the publisher.
+	 * @return The RTP and RTCP ports the publisher must send to
+	 */
+	synchronized int[] setupPublisher(int id) throws IOException {
+		Track track = mTracks[id];
+		if (track.rtpIn == null) {
+			track.rtpIn = DatagramChannel.open();
+			track.rtpIn.socket().bind(new InetSocketAddress(0));
+			track.rtcpIn = DatagramChannel.open();
+			track.rtcpIn.socket().bind(new InetSocketAddress(0));
+		}
+		track.channel = -1;
+		return new int[] {track.rtpIn.socket().getLocalPort(), track.rtcpIn.socket().getLocalPort()};
+	}
+
+	/** The publisher sends the track interleaved in its RTSP connection, RTP on the channel and RTCP on the next one. */
+	synchronized void setupPublisher(int id, int channel) {
+		mTracks[id].channel = channel;
+	}
+
+	/** Called with the frames the publisher sends interleaved in its RTSP connection. */
+	void receive(int channel, byte[] buffer, int offset, int length) {
+		for (Track track : mTracks) {
+			if (track.channel < 0) continue;
+			if (channel == track.channel) track.onRtp(buffer, offset, length, SystemClock.elapsedRealtime());
+			else if (channel == track.channel+1) track.onRtcp(buffer, offset, length);
+		}
+	}
+
+	/** Called with RECORD, starts receiving the packets of the publisher. */
+	synchronized void startReceiving() throws IOException {
+		if (mThread != null) return;
+		mSelector = Selector.open();
+		for (Track track : mTracks) {
+			if (track.rtpIn == null) continue;
+			track.rtpIn.configureBlocking(false);
+			track.rtcpIn.configureBlocking(false);
+			track.rtpIn.register(mSelector, SelectionKey.OP_READ, track);
+			track.rtcpIn.register(mSelector, SelectionKey.OP_READ, track);
+		}
+		mThread = new Thread(this, "Relay "+mPath);
+		mThread.start();
+	}
+
+	/** Called when the publisher leaves, the subscribers stay until the stream is published again. */
+	void stopReceiving() {
+		Thread thread;
+		synchronized (this) {
+			thread = mThread;
+			mThread = null;
+			if (mSelector != null) {
+				try {
+					mSelector.close();
+				} catch (IOException ignore) {}
+				mSelector = null;
+			}
+		}
+		if (thread != null) {
+			thread.interrupt();
+			try {
+				thread.join();
+			} catch (InterruptedException ignore) {}
+		}
+		synchronized (this) {
+			for (Track track : mTracks) {
+				close(track.rtpIn);
+				close(track.rtcpIn);
+				track.rtpIn = track.rtcpIn = null;
+				track.channel = -1;
+			}
+		}
+	}
+
+	/** Stops receiving and sending, once the publisher and all the subscribers have left. */
+	void release() {
+		stopReceiving();
+		synchronized (this) {
+			for (Track track : mTracks) {
+				close(track.out);
+				track.out = null;
+			}
+		}
+	}
+
+	/**
+	 * Sends a track to a client.
+	 * @return The local port of the relay the track is sent from
+	 */
+	int addSubscriber(int id, InetAddress address, int rtpPort, int rtcpPort) throws IOException {
+		Track track = mTracks[id];
+		synchronized (this) {
+			if (track.out == null) {
+				track.out = DatagramChannel.open();
+				track.out.socket().bind(new InetSocketAddress(0));
+			}
+		}
+		track.add(new Subscriber(new InetSocketAddress(address, rtpPort), new InetSocketAddress(address, rtcpPort), null, 0));
+		return track.out.socket().getLocalPort();
+	}
+
+	/** Sends a track to a client, interleaved in its RTSP connection. */
+	void addSubscriber(int id, RtpSocket.InterleavedWriter writer, int channel) {
+		mTracks[id].add(new Subscriber(null, null, writer, channel));
+	}
+
+	void removeSubscriber(int id, InetAddress address, int rtpPort) {
+		mTracks[id].remove(address, rtpPort, null);
+	}
+
+	void removeSubscriber(int id, RtpSocket.InterleavedWriter writer) {
+		mTracks[id].remove(null, 0, writer);
+	}
+
+	@Override
+	public void run() {
+		Selector selector;
+		synchronized (this) {
+			selector = mSelector;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(MAX_PACKET_SIZE);
+		Log.d(TAG,"Receiving "+mPath);
+		try {
+			while (!Thread.interrupted()) {
+				selector.select(MAX_HOLD);
+				long now = SystemClock.elapsedRealtime();
+				for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext();) {
+					SelectionKey key = it.next();
+					it.remove();
+					Track track = (Track) key.attachment();
+					DatagramChannel channel = (DatagramChannel) key.channel();
+					while (true) {
+						buffer.clear();
+						if (channel.receive(buffer) == null) break;
+						if (channel == track.rtpIn) track.onRtp(buffer.array(), 0, buffer.position(), now);
+						else track.onRtcp(buffer.array(), 0, buffer.position());
+					}
+				}
+				for (Track track : mTracks) {
+					track.onTick(now);
+				}
+			}
+		} catch (ClosedSelectorException ignore) {
+		} catch (IOException e) {
+			Log.e(TAG,e.getMessage()!=null?e.getMessage():"unknown error");
+		}
+		Log.d(TAG,"Stopped receiving "+mPath);
+	}
+
+	private static void close(DatagramChannel channel) {
+		if (channel == null) return;
+		try {
+			channel.close();
+		} catch (IOException ignore) {}
+	}
+
+	private static int readInt(byte[] buffer, int offset) {
+		return (buffer[offset]&0xFF)<<24 | (buffer[offset+1]&0xFF)<<16 | (buffer[offset+2]&0xFF)<<8 | buffer[offset+3]&0xFF;
+	}
+
+	private static void writeInt(byte[] buffer, int offset, int value) {
+		buffer[offset] = (byte) (value >> 24);
+		buffer[offset+1] = (byte) (value >> 16);
+		buffer[offset+2] = (byte) (value >> 8);
+		buffer[offset+3] = (byte) value;
+	}
+
+}
@@ -27,31 +27,46 @@ import android.content.SharedPreferences.Editor;
 import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
 import android.os.Binder;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.util.Log;
 
-import java.io.BufferedReader;
+import net.majorkernelpanic.streaming.MediaStream;
+import net.majorkernelpanic.streaming.rtcp.ReceiverReport;
+import net.majorkernelpanic.streaming.rtp.RtpSocket;
+
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
 import java.net.BindException;
 import java.net.InetAddress;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Locale;
 import java.util.WeakHashMap;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Implementation of a subset of the RTSP protocol (RFC 2326).
  * 
  * It allows remote control of an android device cameras & microphone.
- * For each connected client, a Session is instantiated.
- * The Session will start or stop streams according to what the client wants.
+ * Clients that request the same stream share a Session, each of them being an additional
+ * destination of its streams. The Session is stopped when its last client leaves.
  * 
  */
 public class RtspServer extends Service {
@@ -75,6 +90,15 @@ public class RtspServer extends Service {
 	
 	/** Streaming stopped. */
 	public final static int MESSAGE_STREAMING_STOPPED = 0X01;
+
+	/** The video streams have been degraded to fit in the bandwidth budget, see {@link #setBandwidth(int)}. */
+	public final static int MESSAGE_BANDWIDTH_DEGRADED = 0X02;
+
+	/** The video streams are no longer degraded. */
+	public final static int MESSAGE_BANDWIDTH_RESTORED = 0X03;
+
+	/** A client has been refused a track because the bandwidth budget could not hold it. */
+	public final static int MESSAGE_CLIENT_REFUSED = 0X04;
 	
 	/** Key used in the SharedPreferences to store whether the RTSP server is enabled or not. */
 	public final static String KEY_ENABLED = "rtsp_enabled";
@@ -82,11 +106,68 @@ public class RtspServer extends Service {
 	/** Key used in the SharedPreferences for the port used by the RTSP server. */
 	public final static String KEY_PORT = "rtsp_port";
 
+	/** Key used in the SharedPreferences for the total bandwidth budget of the RTSP server in kbit/s, 0 for no limit. */
+	public final static String KEY_BANDWIDTH = "rtsp_bandwidth";
+
+	/** Key used in the SharedPreferences for the port of the HTTP stats endpoint, 0 to disable it. */
+	public final static String KEY_STATS_PORT = "rtsp_stats_port";
+
+	/** Number of threads processing the requests of the clients. */
+	protected final static int WORKER_THREADS = 4;
+
+	/** Maximum size of a request in bytes, headers and body. */
+	protected final static int MAX_REQUEST_SIZE = 8192;
+
+	/**
+	 * Time in s after which a client that shows no sign of life is disconnected and its streams are stopped.
+	 * Any request, like GET_PARAMETER or OPTIONS, and any RTCP report of the client keeps it alive.
+	 * Advertised to the clients with the timeout parameter of the Session header.
+	 */
+	protected final static int SESSION_TIMEOUT = 60;
+
+	/** Period of the reaper of the clients in ms. */
+	private final static long REAPER_TICK = 1000;
+
+	/**
+	 * Maximum number of bytes queued for a client that receives the streams interleaved
+	 * in its RTSP connection, RTP and RTCP packets are dropped above that.
+	 */
+	protected final static int MAX_INTERLEAVED_QUEUE = 256*1024;
+
+	/**
+	 * Capacity of the buffers packets are framed in for the clients that receive them interleaved,
+	 * an RTP packet and the header of a retransmission, and how many of them each client keeps for reuse.
+	 */
+	private final static int FRAME_SIZE = RtpSocket.MTU+8;
+	private final static int MAX_FREE_FRAMES = 64;
+
+	/** Maximum size of a request to the stats endpoint in bytes. */
+	private final static int MAX_STATS_REQUEST_SIZE = 2048;
+
+	/** Time in ms a client of the stats endpoint has to send its request and read the response. */
+	private final static long STATS_TIMEOUT = 5000;
+
+	private final static Charset UTF8 = Charset.forName("UTF-8");
+	private final static SecureRandom sRandom = new SecureRandom();
+	private final static Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
 	protected MySessionBuilder mSessionBuilder;
 	protected SharedPreferences mSharedPreferences;
 	protected boolean mEnabled = true;	
 	protected int mPort = DEFAULT_RTSP_PORT;
+	protected int mStatsPort = 0;
 	protected WeakHashMap<Session,Object> mSessions = new WeakHashMap<Session,Object>(2);
+	protected final BandwidthGovernor mGovernor = new BandwidthGovernor();
+
+	/** Streams published by clients with ANNOUNCE and RECORD, by path, see {@link Relay#getPath(String)}. */
+	private final HashMap<String,Relay> mRelays = new HashMap<String,Relay>();
+	protected boolean mRelayEnabled = false;
+
+	/** Where the mp4 files served on demand are, see {@link #setMediaDirectory(File)}. */
+	protected volatile File mMediaDirectory = null;
+
+	/** Sessions in use, by key as returned by {@link UriParser#getSessionKey(String)}. */
+	private final HashMap<String,SharedSession> mSharedSessions = new HashMap<String,SharedSession>();
 	
 	private RequestListener mListenerThread;
 	private final IBinder mBinder = new LocalBinder();
@@ -148,6 +229,56 @@ public class RtspServer extends Service {
 		editor.commit();
 	}	
 
+	/**
+	 * Serves a snapshot of the state of the server in the Prometheus text format at /metrics
+	 * on a second port, so that devices in the field can be scraped. The snapshot is only
+	 * built when it is requested, by the thread of the RTSP server.
+	 * @param port The port of the HTTP endpoint, 0 to disable it
+	 */
+	public void setStatsPort(int port) {
+		Editor editor = mSharedPreferences.edit();
+		editor.putString(KEY_STATS_PORT, String.valueOf(port));
+		editor.commit();
+	}
+
+	/**
+	 * Sets the total bandwidth the RTSP server may use to stream to its clients.
+	 * Clients are refused once it is reached, see {@link BandwidthGovernor}.
+	 * @param bandwidth The budget in kbit/s, 0 for no limit
+	 */
+	public void setBandwidth(int bandwidth) {
+		Editor editor = mSharedPreferences.edit();
+		editor.putString(KEY_BANDWIDTH, String.valueOf(bandwidth));
+		editor.commit();
+	}
+
+	/**
+	 * Lets clients publish streams with ANNOUNCE and RECORD, like {@link net.majorkernelpanic.streaming.rtsp.RtspClient}
+	 * does, and re-serves them to the clients that DESCRIBE the same path. Disabled by default.
+	 */
+	public void setRelayEnabled(boolean enabled) {
+		mRelayEnabled = enabled;
+	}
+
+	/**
+	 * Serves the mp4 files of a directory on demand: a client that DESCRIBEs rtsp://host:port/name.mp4
+	 * plays the file name.mp4 of the directory, and can pause it and seek in it with the Range header
+	 * of PLAY. Only H.264 video and AAC audio are streamed. Streams published by clients take precedence.
+	 * @param directory The directory, null to serve no file
+	 */
+	public void setMediaDirectory(File directory) {
+		mMediaDirectory = directory;
+	}
+
+	/**
+	 * Sets how the bandwidth budget is split between the clients.
+	 * @param policy {@link BandwidthGovernor#POLICY_FAIR_SHARE} or {@link BandwidthGovernor#POLICY_FIRST_COME}
+	 */
+	public void setBandwidthPolicy(int policy) {
+		mGovernor.setPolicy(policy);
+		updateBandwidth();
+	}
+
 	/** 
 	 * Starts (or restart if needed, if for example the configuration 
 	 * of the server has been modified) the RTSP server. 
@@ -208,6 +339,36 @@ public class RtspServer extends Service {
 		}
 		return bitrate;
 	}
+
+	/** Returns the sessions of the clients of the RTSP server. */
+	private List<Session> getSessions() {
+		List<Session> sessions = new ArrayList<Session>();
+		synchronized (mSessions) {
+			for (Session session : mSessions.keySet()) {
+				if (session != null) sessions.add(session);
+			}
+		}
+		return sessions;
+	}
+
+	/** Splits the bandwidth budget between the clients again, must be called when a client comes or leaves. */
+	protected void updateBandwidth() {
+		if (mGovernor.update(getSessions())) {
+			postMessage(mGovernor.getLevel() == BandwidthGovernor.LEVEL_FULL ? MESSAGE_BANDWIDTH_RESTORED : MESSAGE_BANDWIDTH_DEGRADED);
+		}
+	}
+
+	/** Returns the last RTCP Receiver Report sent by each client of the RTSP server, for all tracks. */
+	public List<ReceiverReport> getReceiverReports() {
+		List<ReceiverReport> reports = new ArrayList<ReceiverReport>();
+		for ( Session session : getSessions() ) {
+		    if ( session.isStreaming() ) {
+		    	reports.addAll(session.getReceiverReports(0));
+		    	reports.addAll(session.getReceiverReports(1));
+		    } 
+		}
+		return reports;
+	}
 	
 	@Override
 	public int onStartCommand(Intent intent, int flags, int startId) {
@@ -220,7 +381,9 @@ public class RtspServer extends Service {
 		// Let's restore the state of the service 
 		mSharedPreferences = PreferenceManager.getDefaultSharedPreferences(this);
 		mPort = Integer.parseInt(mSharedPreferences.getString(KEY_PORT, String.valueOf(mPort)));
+		mStatsPort = Integer.parseInt(mSharedPreferences.getString(KEY_STATS_PORT, String.valueOf(mStatsPort)));
 		mEnabled = mSharedPreferences.getBoolean(KEY_ENABLED, mEnabled);
+		mGovernor.setBudget(Integer.parseInt(mSharedPreferences.getString(KEY_BANDWIDTH, "0"))*1000L);
 
 		// If the configuration is modified, the server will adjust
 		mSharedPreferences.registerOnSharedPreferenceChangeListener(mOnSharedPreferenceChangeListener);
@@ -246,10 +409,22 @@ public class RtspServer extends Service {
 					start();
 				}
 			}		
+			else if (key.equals(KEY_STATS_PORT)) {
+				int port = Integer.parseInt(sharedPreferences.getString(KEY_STATS_PORT, String.valueOf(mStatsPort)));
+				if (port != mStatsPort) {
+					mStatsPort = port;
+					mRestart = true;
+					start();
+				}
+			}
 			else if (key.equals(KEY_ENABLED)) {
 				mEnabled = sharedPreferences.getBoolean(KEY_ENABLED, mEnabled);
 				start();
 			}
+			else if (key.equals(KEY_BANDWIDTH)) {
+				mGovernor.setBudget(Integer.parseInt(sharedPreferences.getString(KEY_BANDWIDTH, "0"))*1000L);
+				updateBandwidth();
+			}
 		}
 	};
 
@@ -300,41 +475,358 @@ public class RtspServer extends Service {
 		}
 		return session;
 	}
+
+	/**
+	 * Returns a new RTSP session id, random so that clients can't guess the id of the others.
+	 * Only made of digits, {@link net.majorkernelpanic.streaming.rtsp.RtspClient} expects nothing else.
+	 */
+	private static String newSessionId() {
+		return String.valueOf(1000000000000000000L+(sRandom.nextLong() & Long.MAX_VALUE)%8000000000000000000L);
+	}
+
+	/** A session and the number of clients using it. */
+	protected static class SharedSession {
+		final String key;
+		Session session = null;
+		int clients = 0;
+
+		SharedSession(String key) {
+			this.key = key;
+		}
+	}
+
+	/**
+	 * Returns the session that streams what the URI asks for. It is created with
+	 * {@link #handleRequest(String, Socket)} and configured if no other client uses it yet.
+	 * Must be balanced with a call to {@link #releaseSession(SharedSession)}.
+	 */
+	protected SharedSession acquireSession(String uri, Socket client) throws IllegalStateException, IOException {
+		String key = UriParser.getSessionKey(uri);
+		SharedSession shared;
+		synchronized (mSharedSessions) {
+			shared = key != null ? mSharedSessions.get(key) : null;
+			if (shared == null) {
+				shared = new SharedSession(key);
+				if (key != null) mSharedSessions.put(key, shared);
+			}
+			shared.clients++;
+		}
+		synchronized (shared) {
+			if (shared.session != null) return shared;
+			Session session = null;
+			try {
+				session = handleRequest(uri, client);
+				synchronized (mSessions) {
+					mSessions.put(session, null);
+				}
+				session.syncConfigure();
+				shared.session = session;
+			} finally {
+				if (shared.session == null) {
+					if (session != null) session.release();
+					releaseSession(shared);
+				}
+			}
+		}
+		return shared;
+	}
+
+	/**
+	 * Returns the relay of the stream published at the path of the URI, or null if there is none.
+	 * Must be balanced with a call to {@link #releaseRelay(Relay)}.
+	 */
+	protected Relay acquireRelay(String uri) {
+		synchronized (mRelays) {
+			Relay relay = mRelays.get(Relay.getPath(uri));
+			if (relay != null) relay.clients++;
+			return relay;
+		}
+	}
+
+	/** Returns a player of the mp4 file at the path of the URI in the media directory, or null if there is none. */
+	protected FilePlayer openFile(String uri) {
+		File directory = mMediaDirectory;
+		if (directory == null) return null;
+		String path = Relay.getPath(uri);
+		File file = new File(directory, path);
+		try {
+			// The path may not lead out of the media directory
+			if (!file.isFile() || !file.getCanonicalPath().startsWith(directory.getCanonicalPath()+File.separator)) return null;
+			return new FilePlayer(path, file);
+		} catch (IOException e) {
+			Log.e(TAG,"Can't play "+path+": "+(e.getMessage()!=null?e.getMessage():"unknown error"));
+			return null;
+		}
+	}
+
+	/** Forgets the relay once it has no client and no publisher left. */
+	protected void releaseRelay(Relay relay) {
+		synchronized (mRelays) {
+			if (--relay.clients > 0 || relay.publisher != null) return;
+			mRelays.remove(relay.getPath());
+		}
+		relay.release();
+	}
+
+	/**
+	 * Publishes a stream at the path of the URI. A stream that lost its publisher can be published
+	 * again, its clients then get the new publisher seamlessly.
+	 * @return The relay, or null if another client already publishes there
+	 */
+	protected Relay publish(String uri, String sessionDescription, Object publisher) {
+		String path = Relay.getPath(uri);
+		synchronized (mRelays) {
+			Relay relay = mRelays.get(path);
+			if (relay == null) {
+				relay = new Relay(path, sessionDescription);
+				mRelays.put(path, relay);
+			} else if (relay.publisher != null) {
+				return null;
+			} else {
+				relay.setSessionDescription(sessionDescription);
+			}
+			relay.publisher = publisher;
+			Log.i(TAG,"Stream published at "+path);
+			return relay;
+		}
+	}
+
+	/** Called when the publisher of a relay leaves, the relay stays while it has clients. */
+	protected void unpublish(Relay relay) {
+		boolean unused;
+		synchronized (mRelays) {
+			relay.publisher = null;
+			unused = relay.clients == 0;
+			if (unused) mRelays.remove(relay.getPath());
+		}
+		if (unused) relay.release();
+		else relay.stopReceiving();
+		Log.i(TAG,"Stream unpublished at "+relay.getPath());
+	}
+
+	/** Stops and releases the session once its last client has released it. */
+	protected void releaseSession(SharedSession shared) {
+		synchronized (mSharedSessions) {
+			if (--shared.clients > 0) return;
+			if (shared.key != null && mSharedSessions.get(shared.key) == shared) {
+				mSharedSessions.remove(shared.key);
+			}
+		}
+		synchronized (shared) {
+			if (shared.session != null) {
+				shared.session.syncStop();
+				shared.session.release();
+				shared.session = null;
+			}
+		}
+	}
 	
+	/**
+	 * Accepts the clients and reads their requests with a single thread and a {@link Selector}.
+	 * Requests are then processed by a small pool of worker threads, because starting a stream
+	 * may take a while, and responses are queued and written by the selector thread.
+	 * The same thread serves the stats endpoint, see {@link #setStatsPort(int)}.
+	 */
 	class RequestListener extends Thread implements Runnable {
 
-		private final ServerSocket mServer;
+		private final Selector mSelector;
+		private final ServerSocketChannel mServer;
+		private ServerSocketChannel mStatsServer = null;
+		private final ThreadPoolExecutor mWorkers = new ThreadPoolExecutor(WORKER_THREADS, WORKER_THREADS, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+		private final ConcurrentLinkedQueue<Connection> mPendingWrites = new ConcurrentLinkedQueue<Connection>();
+		private final LinkedList<Connection> mConnections = new LinkedList<Connection>();
+		private final TimerWheel<TimerWheel.Timer> mTimers = new TimerWheel<TimerWheel.Timer>(64, REAPER_TICK, SystemClock.elapsedRealtime());
 
 		public RequestListener() throws IOException {
+			mSelector = Selector.open();
+			mServer = ServerSocketChannel.open();
 			try {
-				mServer = new ServerSocket(mPort);
-				start();
+				mServer.socket().setReuseAddress(true);
+				mServer.socket().bind(new InetSocketAddress(mPort));
 			} catch (BindException e) {
 				Log.e(TAG,"Port already in use !");
 				postError(e, ERROR_BIND_FAILED);
+				mServer.close();
+				mSelector.close();
 				throw e;
 			}
+			mServer.configureBlocking(false);
+			mServer.register(mSelector, SelectionKey.OP_ACCEPT);
+			if (mStatsPort > 0) openStatsServer();
+			start();
+		}
+
+		/** The RTSP server works without the stats endpoint if its port can't be used. */
+		private void openStatsServer() {
+			try {
+				mStatsServer = ServerSocketChannel.open();
+				mStatsServer.socket().setReuseAddress(true);
+				mStatsServer.socket().bind(new InetSocketAddress(mStatsPort));
+				mStatsServer.configureBlocking(false);
+				mStatsServer.register(mSelector, SelectionKey.OP_ACCEPT);
+			} catch (IOException e) {
+				Log.e(TAG,"Stats endpoint not available on port "+mStatsPort);
+				try {
+					mStatsServer.close();
+				} catch (IOException ignore) {}
+				mStatsServer = null;
+			}
 		}
 
 		public void run() {
-			Log.i(TAG,"RTSP server listening on port "+mServer.getLocalPort());
+			Log.i(TAG,"RTSP server listening on port "+mServer.socket().getLocalPort());
 			while (!Thread.interrupted()) {
 				try {
-					new WorkerThread(mServer.accept()).start();
-				} catch (SocketException e) {
+					mSelector.select(REAPER_TICK);
+					// Connections that have something new to write
+					Connection connection;
+					while ((connection = mPendingWrites.poll()) != null) {
+						connection.flush();
+					}
+					for (Iterator<SelectionKey> it = mSelector.selectedKeys().iterator(); it.hasNext();) {
+						SelectionKey key = it.next();
+						it.remove();
+						if (!key.isValid()) continue;
+						if (key.isAcceptable()) {
+							if (key.channel() == mStatsServer) acceptStats();
+							else accept();
+						} else if (key.attachment() instanceof StatsConnection) {
+							StatsConnection stats = (StatsConnection) key.attachment();
+							if (key.isReadable()) stats.read();
+							if (key.isValid() && key.isWritable()) stats.flush();
+						} else {
+							connection = (Connection) key.attachment();
+							if (key.isReadable()) connection.read();
+							if (key.isValid() && key.isWritable()) connection.flush();
+						}
+					}
+					// Clients that have been silent for too long
+					for (TimerWheel.Timer expired : mTimers.advance(SystemClock.elapsedRealtime())) {
+						if (expired instanceof Connection) ((Connection) expired).expire();
+						else ((StatsConnection) expired).close();
+					}
+				} catch (ClosedSelectorException e) {
 					break;
 				} catch (IOException e) {
-					Log.e(TAG,e.getMessage());
-					continue;
+					Log.e(TAG,e.getMessage()!=null?e.getMessage():"unknown error");
 				}
 			}
+			for (Connection connection : new LinkedList<Connection>(mConnections)) {
+				connection.close();
+			}
+			mWorkers.shutdown();
+			try {
+				if (mStatsServer != null) mStatsServer.close();
+				mServer.close();
+				mSelector.close();
+			} catch (IOException ignore) {}
 			Log.i(TAG,"RTSP server stopped !");
 		}
 
+		private void accept() throws IOException {
+			SocketChannel channel = mServer.accept();
+			if (channel == null) return;
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			Connection connection = new Connection(this, channel);
+			connection.mKey = channel.register(mSelector, SelectionKey.OP_READ, connection);
+			mConnections.add(connection);
+			mTimers.add(connection);
+			Log.i(TAG, "Connection from "+channel.socket().getInetAddress().getHostAddress());
+		}
+
+		private void acceptStats() throws IOException {
+			SocketChannel channel = mStatsServer.accept();
+			if (channel == null) return;
+			channel.configureBlocking(false);
+			StatsConnection stats = new StatsConnection(this, channel);
+			stats.mKey = channel.register(mSelector, SelectionKey.OP_READ, stats);
+			mTimers.add(stats);
+		}
+
+		/** Builds the snapshot served by the stats endpoint, called by the selector thread. */
+		String collectMetrics() {
+			Metrics metrics = new Metrics();
+			List<Session> sessions = getSessions();
+			HashMap<Session,String> keys = new HashMap<Session,String>();
+			synchronized (mSharedSessions) {
+				for (SharedSession shared : mSharedSessions.values()) {
+					if (shared.session != null) keys.put(shared.session, shared.key);
+				}
+			}
+			int queued = 0;
+			for (Connection connection : mConnections) {
+				queued += connection.getQueued();
+			}
+
+			metrics.add("rtsp_connections", Metrics.GAUGE, "RTSP connections open.", mConnections.size());
+			metrics.add("rtsp_sessions", Metrics.GAUGE, "Sessions in use, each one has its own encoders.", sessions.size());
+			metrics.add("rtsp_interleaved_queue_bytes", Metrics.GAUGE, "Bytes waiting to be written in the RTSP connections.", queued);
+			metrics.add("rtsp_bandwidth_budget_bits_per_second", Metrics.GAUGE, "Total egress budget, 0 for no limit.", mGovernor.getBudget());
+			metrics.add("rtsp_bandwidth_level", Metrics.GAUGE, "Degradation step of the video streams, 0 when they are not degraded.", mGovernor.getLevel());
+
+			for (Session session : sessions) {
+				String key = keys.get(session);
+				if (key == null) key = Integer.toHexString(System.identityHashCode(session));
+				for (int id=0; id<2; id++) {
+					MediaStream track = id==0 ? session.getAudioTrack() : session.getVideoTrack();
+					if (track == null) continue;
+					String[] labels = new String[] {"session", key, "track", id==0 ? "audio" : "video"};
+					metrics.add("rtsp_track_streaming", Metrics.GAUGE, "1 if the track is streaming.", labels, track.isStreaming() ? 1 : 0);
+					if (!track.isStreaming()) continue;
+					RtpSocket socket = track.getPacketizer().getRtpSocket();
+					metrics.add("rtsp_track_bitrate_bits_per_second", Metrics.GAUGE, "Bitrate of the RTP stream.", labels, socket.getBitrate());
+					metrics.add("rtsp_track_destinations", Metrics.GAUGE, "Distinct destinations of the RTP stream.", labels, socket.getDestinationCount());
+					metrics.add("rtsp_track_packets_sent_total", Metrics.COUNTER, "RTP packets sent, whatever the number of destinations.", labels, socket.getPacketCount());
+					metrics.add("rtsp_track_bytes_sent_total", Metrics.COUNTER, "RTP bytes sent, whatever the number of destinations.", labels, socket.getOctetCount());
+					metrics.add("rtsp_track_packets_retransmitted_total", Metrics.COUNTER, "RTP packets sent again after a NACK.", labels, socket.getRetransmissionCount());
+					metrics.add("rtsp_track_fifo_packets", Metrics.GAUGE, "RTP packets waiting to be sent.", labels, socket.getQueueLength());
+					metrics.add("rtsp_track_fifo_capacity_packets", Metrics.GAUGE, "Size of the FIFO of the RTP socket.", labels, socket.getQueueCapacity());
+					metrics.add("rtsp_track_send_lag_ms", Metrics.GAUGE, "Average time packets spend in the FIFO.", labels, socket.getSendLag());
+					metrics.add("rtsp_track_fec_overhead_percent", Metrics.GAUGE, "Overhead of the FEC packets, 0 if FEC is disabled.", labels, socket.getFecOverhead());
+					for (ReceiverReport report : session.getReceiverReports(id)) {
+						String[] receiver = new String[] {"session", key, "track", labels[3], "ssrc", String.valueOf(report.ssrc & 0xFFFFFFFFL),
+								"address", report.address != null ? report.address.getHostAddress() : ""};
+						metrics.add("rtsp_receiver_fraction_lost", Metrics.GAUGE, "Fraction of the packets lost in the last RTCP report.", receiver, report.fractionLost);
+						metrics.add("rtsp_receiver_packets_lost_total", Metrics.COUNTER, "Packets lost since the receiver joined.", receiver, report.cumulativeLost);
+						metrics.add("rtsp_receiver_jitter_ms", Metrics.GAUGE, "Interarrival jitter.", receiver, report.jitter);
+						metrics.add("rtsp_receiver_nacks_total", Metrics.COUNTER, "Generic NACK entries received.", receiver, report.nacks);
+						if (report.rtt >= 0) metrics.add("rtsp_receiver_rtt_ms", Metrics.GAUGE, "Round trip time.", receiver, report.rtt);
+						if (report.remb > 0) metrics.add("rtsp_receiver_remb_bits_per_second", Metrics.GAUGE, "Bitrate estimated by the receiver.", receiver, report.remb);
+					}
+				}
+				MyH264Stream video = session.getVideoTrack();
+				if (video != null) {
+					String[] labels = new String[] {"session", key};
+					metrics.add("rtsp_encoder_bitrate_bits_per_second", Metrics.GAUGE, "Bitrate of the video encoder, 0 if it is stopped.", labels, video.getEncoderBitrate());
+					metrics.add("rtsp_encoder_quality_bitrate_bits_per_second", Metrics.GAUGE, "Bitrate of the video quality requested.", labels, video.getVideoQuality().bitrate);
+					metrics.add("rtsp_encoder_quality_framerate", Metrics.GAUGE, "Frame rate of the video quality requested.", labels, video.getVideoQuality().framerate);
+				}
+			}
+
+			synchronized (mRelays) {
+				for (Relay relay : mRelays.values()) {
+					String[] labels = new String[] {"path", relay.getPath()};
+					metrics.add("rtsp_relay_published", Metrics.GAUGE, "1 if a client publishes the stream.", labels, relay.publisher != null ? 1 : 0);
+					metrics.add("rtsp_relay_clients", Metrics.GAUGE, "Clients of the relayed stream.", labels, relay.clients);
+				}
+			}
+
+			metrics.add("rtsp_worker_threads_active", Metrics.GAUGE, "Worker threads processing requests.", mWorkers.getActiveCount());
+			metrics.add("rtsp_worker_queue_tasks", Metrics.GAUGE, "Requests waiting for a worker thread.", mWorkers.getQueue().size());
+			metrics.add("rtsp_threads", Metrics.GAUGE, "Live threads in the group of the RTSP server.", Thread.activeCount());
+			return metrics.toString();
+		}
+
+		/** Called from any thread when a connection has something to write. */
+		void requestWrite(Connection connection) {
+			mPendingWrites.add(connection);
+			mSelector.wakeup();
+		}
+
 		public void kill() {
-			try {
-				mServer.close();
-			} catch (IOException e) {}
+			interrupt();
+			mSelector.wakeup();
 			try {
 				this.join();
 			} catch (InterruptedException ignore) {}
@@ -342,101 +834,579 @@ public class RtspServer extends Service {
 
 	}
 
-	// One thread per client
-	class WorkerThread extends Thread implements Runnable {
+	/**
+	 * One per client. Its requests are processed one after the other by the worker threads
+	 * of the {@link RequestListener}, in the order they arrived.
+	 */
+	class Connection implements RtpSocket.InterleavedWriter, TimerWheel.Timer {
 
+		private final RequestListener mListener;
+		private final SocketChannel mChannel;
 		private final Socket mClient;
-		private final OutputStream mOutput;
-		private final BufferedReader mInput;
-
-		// Each client has an associated session
+		private final ByteBuffer mInput = ByteBuffer.allocate(MAX_REQUEST_SIZE);
+		private final LinkedList<ByteBuffer> mOutput = new LinkedList<ByteBuffer>();
+		// Frames of interleaved packets already written, guarded by mOutput
+		private final LinkedList<ByteBuffer> mFrames = new LinkedList<ByteBuffer>();
+		private final LinkedList<Request> mRequests = new LinkedList<Request>();
+		private final StringBuilder mResponse = new StringBuilder(512);
+		private SelectionKey mKey;
+		private boolean mBusy = false, mClosed = false;
+		private int mQueued = 0;
+		private boolean mDropping = false;
+
+		// RTSP session id, set by the first SETUP, and when the client will be considered gone
+		private String mSessionId = null;
+		private long mDeadline;
+
+		// Each client has an associated session, possibly shared with other clients,
+		// and an empty one of its own used until it describes a stream
 		private Session mSession;
-
-		public WorkerThread(final Socket client) throws IOException {
-			mInput = new BufferedReader(new InputStreamReader(client.getInputStream()));
-			mOutput = client.getOutputStream();
-			mClient = client;
-			mSession = new Session();
+		private final Session mPlaceholder;
+		private SharedSession mShared = null;
+
+		// Where the tracks are sent for this client, and the RTP port of each track once set up,
+		// or the RTP channel of each track if the client receives them in the RTSP connection
+		private String mDestination;
+		private final int[] mPorts = new int[2], mRtcpPorts = new int[2];
+		private final int[] mChannels = new int[] {-1, -1};
+		// Tracks paused by the client, still set up but not sent to it
+		private final boolean[] mPaused = new boolean[2];
+
+		// The stream relayed to the client instead of a session, and the stream the client publishes
+		private Relay mRelay = null, mPublished = null;
+		// The file played to the client instead of a session
+		private FilePlayer mPlayer = null;
+
+		private final RequestParser mParser = new RequestParser() {
+			@Override
+			void onInterleavedFrame(int channel, byte[] buffer, int offset, int length) {
+				Relay published = mPublished;
+				if (published != null) {
+					published.receive(channel, buffer, offset, length);
+					return;
+				}
+				// RTCP packets of the client come on the channel following the one of a track
+				for (int id=0; id<2; id++) {
+					if (mChannels[id] < 0 || channel != mChannels[id]+1) continue;
+					MediaStream track = id==0 ? mSession.getAudioTrack() : mSession.getVideoTrack();
+					if (track != null) {
+						track.getPacketizer().getRtpSocket().getRtcpReceiver().parse(buffer, offset, length, mClient.getInetAddress(), mClient.getPort(), Connection.this);
+					}
+				}
+			}
+		};
+
+		public Connection(RequestListener listener, SocketChannel channel) {
+			mListener = listener;
+			mChannel = channel;
+			mClient = channel.socket();
+			mSession = mPlaceholder = new Session();
+			mDeadline = SystemClock.elapsedRealtime()+SESSION_TIMEOUT*1000;
 		}
 
-		public void run() {
-			Request request;
-			Response response;
+		@Override
+		public long getDeadline() {
+			return mDeadline;
+		}
 
-			Log.i(TAG, "Connection from "+mClient.getInetAddress().getHostAddress());
+		/**
+		 * Called by the selector thread when the client has not sent anything for {@link #SESSION_TIMEOUT} s.
+		 * Clients that don't send keep-alive requests may still be sending RTCP reports.
+		 */
+		void expire() {
+			if (mClosed) return;
+			long now = SystemClock.elapsedRealtime();
+			InetAddress address = mClient.getInetAddress();
+			for (int id=0; id<2; id++) {
+				if (mPorts[id] == 0 && mChannels[id] < 0) continue;
+				for (ReceiverReport report : mSession.getReceiverReports(id)) {
+					if (address.equals(report.address) && now-report.lastUpdate < SESSION_TIMEOUT*1000) {
+						mDeadline = report.lastUpdate+SESSION_TIMEOUT*1000;
+						mListener.mTimers.add(this);
+						return;
+					}
+				}
+			}
+			Log.i(TAG,"Session of "+address.getHostAddress()+" timed out");
+			close();
+		}
 
-			while (!Thread.interrupted()) {
+		/** Called by the selector thread when some data is available. */
+		void read() {
+			int n;
+			try {
+				n = mChannel.read(mInput);
+			} catch (IOException e) {
+				n = -1;
+			}
+			if (n < 0) {
+				// Client has left
+				close();
+				return;
+			}
+			mDeadline = SystemClock.elapsedRealtime()+SESSION_TIMEOUT*1000;
 
-				request = null;
-				response = null;
+			// Extracts the complete requests from the buffer, requests we don't understand have no method
+			int begin;
+			synchronized (this) {
+				begin = mParser.parse(mInput.array(), mInput.position(), mRequests);
+			}
+			mInput.limit(mInput.position());
+			mInput.position(begin);
+			mInput.compact();
+
+			if (!mInput.hasRemaining()) {
+				// The request is too big, the client is probably up to no good
+				Log.e(TAG,"Request too long from "+mClient.getInetAddress().getHostAddress());
+				close();
+				return;
+			}
+			schedule();
+		}
 
-				// Parse the request
-				try {
-					request = Request.parseRequest(mInput);
-				} catch (SocketException e) {
-					// Client has left
-					break;
-				} catch (Exception e) {
-					// We don't understand the request :/
-					response = new Response();
-					response.status = Response.STATUS_BAD_REQUEST;
-				}
+		private synchronized void schedule() {
+			if (!mBusy && !mClosed && !mRequests.isEmpty()) {
+				mBusy = true;
+				mListener.mWorkers.execute(mProcess);
+			}
+		}
 
-				// Do something accordingly like starting the streams, sending a session description
-				if (request != null) {
-					try {
-						response = processRequest(request);
+		private final Runnable mProcess = new Runnable() {
+			@Override
+			public void run() {
+				while (true) {
+					Request request;
+					synchronized (Connection.this) {
+						request = mClosed ? null : mRequests.poll();
+						if (request == null && !mClosed) {
+							mBusy = false;
+							return;
+						}
+					}
+					if (request == null) {
+						// The connection has been closed, nothing else will be scheduled
+						terminate();
+						return;
 					}
-					catch (Exception e) {
-						// This alerts the main thread that something has gone wrong in this thread
-						postError(e, ERROR_START_FAILED);
-						Log.e(TAG,e.getMessage()!=null?e.getMessage():"An error occurred");
-						e.printStackTrace();
-						response = new Response(request);
-					} catch (Throwable throwable){
 
+					Response response;
+					if (request.method == null) {
+						response = new Response();
+						response.status = Response.STATUS_BAD_REQUEST;
+					} else {
+						// Do something accordingly like starting the streams, sending a session description
+						try {
+							response = processRequest(request);
+						} catch (Exception e) {
+							// This alerts the main thread that something has gone wrong in this thread
+							postError(e, ERROR_START_FAILED);
+							Log.e(TAG,e.getMessage()!=null?e.getMessage():"An error occurred");
+							e.printStackTrace();
+							response = new Response(request);
+						} catch (Throwable throwable) {
+							response = new Response(request);
+						}
 					}
+
+					// We always send a response
+					// The client will receive an "INTERNAL SERVER ERROR" if an exception has been thrown at some point
+					send(response);
 				}
+			}
+		};
 
-				// We always send a response
-				// The client will receive an "INTERNAL SERVER ERROR" if an exception has been thrown at some point
-				try {
-					response.send(mOutput);
-				} catch (IOException e) {
-					Log.e(TAG,"Response was not sent properly");
-					break;
+		/** Queues the response, it will be written by the selector thread. */
+		void send(Response response) {
+			write(response.encode(mResponse), false);
+		}
+
+		/**
+		 * Called by the RTP sockets of the tracks of the client, a packet is dropped rather than
+		 * queued if the client can't keep up, so that the other clients don't have to wait.
+		 * Packets are framed in buffers reused once written, nothing is allocated per packet.
+		 */
+		@Override
+		public void writeInterleaved(int channel, byte[] packet, int offset, int length) {
+			ByteBuffer frame = null;
+			if (length+4 <= FRAME_SIZE) {
+				synchronized (mOutput) {
+					frame = mFrames.poll();
 				}
+				// Direct buffers are written to the socket without being copied first
+				if (frame == null) frame = ByteBuffer.allocateDirect(FRAME_SIZE);
+			} else {
+				// Packets relayed from a publisher may be bigger
+				frame = ByteBuffer.allocate(length+4);
+			}
+			frame.clear();
+			frame.put((byte) '$').put((byte) channel).putShort((short) length).put(packet, offset, length);
+			frame.flip();
+			boolean dropping = !write(frame, true);
+			if (dropping) recycle(frame);
+			if (dropping && !mDropping && !mClosed) {
+				Log.w(TAG,"Client "+mClient.getInetAddress().getHostAddress()+" too slow, packets are dropped");
+			}
+			mDropping = dropping;
+		}
 
+		/**
+		 * Queues some data, it will be written by the selector thread.
+		 * @param droppable Whether the data can be dropped if too much data is already queued
+		 * @return False if the data has been dropped
+		 */
+		boolean write(ByteBuffer buffer, boolean droppable) {
+			boolean wasEmpty;
+			synchronized (mOutput) {
+				if (mClosed) return false;
+				if (droppable && mQueued+buffer.remaining() > MAX_INTERLEAVED_QUEUE) return false;
+				wasEmpty = mOutput.isEmpty();
+				mOutput.add(buffer);
+				mQueued += buffer.remaining();
 			}
+			// Otherwise the selector thread already knows there is something to write
+			if (wasEmpty) mListener.requestWrite(this);
+			return true;
+		}
 
-			// Streaming stops when client disconnects
-			boolean streaming = isStreaming();
-			mSession.syncStop();
-			if (streaming && !isStreaming()) {
-				postMessage(MESSAGE_STREAMING_STOPPED);
+		/** Keeps the frame of an interleaved packet for the next one, responses are not reused. */
+		private void recycle(ByteBuffer buffer) {
+			if (!buffer.isDirect()) return;
+			synchronized (mOutput) {
+				if (mFrames.size() < MAX_FREE_FRAMES) mFrames.add(buffer);
 			}
-			mSession.release();
+		}
 
+		/** Returns the number of bytes waiting to be written. */
+		int getQueued() {
+			synchronized (mOutput) {
+				return mQueued;
+			}
+		}
+
+		/** Called by the selector thread to write what has been queued. */
+		void flush() {
+			if (mKey == null || !mKey.isValid()) return;
 			try {
-				mClient.close();
+				synchronized (mOutput) {
+					while (!mOutput.isEmpty()) {
+						ByteBuffer buffer = mOutput.getFirst();
+						mChannel.write(buffer);
+						if (buffer.hasRemaining()) break;
+						mOutput.removeFirst();
+						mQueued -= buffer.limit();
+						recycle(buffer);
+					}
+					mKey.interestOps(mOutput.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ|SelectionKey.OP_WRITE);
+				}
+			} catch (IOException e) {
+				Log.e(TAG,"Response was not sent properly");
+				close();
+			}
+		}
+
+		/** Called by the selector thread when the client leaves. */
+		void close() {
+			if (mKey != null) mKey.cancel();
+			try {
+				mChannel.close();
 			} catch (IOException ignore) {}
+			mListener.mConnections.remove(this);
+			synchronized (this) {
+				if (mClosed) return;
+				mClosed = true;
+				if (!mBusy) {
+					mBusy = true;
+					mListener.mWorkers.execute(mProcess);
+				}
+			}
+		}
 
+		/** Called by a worker thread once the connection is closed and no request is being processed. */
+		private void terminate() {
+			// Streaming stops when the last client of the session disconnects
+			boolean streaming = isStreaming();
+			detach();
+			mPlaceholder.release();
+			updateBandwidth();
+			if (streaming && !isStreaming()) {
+				postMessage(MESSAGE_STREAMING_STOPPED);
+			}
 			Log.i(TAG, "Client disconnected");
+		}
 
+		/** Removes the client from the destinations of its session, and releases it. */
+		private void detach() {
+			if (mPublished != null) {
+				unpublish(mPublished);
+				mPublished = null;
+			}
+			if (mRelay != null) {
+				for (int id=0; id<2; id++) {
+					removeDestination(id);
+				}
+				releaseRelay(mRelay);
+				mRelay = null;
+				return;
+			}
+			if (mPlayer != null) {
+				for (int id=0; id<2; id++) {
+					removeDestination(id);
+				}
+				mPlayer.release();
+				mPlayer = null;
+				return;
+			}
+			// The placeholder serves the requests that come until the next DESCRIBE, it is released with the connection
+			if (mShared == null) return;
+			for (int id=0; id<2; id++) {
+				removeDestination(id);
+			}
+			releaseSession(mShared);
+			mShared = null;
+			mSession = mPlaceholder;
+		}
+
+		/** Stops sending a track to the client. */
+		private void removeDestination(int id) {
+			if (mRelay != null) {
+				if (!mPaused[id] && mPorts[id] != 0) mRelay.removeSubscriber(id, mClient.getInetAddress(), mPorts[id]);
+				if (!mPaused[id] && mChannels[id] >= 0) mRelay.removeSubscriber(id, this);
+				mPaused[id] = false;
+				mPorts[id] = 0;
+				mChannels[id] = -1;
+				return;
+			}
+			if (mPlayer != null) {
+				// The player sends to the client until it is released
+				mPorts[id] = 0;
+				mChannels[id] = -1;
+				return;
+			}
+			if (mPaused[id]) {
+				mSession.syncRemovePausedDestination(id);
+				mPaused[id] = false;
+				mPorts[id] = 0;
+				mChannels[id] = -1;
+				return;
+			}
+			if (mPorts[id] != 0) {
+				try {
+					mSession.syncRemoveDestination(id, mDestination, mPorts[id]);
+				} catch (IOException e) {
+					Log.e(TAG,e.getMessage()!=null?e.getMessage():"unknown error");
+				}
+				mPorts[id] = 0;
+			}
+			if (mChannels[id] >= 0) {
+				mSession.syncRemoveDestination(id, this);
+				mChannels[id] = -1;
+			}
+		}
+
+		/**
+		 * Tells whether the bandwidth budget can hold one more track for the client.
+		 * Refusing the video leaves the client with the audio only.
+		 */
+		private boolean admit(int id, boolean multicast) {
+			// A multicast group that is already streamed costs nothing more
+			if (multicast && mSession.getTrack(id).isStreaming()) return true;
+			if (mGovernor.admit(getSessions(), mSession, id)) return true;
+			Log.w(TAG, "Not enough bandwidth to send the "+(id == 0 ? "audio" : "video")+" to "+mClient.getInetAddress().getHostAddress());
+			postMessage(MESSAGE_CLIENT_REFUSED);
+			return false;
+		}
+
+		/** Stops sending the tracks to the client, the encoders keep running for the other clients and for a quick resume. */
+		private void pause() throws IOException {
+			for (int id=0; id<2; id++) {
+				if (mPaused[id]) continue;
+				if (mRelay != null) {
+					if (mPorts[id] == 0 && mChannels[id] < 0) continue;
+					if (mPorts[id] != 0) mRelay.removeSubscriber(id, mClient.getInetAddress(), mPorts[id]);
+					else mRelay.removeSubscriber(id, this);
+				} else if (mPorts[id] != 0) {
+					mSession.syncPauseDestination(id, mDestination, mPorts[id]);
+				} else if (mChannels[id] >= 0) {
+					mSession.syncPauseDestination(id, this);
+				} else {
+					continue;
+				}
+				mPaused[id] = true;
+			}
+		}
+
+		/**
+		 * Sends the tracks paused by {@link #pause()} to the client again.
+		 * @return True if a track was resumed
+		 */
+		private boolean resume() throws Throwable {
+			boolean resumed = false;
+			for (int id=0; id<2; id++) {
+				if (!mPaused[id]) continue;
+				mPaused[id] = false;
+				if (mRelay != null) {
+					if (mPorts[id] != 0) mRelay.addSubscriber(id, mClient.getInetAddress(), mPorts[id], mRtcpPorts[id]);
+					else mRelay.addSubscriber(id, this, mChannels[id]);
+				} else if (mPorts[id] != 0) {
+					mSession.syncResumeDestination(id, mDestination, mPorts[id], mRtcpPorts[id]);
+				} else {
+					mSession.syncResumeDestination(id, this, mChannels[id]);
+				}
+				resumed = true;
+			}
+			return resumed;
+		}
+
+		/** SETUP of a track of the stream the client publishes, the client sends it to us. */
+		private Response setupPublisher(Request request, Response response, int trackId) throws IOException {
+			String transport = request.headers.get("transport");
+			int i = Request.indexOfParameter(transport, "interleaved=");
+			if (i >= 0 || Request.indexOfParameter(transport, "RTP/AVP/TCP") >= 0) {
+				int channel = i < 0 ? -1 : Request.parseInt(transport, i);
+				if (channel < 0 || channel > 254) channel = 2*trackId;
+				mPublished.setupPublisher(trackId, channel);
+				response.attributes = "Transport: RTP/AVP/TCP;unicast;interleaved="+channel+"-"+(channel+1)+";mode=record\r\n" +
+						"Session: "+mSessionId+";timeout="+SESSION_TIMEOUT+"\r\n";
+			} else {
+				int[] ports = mPublished.setupPublisher(trackId);
+				i = Request.indexOfParameter(transport, "client_port=");
+				int p1 = i < 0 ? -1 : Request.parseInt(transport, i);
+				int p2 = p1 < 0 || transport.indexOf('-', i) < 0 ? -1 : Request.parseInt(transport, transport.indexOf('-', i)+1);
+				response.attributes = "Transport: RTP/AVP/UDP;unicast"+(p1 >= 0 && p2 >= 0 ? ";client_port="+p1+"-"+p2 : "")+
+						";server_port="+ports[0]+"-"+ports[1]+";mode=record\r\n" +
+						"Session: "+mSessionId+";timeout="+SESSION_TIMEOUT+"\r\n";
+			}
+			response.status = Response.STATUS_OK;
+			return response;
+		}
+
+		/** SETUP of a track of a stream published by another client. */
+		private Response setupRelayClient(Request request, Response response, int trackId) throws IOException {
+			String transport = request.headers.get("transport");
+			int ssrc = mRelay.getSSRC(trackId);
+			removeDestination(trackId);
+			int i = Request.indexOfParameter(transport, "interleaved=");
+			if (i >= 0 || Request.indexOfParameter(transport, "RTP/AVP/TCP") >= 0) {
+				int channel = i < 0 ? -1 : Request.parseInt(transport, i);
+				if (channel < 0 || channel > 254) channel = 2*trackId;
+				mRelay.addSubscriber(trackId, this, channel);
+				mChannels[trackId] = channel;
+				response.attributes = "Transport: RTP/AVP/TCP;unicast;interleaved="+channel+"-"+(channel+1)+
+						";ssrc="+Integer.toHexString(ssrc)+";mode=play\r\n";
+			} else {
+				i = Request.indexOfParameter(transport, "client_port=");
+				int p1 = i < 0 ? -1 : Request.parseInt(transport, i);
+				int p2 = p1 < 0 || transport.indexOf('-', i) < 0 ? -1 : Request.parseInt(transport, transport.indexOf('-', i)+1);
+				if (p1 <= 0 || p2 <= 0) {
+					response.status = Response.STATUS_BAD_REQUEST;
+					return response;
+				}
+				int port = mRelay.addSubscriber(trackId, mClient.getInetAddress(), p1, p2);
+				mPorts[trackId] = p1;
+				mRtcpPorts[trackId] = p2;
+				response.attributes = "Transport: RTP/AVP/UDP;unicast;destination="+mClient.getInetAddress().getHostAddress()+
+						";client_port="+p1+"-"+p2+";server_port="+port+"-"+(port+1)+
+						";ssrc="+Integer.toHexString(ssrc)+";mode=play\r\n";
+			}
+			response.attributes += "Session: "+mSessionId+";timeout="+SESSION_TIMEOUT+"\r\n" +
+					"Cache-Control: no-cache\r\n";
+			response.status = Response.STATUS_OK;
+			return response;
+		}
+
+		/** SETUP of a track of a file played to the client. */
+		private Response setupPlayerClient(Request request, Response response, int trackId) throws IOException {
+			// The destination of a track can't be changed once set up
+			if (mPorts[trackId] != 0 || mChannels[trackId] >= 0) {
+				response.status = Response.STATUS_METHOD_NOT_VALID;
+				return response;
+			}
+			String transport = request.headers.get("transport");
+			int ssrc = mPlayer.getSSRC(trackId);
+			int i = Request.indexOfParameter(transport, "interleaved=");
+			if (i >= 0 || Request.indexOfParameter(transport, "RTP/AVP/TCP") >= 0) {
+				int channel = i < 0 ? -1 : Request.parseInt(transport, i);
+				if (channel < 0 || channel > 254) channel = 2*trackId;
+				mPlayer.setup(trackId, this, channel);
+				mChannels[trackId] = channel;
+				response.attributes = "Transport: RTP/AVP/TCP;unicast;interleaved="+channel+"-"+(channel+1)+
+						";ssrc="+Integer.toHexString(ssrc)+";mode=play\r\n";
+			} else {
+				i = Request.indexOfParameter(transport, "client_port=");
+				int p1 = i < 0 ? -1 : Request.parseInt(transport, i);
+				int p2 = p1 < 0 || transport.indexOf('-', i) < 0 ? -1 : Request.parseInt(transport, transport.indexOf('-', i)+1);
+				if (p1 <= 0 || p2 <= 0) {
+					response.status = Response.STATUS_BAD_REQUEST;
+					return response;
+				}
+				int[] src = mPlayer.setup(trackId, mClient.getInetAddress(), p1, p2);
+				mPorts[trackId] = p1;
+				mRtcpPorts[trackId] = p2;
+				response.attributes = "Transport: RTP/AVP/UDP;unicast;destination="+mClient.getInetAddress().getHostAddress()+
+						";client_port="+p1+"-"+p2+";server_port="+src[0]+"-"+src[1]+
+						";ssrc="+Integer.toHexString(ssrc)+";mode=play\r\n";
+			}
+			response.attributes += "Session: "+mSessionId+";timeout="+SESSION_TIMEOUT+"\r\n" +
+					"Cache-Control: no-cache\r\n";
+			response.status = Response.STATUS_OK;
+			return response;
 		}
 
 		public Response processRequest(Request request) throws Throwable {
 			Response response = new Response(request);
 
+			// Requests must name the session of the client, if any, and PLAY, PAUSE, RECORD and TEARDOWN need one.
+			// Before the first SETUP, some clients send a Session header anyway, like RtspClient does
+			String session = request.headers.get("session");
+			if (session != null && session.indexOf(';') >= 0) session = session.substring(0, session.indexOf(';')).trim();
+			if (mSessionId != null ? session != null && !session.equals(mSessionId) : request.method.equalsIgnoreCase("PLAY")
+					|| request.method.equalsIgnoreCase("PAUSE") || request.method.equalsIgnoreCase("TEARDOWN")
+					|| request.method.equalsIgnoreCase("RECORD")) {
+				response.status = Response.STATUS_SESSION_NOT_FOUND;
+				return response;
+			}
+
 			/* ********************************************************************************** */
 			/* ********************************* Method DESCRIBE ******************************** */
 			/* ********************************************************************************** */
 			if (request.method.equalsIgnoreCase("DESCRIBE")) {
 
-				// Parse the requested URI and configure the session
-				mSession = handleRequest(request.uri, mClient);
-				mSessions.put(mSession, null);
-				mSession.syncConfigure();
+				// Streams published by clients take precedence over the camera
+				Relay relay = mRelayEnabled ? acquireRelay(request.uri) : null;
+				if (relay != null) {
+					detach();
+					mRelay = relay;
+					response.attributes = "Content-Base: "+request.uri+(request.uri.endsWith("/") ? "" : "/")+"\r\n" +
+							"Content-Type: application/sdp\r\n";
+					response.content = relay.getSessionDescription();
+					response.status = Response.STATUS_OK;
+					return response;
+				}
+
+				// Then the files of the media directory
+				FilePlayer player = openFile(request.uri);
+				if (player != null) {
+					detach();
+					mPlayer = player;
+					response.attributes = "Content-Base: "+request.uri+(request.uri.endsWith("/") ? "" : "/")+"\r\n" +
+							"Content-Type: application/sdp\r\n";
+					response.content = player.getSessionDescription();
+					response.status = Response.STATUS_OK;
+					return response;
+				}
+
+				// Parse the requested URI, the session is configured unless another client already uses it
+				SharedSession shared = acquireSession(request.uri, mClient);
+				detach();
+				mShared = shared;
+				mSession = shared.session;
+
+				// Unicast streams are sent to each client, multicast streams to the group
+				String destination = mSession.getDestination();
+				if (shared.key != null && !InetAddress.getByName(destination).isMulticastAddress()) {
+					destination = mClient.getInetAddress().getHostAddress();
+				}
+				mDestination = destination;
 				
 				String requestContent = mSession.getSessionDescription();
 				String requestAttributes = 
@@ -456,7 +1426,7 @@ public class RtspServer extends Service {
 			/* ********************************************************************************** */
 			else if (request.method.equalsIgnoreCase("OPTIONS")) {
 				response.status = Response.STATUS_OK;
-				response.attributes = "Public: DESCRIBE,SETUP,TEARDOWN,PLAY,PAUSE\r\n";
+				response.attributes = "Public: DESCRIBE,SETUP,TEARDOWN,PLAY,PAUSE,GET_PARAMETER"+(mRelayEnabled ? ",ANNOUNCE,RECORD" : "")+"\r\n";
 				response.status = Response.STATUS_OK;
 			}
 
@@ -464,57 +1434,113 @@ public class RtspServer extends Service {
 			/* ********************************** Method SETUP ********************************** */
 			/* ********************************************************************************** */
 			else if (request.method.equalsIgnoreCase("SETUP")) {
-				Pattern p; Matcher m;
-				int p2, p1, ssrc, trackId, src[];
-				String destination;
+				int p2, p1, ssrc, trackId, src[], i;
 
-				p = Pattern.compile("trackID=(\\w+)",Pattern.CASE_INSENSITIVE);
-				m = p.matcher(request.uri);
+				trackId = Request.parseInt(request.uri, Request.indexOfParameter(request.uri, "trackID="));
 
-				if (!m.find()) {
+				if (trackId < 0 || trackId > 1) {
 					response.status = Response.STATUS_BAD_REQUEST;
 					return response;
 				} 
 
-				trackId = Integer.parseInt(m.group(1));
+				if (mPlayer != null) {
+					if (!mPlayer.hasTrack(trackId)) {
+						response.status = Response.STATUS_NOT_FOUND;
+						return response;
+					}
+					if (mSessionId == null) mSessionId = newSessionId();
+					return setupPlayerClient(request, response, trackId);
+				}
+
+				// The tracks of published and relayed streams are those of their SDP, the session is not used
+				if (mPublished != null || mRelay != null) {
+					if (!(mPublished != null ? mPublished : mRelay).hasTrack(trackId)) {
+						response.status = Response.STATUS_NOT_FOUND;
+						return response;
+					}
+					if (mSessionId == null) mSessionId = newSessionId();
+					return mPublished != null ? setupPublisher(request, response, trackId) : setupRelayClient(request, response, trackId);
+				}
 
 				if (!mSession.trackExists(trackId)) {
 					response.status = Response.STATUS_NOT_FOUND;
 					return response;
 				}
 
-				p = Pattern.compile("client_port=(\\d+)-(\\d+)",Pattern.CASE_INSENSITIVE);
-				m = p.matcher(request.headers.get("transport"));
+				if (mSessionId == null) mSessionId = newSessionId();
+
+				String transport = request.headers.get("transport");
+				ssrc = mSession.getTrack(trackId).getSSRC();
+				boolean streaming = isStreaming();
+
+				// RTP/AVP/TCP: the track is written in the RTSP connection
+				if (Request.indexOfParameter(transport, "RTP/AVP/TCP") >= 0 || Request.indexOfParameter(transport, "interleaved=") >= 0) {
+					i = Request.indexOfParameter(transport, "interleaved=");
+					int channel = i < 0 ? -1 : Request.parseInt(transport, i);
+					// The RTCP channel always follows the RTP channel
+					if (channel < 0 || channel > 254) channel = 2*trackId;
+
+					removeDestination(trackId);
+					if (!admit(trackId, false)) {
+						response.status = Response.STATUS_NOT_ENOUGH_BANDWIDTH;
+						return response;
+					}
+					mSession.syncAddDestination(trackId, this, channel);
+					mChannels[trackId] = channel;
+					updateBandwidth();
+					if (!streaming && isStreaming()) {
+						postMessage(MESSAGE_STREAMING_STARTED);
+					}
+
+					response.attributes = "Transport: RTP/AVP/TCP;unicast"+
+							";interleaved="+channel+"-"+(channel+1)+
+							";ssrc="+Integer.toHexString(ssrc)+
+							";mode=play\r\n" +
+							"Session: "+mSessionId+";timeout="+SESSION_TIMEOUT+"\r\n" +
+							"Cache-Control: no-cache\r\n";
+					response.status = Response.STATUS_OK;
+					return response;
+				}
+
+				// The members of a multicast group all receive the ports of the group, whatever they ask for
+				boolean multicast = InetAddress.getByName(mDestination).isMulticastAddress();
+				i = multicast ? -1 : Request.indexOfParameter(transport, "client_port=");
+				p1 = i < 0 ? -1 : Request.parseInt(transport, i);
+				p2 = p1 < 0 || transport.indexOf('-', i) < 0 ? -1 : Request.parseInt(transport, transport.indexOf('-', i)+1);
 
-				if (!m.find()) {
+				if (p1 < 0 || p2 < 0) {
 					int[] ports = mSession.getTrack(trackId).getDestinationPorts();
 					p1 = ports[0];
 					p2 = ports[1];
 				}
-				else {
-					p1 = Integer.parseInt(m.group(1)); 
-					p2 = Integer.parseInt(m.group(2));
-				}
 
-				ssrc = mSession.getTrack(trackId).getSSRC();
 				src = mSession.getTrack(trackId).getLocalPorts();
-				destination = mSession.getDestination();
 
-				mSession.getTrack(trackId).setDestinationPorts(p1, p2);
-				
-				boolean streaming = isStreaming();
-				mSession.syncStart(trackId);
+				// The track is started or, if other clients already receive it, sent to this client too
+				removeDestination(trackId);
+				if (!admit(trackId, multicast)) {
+					response.status = Response.STATUS_NOT_ENOUGH_BANDWIDTH;
+					return response;
+				}
+				mSession.syncAddDestination(trackId, mDestination, p1, p2);
+				mPorts[trackId] = p1;
+				mRtcpPorts[trackId] = p2;
+				updateBandwidth();
 				if (!streaming && isStreaming()) {
 					postMessage(MESSAGE_STREAMING_STARTED);
 				}
 
-				response.attributes = "Transport: RTP/AVP/UDP;"+(InetAddress.getByName(destination).isMulticastAddress()?"multicast":"unicast")+
-						";destination="+mSession.getDestination()+
-						";client_port="+p1+"-"+p2+
+				if (multicast) {
+					Log.i(TAG, "Client joined multicast group "+mDestination+":"+p1+", "+mShared.clients+" member(s)");
+				}
+
+				response.attributes = "Transport: RTP/AVP/UDP;"+(multicast ? "multicast" : "unicast")+
+						";destination="+mDestination+
+						(multicast ? ";port="+p1+"-"+p2+";ttl="+mSession.getTimeToLive() : ";client_port="+p1+"-"+p2)+
 						";server_port="+src[0]+"-"+src[1]+
 						";ssrc="+Integer.toHexString(ssrc)+
 						";mode=play\r\n" +
-						"Session: "+ "1185d20035702ca" + "\r\n" +
+						"Session: "+mSessionId+";timeout="+SESSION_TIMEOUT+"\r\n" +
 						"Cache-Control: no-cache\r\n";
 				response.status = Response.STATUS_OK;
 
@@ -527,10 +1553,39 @@ public class RtspServer extends Service {
 			/* ********************************** Method PLAY *********************************** */
 			/* ********************************************************************************** */
 			else if (request.method.equalsIgnoreCase("PLAY")) {
+				// Files start from the Range asked for, or from where they were paused
+				if (mPlayer != null) {
+					long start = mPlayer.play(FilePlayer.parseRange(request.headers.get("range")));
+					String requestAttributes = "Range: npt="+FilePlayer.formatTime(start)+"-"+FilePlayer.formatTime(mPlayer.getDuration())+"\r\nRTP-Info: ";
+					for (int id=0; id<2; id++) {
+						if (mPlayer.hasTrack(id)) requestAttributes += "url="+request.uri+"/trackID="+id+",";
+					}
+					response.attributes = requestAttributes.substring(0, requestAttributes.length()-1) + "\r\nSession: "+mSessionId+"\r\n";
+					response.status = Response.STATUS_OK;
+					return response;
+				}
+				for (int id=0; id<2; id++) {
+					if (mPaused[id] && mRelay == null && !admit(id, mPorts[id] != 0 && InetAddress.getByName(mDestination).isMulticastAddress())) {
+						response.status = Response.STATUS_NOT_ENOUGH_BANDWIDTH;
+						return response;
+					}
+				}
+				// A paused client gets a key frame right away instead of waiting for the next one
+				if (resume() && mRelay == null) {
+					mSession.requestSyncFrame();
+					updateBandwidth();
+				}
+
 				String requestAttributes = "RTP-Info: ";
-				if (mSession.trackExists(0)) requestAttributes += "url=rtsp://"+mClient.getLocalAddress().getHostAddress()+":"+mClient.getLocalPort()+"/trackID="+0+";seq=0,";
-				if (mSession.trackExists(1)) requestAttributes += "url=rtsp://"+mClient.getLocalAddress().getHostAddress()+":"+mClient.getLocalPort()+"/trackID="+1+";seq=0,";
-				requestAttributes = requestAttributes.substring(0, requestAttributes.length()-1) + "\r\nSession: 1185d20035702ca\r\n";
+				if (mRelay != null) {
+					for (int id=0; id<2; id++) {
+						if (mRelay.hasTrack(id)) requestAttributes += "url="+request.uri+"/trackID="+id+",";
+					}
+				} else {
+					if (mSession.trackExists(0)) requestAttributes += "url=rtsp://"+mClient.getLocalAddress().getHostAddress()+":"+mClient.getLocalPort()+"/trackID="+0+";seq=0,";
+					if (mSession.trackExists(1)) requestAttributes += "url=rtsp://"+mClient.getLocalAddress().getHostAddress()+":"+mClient.getLocalPort()+"/trackID="+1+";seq=0,";
+				}
+				requestAttributes = requestAttributes.substring(0, requestAttributes.length()-1) + "\r\nSession: "+mSessionId+"\r\n";
 
 				response.attributes = requestAttributes;
 
@@ -543,6 +1598,10 @@ public class RtspServer extends Service {
 			/* ********************************** Method PAUSE ********************************** */
 			/* ********************************************************************************** */
 			else if (request.method.equalsIgnoreCase("PAUSE")) {
+				if (mPlayer != null) mPlayer.pause();
+				else pause();
+				updateBandwidth();
+				response.attributes = "Session: "+mSessionId+"\r\n";
 				response.status = Response.STATUS_OK;
 			}
 
@@ -550,6 +1609,49 @@ public class RtspServer extends Service {
 			/* ********************************* Method TEARDOWN ******************************** */
 			/* ********************************************************************************** */
 			else if (request.method.equalsIgnoreCase("TEARDOWN")) {
+				// The streams stop if no other client receives them
+				boolean streaming = isStreaming();
+				detach();
+				mSessionId = null;
+				updateBandwidth();
+				if (streaming && !isStreaming()) {
+					postMessage(MESSAGE_STREAMING_STOPPED);
+				}
+				response.status = Response.STATUS_OK;
+			}
+
+			/* ********************************************************************************** */
+			/* ********************************* Method ANNOUNCE ******************************** */
+			/* ********************************************************************************** */
+			else if (request.method.equalsIgnoreCase("ANNOUNCE") && mRelayEnabled) {
+				if (request.content.length() == 0) {
+					response.status = Response.STATUS_BAD_REQUEST;
+					return response;
+				}
+				detach();
+				mPublished = publish(request.uri, request.content, this);
+				response.status = mPublished != null ? Response.STATUS_OK : Response.STATUS_METHOD_NOT_VALID;
+			}
+
+			/* ********************************************************************************** */
+			/* ********************************** Method RECORD ********************************* */
+			/* ********************************************************************************** */
+			else if (request.method.equalsIgnoreCase("RECORD") && mRelayEnabled) {
+				if (mPublished == null) {
+					response.status = Response.STATUS_METHOD_NOT_VALID;
+					return response;
+				}
+				mPublished.startReceiving();
+				response.attributes = "Session: "+mSessionId+"\r\n";
+				response.status = Response.STATUS_OK;
+			}
+
+			/* ********************************************************************************** */
+			/* ****************************** Method GET_PARAMETER ****************************** */
+			/* ********************************************************************************** */
+			else if (request.method.equalsIgnoreCase("GET_PARAMETER")) {
+				// Clients use it to keep their session alive, we have no parameter to return
+				if (mSessionId != null) response.attributes = "Session: "+mSessionId+"\r\n";
 				response.status = Response.STATUS_OK;
 			}
 
@@ -567,43 +1669,287 @@ public class RtspServer extends Service {
 
 	}
 
+	/**
+	 * A client of the stats endpoint, only GET /metrics is served. The connection is closed once
+	 * the response is written, or after {@link #STATS_TIMEOUT} ms. Only used by the selector thread.
+	 */
+	class StatsConnection implements TimerWheel.Timer {
+
+		private final RequestListener mListener;
+		private final SocketChannel mChannel;
+		private final ByteBuffer mInput = ByteBuffer.allocate(MAX_STATS_REQUEST_SIZE);
+		private final long mDeadline = SystemClock.elapsedRealtime()+STATS_TIMEOUT;
+		private ByteBuffer mOutput = null;
+		private SelectionKey mKey;
+
+		StatsConnection(RequestListener listener, SocketChannel channel) {
+			mListener = listener;
+			mChannel = channel;
+		}
+
+		@Override
+		public long getDeadline() {
+			return mDeadline;
+		}
+
+		void read() {
+			int n;
+			try {
+				n = mChannel.read(mInput);
+			} catch (IOException e) {
+				n = -1;
+			}
+			if (n < 0) {
+				close();
+				return;
+			}
+			// Whatever comes after the request is ignored
+			if (mOutput != null) return;
+			String request = new String(mInput.array(), 0, mInput.position(), ISO_8859_1);
+			if (!request.contains("\r\n\r\n") && !request.contains("\n\n")) {
+				if (!mInput.hasRemaining()) close();
+				return;
+			}
+			String[] line = request.substring(0, request.indexOf('\n')).trim().split(" ");
+			String status, body = "";
+			if (line.length < 2 || !line[0].equals("GET")) {
+				status = "405 Method Not Allowed";
+			} else if (!line[1].equals("/metrics") && !line[1].startsWith("/metrics?")) {
+				status = "404 Not Found";
+			} else {
+				status = "200 OK";
+				body = mListener.collectMetrics();
+			}
+			byte[] content = body.getBytes(UTF8);
+			byte[] header = ("HTTP/1.1 "+status+"\r\n" +
+					"Content-Type: "+Metrics.CONTENT_TYPE+"\r\n" +
+					"Content-Length: "+content.length+"\r\n" +
+					"Connection: close\r\n\r\n").getBytes(ISO_8859_1);
+			mOutput = ByteBuffer.allocate(header.length+content.length);
+			mOutput.put(header).put(content).flip();
+			flush();
+		}
+
+		void flush() {
+			if (mOutput == null || !mKey.isValid()) return;
+			try {
+				mChannel.write(mOutput);
+			} catch (IOException e) {
+				close();
+				return;
+			}
+			if (mOutput.hasRemaining()) mKey.interestOps(SelectionKey.OP_WRITE);
+			else close();
+		}
+
+		void close() {
+			if (mKey != null) mKey.cancel();
+			try {
+				mChannel.close();
+			} catch (IOException ignore) {}
+		}
+
+	}
+
 	static class Request {
 
-		// Parse method & uri
-		public static final Pattern regexMethod = Pattern.compile("(\\w+) (\\S+) RTSP",Pattern.CASE_INSENSITIVE);
-		// Parse a request header
-		public static final Pattern rexegHeader = Pattern.compile("(\\S+):(.+)",Pattern.CASE_INSENSITIVE);
+		// Methods and header names are mapped to those constants when possible rather than allocated
+		private static final String[] METHODS = new String[] {
+			"OPTIONS", "DESCRIBE", "SETUP", "PLAY", "PAUSE", "TEARDOWN",
+			"GET_PARAMETER", "SET_PARAMETER", "ANNOUNCE", "RECORD"
+		};
+		private static final String[] HEADERS = new String[] {
+			"cseq", "session", "transport", "content-length", "content-type",
+			"content-base", "accept", "user-agent", "range", "require", "authorization"
+		};
 
 		public String method;
 		public String uri;
 		public HashMap<String,String> headers = new HashMap<String,String>();
-
-		/** Parse the method, uri & headers of a RTSP request */
-		public static Request parseRequest(BufferedReader input) throws IOException, IllegalStateException, SocketException {
+		public String content = "";
+		public int contentLength = 0;
+
+		/**
+		 * Parses the method, uri & headers of a RTSP request.
+		 * @param buffer The request, its headers end with an empty line
+		 * @param begin Offset of the request in the buffer
+		 * @param end End of the headers, after the empty line
+		 * @return The request, its method is null if it could not be parsed
+		 */
+		public static Request parse(byte[] buffer, int begin, int end) {
 			Request request = new Request();
-			String line;
-			Matcher matcher;
 
-			// Parsing request method & uri
-			if ((line = input.readLine())==null) throw new SocketException("Client disconnected");
-			matcher = regexMethod.matcher(line);
-			matcher.find();
-			request.method = matcher.group(1);
-			request.uri = matcher.group(2);
+			// Parsing request method & uri: METHOD SP URI SP RTSP/1.0
+			int eol = endOfLine(buffer, begin, end);
+			int sp1 = indexOf(buffer, begin, eol, (byte) ' ');
+			int sp2 = sp1 < 0 ? -1 : indexOf(buffer, sp1+1, eol, (byte) ' ');
+			if (sp2 < 0 || !startsWith(buffer, sp2+1, eol, "RTSP/")) {
+				return request;
+			}
 
 			// Parsing headers of the request
-			while ( (line = input.readLine()) != null && line.length()>3 ) {
-				matcher = rexegHeader.matcher(line);
-				matcher.find();
-				request.headers.put(matcher.group(1).toLowerCase(Locale.US),matcher.group(2));
+			for (int line = next(buffer, eol, end); line < end; line = next(buffer, eol, end)) {
+				eol = endOfLine(buffer, line, end);
+				if (eol == line) break;
+				int colon = indexOf(buffer, line, eol, (byte) ':');
+				if (colon <= line) return request;
+				int v = colon+1, ve = eol;
+				while (v < ve && buffer[v] == ' ') v++;
+				while (ve > v && buffer[ve-1] == ' ') ve--;
+				String name = toLowerCase(buffer, line, colon);
+				if (name.equals("content-length")) {
+					request.contentLength = parseInt(buffer, v, ve);
+					if (request.contentLength < 0) return request;
+				}
+				request.headers.put(name, new String(buffer, v, ve-v, ISO_8859_1));
 			}
-			if (line==null) throw new SocketException("Client disconnected");
+
+			request.uri = new String(buffer, sp1+1, sp2-sp1-1, ISO_8859_1);
+			request.method = toConstant(buffer, begin, sp1, METHODS);
+			if (request.method == null) request.method = new String(buffer, begin, sp1-begin, ISO_8859_1);
 
 			// It's not an error, it's just easier to follow what's happening in logcat with the request in red
 			Log.e(TAG,request.method+" "+request.uri);
 
 			return request;
 		}
+
+		/**
+		 * Looks for a parameter like "trackID=" or "client_port=" in a string, ignoring case.
+		 * @return The index of its value, or -1
+		 */
+		public static int indexOfParameter(String s, String name) {
+			if (s == null) return -1;
+			for (int i=0; i+name.length()<=s.length(); i++) {
+				if (s.regionMatches(true, i, name, 0, name.length())) return i+name.length();
+			}
+			return -1;
+		}
+
+		/** Parses the positive decimal number starting at index i of the string, returns -1 if there is none. */
+		public static int parseInt(String s, int i) {
+			int n = -1;
+			for (; i >= 0 && i < s.length() && s.charAt(i) >= '0' && s.charAt(i) <= '9' && n < 100000000; i++) {
+				n = (n < 0 ? 0 : n*10) + s.charAt(i)-'0';
+			}
+			return n;
+		}
+
+		private static int endOfLine(byte[] buffer, int begin, int end) {
+			int i = indexOf(buffer, begin, end, (byte) '\n');
+			if (i < 0) i = end;
+			return i > begin && buffer[i-1] == '\r' ? i-1 : i;
+		}
+
+		private static int next(byte[] buffer, int eol, int end) {
+			return eol < end && buffer[eol] == '\r' ? eol+2 : eol+1;
+		}
+
+		private static int indexOf(byte[] buffer, int begin, int end, byte b) {
+			for (int i=begin; i<end; i++) {
+				if (buffer[i] == b) return i;
+			}
+			return -1;
+		}
+
+		private static boolean startsWith(byte[] buffer, int begin, int end, String prefix) {
+			if (end-begin < prefix.length()) return false;
+			for (int i=0; i<prefix.length(); i++) {
+				if (buffer[begin+i] != prefix.charAt(i)) return false;
+			}
+			return true;
+		}
+
+		private static int parseInt(byte[] buffer, int begin, int end) {
+			if (begin == end || end-begin > 9) return -1;
+			int n = 0;
+			for (int i=begin; i<end; i++) {
+				if (buffer[i] < '0' || buffer[i] > '9') return -1;
+				n = n*10 + buffer[i]-'0';
+			}
+			return n;
+		}
+
+		/** Returns the constant equal to the bytes, ignoring case, or null. */
+		private static String toConstant(byte[] buffer, int begin, int end, String[] constants) {
+			for (String constant : constants) {
+				if (constant.length() != end-begin) continue;
+				int i = 0;
+				while (i < end-begin && (buffer[begin+i]|0x20) == (constant.charAt(i)|0x20)) i++;
+				if (i == end-begin) return constant;
+			}
+			return null;
+		}
+
+		private static String toLowerCase(byte[] buffer, int begin, int end) {
+			String constant = toConstant(buffer, begin, end, HEADERS);
+			return constant != null ? constant : new String(buffer, begin, end-begin, ISO_8859_1).toLowerCase(Locale.US);
+		}
+
+	}
+
+	/**
+	 * Extracts the requests of a client from the bytes it sent, as they arrive. Bytes are scanned only
+	 * once however many reads it takes to receive a request, several requests may arrive in a single
+	 * read (pipelining), and requests may have a body whose size is given by their Content-Length.
+	 * RTP and RTCP packets interleaved with the requests are handed to {@link #onInterleavedFrame}.
+	 */
+	static class RequestParser {
+
+		// Where to resume looking for the end of the headers
+		private int mScan = 0;
+
+		// Request waiting for its body
+		private Request mPending = null;
+
+		/** Called for each RTP or RTCP packet the client interleaves with its requests. */
+		void onInterleavedFrame(int channel, byte[] buffer, int offset, int length) {}
+
+		/**
+		 * Parses the bytes received so far, complete requests are added to the list.
+		 * @param buffer The bytes received, starting with the first request not returned yet
+		 * @param length Number of bytes received
+		 * @param requests The list the requests are added to
+		 * @return The number of bytes consumed, they must be removed from the buffer before the next call
+		 */
+		int parse(byte[] buffer, int length, List<Request> requests) {
+			int begin = 0;
+			while (true) {
+				if (mPending == null && begin < length && buffer[begin] == '$') {
+					// Interleaved packet: '$', channel and length on 16 bits
+					if (length-begin < 4) break;
+					int size = (buffer[begin+2]&0xFF)<<8 | (buffer[begin+3]&0xFF);
+					if (length-begin < 4+size) break;
+					onInterleavedFrame(buffer[begin+1]&0xFF, buffer, begin+4, size);
+					begin = mScan = begin+4+size;
+				} else if (mPending == null) {
+					int end = -1;
+					for (int i=Math.max(begin+3, mScan); i<length; i++) {
+						if (buffer[i] == '\n' && buffer[i-1] == '\r' && buffer[i-2] == '\n' && buffer[i-3] == '\r') {
+							end = i+1;
+							break;
+						}
+					}
+					if (end < 0) break;
+					Request request = Request.parse(buffer, begin, end);
+					begin = mScan = end;
+					if (request.contentLength > 0) {
+						mPending = request;
+					} else {
+						requests.add(request);
+					}
+				} else {
+					if (length-begin < mPending.contentLength) break;
+					mPending.content = new String(buffer, begin, mPending.contentLength, UTF8);
+					begin = mScan = begin+mPending.contentLength;
+					requests.add(mPending);
+					mPending = null;
+				}
+			}
+			mScan = Math.max(mScan, length)-begin;
+			return begin;
+		}
+
 	}
 
 	static class Response {
@@ -612,6 +1958,9 @@ public class RtspServer extends Service {
 		public static final String STATUS_OK = "200 OK";
 		public static final String STATUS_BAD_REQUEST = "400 Bad Request";
 		public static final String STATUS_NOT_FOUND = "404 Not Found";
+		public static final String STATUS_NOT_ENOUGH_BANDWIDTH = "453 Not Enough Bandwidth";
+		public static final String STATUS_SESSION_NOT_FOUND = "454 Session Not Found";
+		public static final String STATUS_METHOD_NOT_VALID = "455 Method Not Valid in This State";
 		public static final String STATUS_INTERNAL_SERVER_ERROR = "500 Internal Server Error";
 
 		public String status = STATUS_INTERNAL_SERVER_ERROR;
@@ -625,30 +1974,35 @@ public class RtspServer extends Service {
 		}
 
 		public Response() {
-			// Be carefull if you modify the send() method because request might be null !
+			// Be carefull if you modify the encode() method because request might be null !
 			mRequest = null;
 		}
 
-		public void send(OutputStream output) throws IOException {
-			int seqid = -1;
-
-			try {
-				seqid = Integer.parseInt(mRequest.headers.get("cseq").replace(" ",""));
-			} catch (Exception e) {
-				Log.e(TAG,"Error parsing CSeq: "+(e.getMessage()!=null?e.getMessage():""));
+		/**
+		 * Writes the response in a buffer ready to be sent.
+		 * @param builder Used to format the headers, it can be reused from one response to the next
+		 */
+		public ByteBuffer encode(StringBuilder builder) {
+			String cseq = mRequest != null ? mRequest.headers.get("cseq") : null;
+			byte[] body = content.length() > 0 ? content.getBytes(UTF8) : null;
+
+			builder.setLength(0);
+			builder.append("RTSP/1.0 ").append(status).append("\r\n");
+			builder.append("Server: ").append(SERVER_NAME).append("\r\n");
+			if (cseq != null && cseq.length() > 0) builder.append("Cseq: ").append(cseq).append("\r\n");
+			builder.append("Content-Length: ").append(body != null ? body.length : 0).append("\r\n");
+			builder.append(attributes).append("\r\n");
+
+			// Headers are plain ASCII
+			ByteBuffer buffer = ByteBuffer.allocate(builder.length()+(body != null ? body.length : 0));
+			for (int i=0; i<builder.length(); i++) {
+				buffer.put((byte) builder.charAt(i));
 			}
+			if (body != null) buffer.put(body);
+			buffer.flip();
 
-			String response = 	"RTSP/1.0 "+status+"\r\n" +
-					"Server: "+SERVER_NAME+"\r\n" +
-					(seqid>=0?("Cseq: " + seqid + "\r\n"):"") +
-					"Content-Length: " + content.length() + "\r\n" +
-					attributes +
-					"\r\n" + 
-					content;
-
-			Log.d(TAG,response.replace("\r", ""));
-
-			output.write(response.getBytes());
+			Log.d(TAG,status);
+			return buffer;
 		}
 	}
 
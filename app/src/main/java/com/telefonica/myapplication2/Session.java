@@ -23,7 +23,10 @@ package com.telefonica.myapplication2;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
 
+import net.majorkernelpanic.streaming.MediaStream;
 import net.majorkernelpanic.streaming.SessionBuilder;
 import net.majorkernelpanic.streaming.Stream;
 import net.majorkernelpanic.streaming.audio.AudioQuality;
@@ -33,6 +36,9 @@ import net.majorkernelpanic.streaming.exceptions.ConfNotSupportedException;
 import net.majorkernelpanic.streaming.exceptions.InvalidSurfaceException;
 import net.majorkernelpanic.streaming.exceptions.StorageUnavailableException;
 import net.majorkernelpanic.streaming.gl.SurfaceView;
+import net.majorkernelpanic.streaming.rtcp.ReceiverReport;
+import net.majorkernelpanic.streaming.rtcp.RtcpReceiver;
+import net.majorkernelpanic.streaming.rtp.RtpSocket;
 import net.majorkernelpanic.streaming.rtsp.RtspClient;
 import net.majorkernelpanic.streaming.video.VideoQuality;
 import net.majorkernelpanic.streaming.video.VideoStream;
@@ -40,6 +46,8 @@ import net.majorkernelpanic.streaming.video.VideoStream;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * You should instantiate this class with the {@link SessionBuilder}.<br />
@@ -102,6 +110,22 @@ public class Session {
 	 */
 	public final static int ERROR_OTHER = 0x06;
 
+	/** Minimum delay in ms between two key frames requested by clients with RTCP PLI or FIR. */
+	public final static long MIN_SYNC_FRAME_INTERVAL = 1000;
+
+	/** Use with {@link #setFecOverhead(int)} to adjust the FEC overhead to the loss reported by clients. */
+	public final static int FEC_AUTO = -1;
+
+	/** Bounds of the FEC overhead in percent when {@link #FEC_AUTO} is used. */
+	public final static int FEC_MIN_OVERHEAD = 5, FEC_MAX_OVERHEAD = 50;
+
+	/**
+	 * A client that reports more loss than this, or less bandwidth than the bitrate of the encoder,
+	 * is only sent the base temporal layer of the video stream, until it reports less than
+	 * {@link #LAYER_RESTORE_LOSS} and enough bandwidth again.
+	 */
+	public final static float LAYER_DROP_LOSS = 0.05f, LAYER_RESTORE_LOSS = 0.01f;
+
 	private String mOrigin;
 	private String mDestination;
 	private int mTimeToLive = 64;
@@ -115,6 +139,13 @@ public class Session {
 
 	private Handler mHandler;
 
+	private long mLastSyncFrame = 0;
+	private boolean mSyncFramePending = false;
+	private boolean mFecAuto = false;
+	private BitrateController mBitrateController = null;
+	// Clients that paused each track, the tracks keep streaming for them
+	private final int[] mPausedClients = new int[2];
+
 	/** 
 	 * Creates a streaming session that can be customized by adding tracks.
 	 */
@@ -186,6 +217,9 @@ public class Session {
 	void addVideoTrack(MyH264Stream track) {
 		removeVideoTrack();
 		mVideoStream = track;
+		mVideoStream.getPacketizer().getRtpSocket().getRtcpReceiver().setOnKeyFrameRequestListener(mKeyFrameRequestListener);
+		mVideoStream.getPacketizer().getRtpSocket().getRtcpReceiver().setOnReceiverReportListener(mReceiverReportListener);
+		mBitrateController = new BitrateController(mVideoStream, mHandler);
 	}
 
 	/** You probably don't need to use that directly, use the {@link SessionBuilder}. */
@@ -200,6 +234,10 @@ public class Session {
 	void removeVideoTrack() {
 		if (mVideoStream != null) {
 			mVideoStream.stopPreview();
+			mVideoStream.getPacketizer().getRtpSocket().getRtcpReceiver().setOnKeyFrameRequestListener(null);
+			mVideoStream.getPacketizer().getRtpSocket().getRtcpReceiver().setOnReceiverReportListener(null);
+			mBitrateController.stop();
+			mBitrateController = null;
 			mVideoStream = null;
 		}
 	}
@@ -345,6 +383,21 @@ public class Session {
 		return mDestination;
 	}
 
+	/**
+	 * Returns the number of clients a track is sent to, a multicast group counts as one.
+	 * @param id The id of the track (0 for audio, 1 for video)
+	 */
+	public int getDestinationCount(int id) {
+		MediaStream stream = id==0 ? mAudioStream : mVideoStream;
+		if (stream == null || !stream.isStreaming()) return 0;
+		return stream.getPacketizer().getRtpSocket().getDestinationCount();
+	}
+
+	/** Returns the time to live set with {@link #setTimeToLive(int)}. */
+	public int getTimeToLive() {
+		return mTimeToLive;
+	}
+
 	/** Returns an approximation of the bandwidth consumed by the session in bit per second. */
 	public long getBitrate() {
 		long sum = 0;
@@ -353,6 +406,16 @@ public class Session {
 		return sum;
 	}
 
+	/**
+	 * Returns the last RTCP Receiver Report sent by each client of a track:
+	 * packet loss, jitter and round trip time.
+	 * @param id The id of the track (0 for audio, 1 for video)
+	 */
+	public List<ReceiverReport> getReceiverReports(int id) {
+		if (!trackExists(id)) return new ArrayList<ReceiverReport>();
+		return id==0 ? mAudioStream.getReceiverReports() : mVideoStream.getReceiverReports();
+	}
+
 	/** Indicates if a track is currently running. */
 	public boolean isStreaming() {
 		if ( (mAudioStream!=null && mAudioStream.isStreaming()) || (mVideoStream!=null && mVideoStream.isStreaming()) )
@@ -450,6 +513,7 @@ public class Session {
 				stream.setTimeToLive(mTimeToLive);
 				stream.setDestinationAddress(destination);
 				stream.start();
+				if (stream == mVideoStream) mBitrateController.start();
 				if (getTrack(1-id) == null || getTrack(1-id).isStreaming()) {
 					postSessionStarted();
 				}
@@ -502,6 +566,164 @@ public class Session {
 
 	}	
 
+	/**
+	 * Sends a track to one more client, so that several clients share the same encoder.
+	 * The track is started with that client as its destination if it was not streaming yet.
+	 * @param id The id of the track (0 for audio, 1 for video)
+	 * @param destination The address of the client
+	 * @param rtpPort Destination port that will be used for RTP
+	 * @param rtcpPort Destination port that will be used for RTCP
+	 */
+	public synchronized void syncAddDestination(int id, String destination, int rtpPort, int rtcpPort)
+			throws Throwable {
+		MediaStream stream = id==0 ? mAudioStream : mVideoStream;
+		if (stream == null) return;
+		if (!stream.isStreaming()) {
+			mDestination = destination;
+			stream.setDestinationPorts(rtpPort, rtcpPort);
+			syncStart(id);
+		} else {
+			stream.addDestination(InetAddress.getByName(destination), rtpPort, rtcpPort);
+		}
+	}
+
+	/**
+	 * Stops sending a track to a client added with {@link #syncAddDestination(int, String, int, int)}.
+	 * The track is stopped once it has no client left.
+	 * @param id The id of the track (0 for audio, 1 for video)
+	 * @param destination The address of the client
+	 * @param rtpPort Destination port used for RTP
+	 */
+	public synchronized void syncRemoveDestination(int id, String destination, int rtpPort) throws UnknownHostException {
+		MediaStream stream = id==0 ? mAudioStream : mVideoStream;
+		if (stream == null) return;
+		if (stream.removeDestination(InetAddress.getByName(destination), rtpPort) == 0) {
+			stopUnusedTrack(id);
+		}
+	}
+
+	/**
+	 * Sends a track to one more client, interleaved in its RTSP connection. The track is started
+	 * if it was not streaming yet, see {@link #syncAddDestination(int, String, int, int)}.
+	 * @param id The id of the track (0 for audio, 1 for video)
+	 * @param writer The writer of the RTSP connection of the client
+	 * @param channel The channel used for RTP, the next one is used for RTCP
+	 */
+	public synchronized void syncAddDestination(int id, RtpSocket.InterleavedWriter writer, int channel)
+			throws Throwable {
+		MediaStream stream = id==0 ? mAudioStream : mVideoStream;
+		if (stream == null) return;
+		stream.addDestination(writer, channel);
+		if (!stream.isStreaming()) {
+			// No destination port, the track is only written to the RTSP connections of the clients
+			stream.setDestinationPorts(0, 0);
+			try {
+				syncStart(id);
+			} catch (Throwable t) {
+				stream.removeDestination(writer);
+				throw t;
+			}
+		}
+	}
+
+	/** Stops writing a track to a client added with {@link #syncAddDestination(int, RtpSocket.InterleavedWriter, int)}. */
+	public synchronized void syncRemoveDestination(int id, RtpSocket.InterleavedWriter writer) {
+		MediaStream stream = id==0 ? mAudioStream : mVideoStream;
+		if (stream == null) return;
+		if (stream.removeDestination(writer) == 0) {
+			stopUnusedTrack(id);
+		}
+	}
+
+	/**
+	 * Stops sending a track to a client that paused it. Unlike {@link #syncRemoveDestination(int, String, int)}
+	 * the track keeps streaming even if no other client receives it, so that the client can resume
+	 * right away with {@link #syncResumeDestination(int, String, int, int)}.
+	 * @param id The id of the track (0 for audio, 1 for video)
+	 * @param destination The address of the client
+	 * @param rtpPort Destination port used for RTP
+	 */
+	public synchronized void syncPauseDestination(int id, String destination, int rtpPort) throws UnknownHostException {
+		MediaStream stream = id==0 ? mAudioStream : mVideoStream;
+		if (stream == null) return;
+		stream.removeDestination(InetAddress.getByName(destination), rtpPort);
+		mPausedClients[id]++;
+	}
+
+	/** Same as {@link #syncPauseDestination(int, String, int)} for a client receiving the track interleaved. */
+	public synchronized void syncPauseDestination(int id, RtpSocket.InterleavedWriter writer) {
+		MediaStream stream = id==0 ? mAudioStream : mVideoStream;
+		if (stream == null) return;
+		stream.removeDestination(writer);
+		mPausedClients[id]++;
+	}
+
+	/**
+	 * Sends a track paused with {@link #syncPauseDestination(int, String, int)} to the client again.
+	 * Call {@link #requestSyncFrame()} afterwards so that the client does not wait for the next key frame.
+	 */
+	public synchronized void syncResumeDestination(int id, String destination, int rtpPort, int rtcpPort)
+			throws Throwable {
+		mPausedClients[id]--;
+		syncAddDestination(id, destination, rtpPort, rtcpPort);
+	}
+
+	/** Same as {@link #syncResumeDestination(int, String, int, int)} for a client receiving the track interleaved. */
+	public synchronized void syncResumeDestination(int id, RtpSocket.InterleavedWriter writer, int channel)
+			throws Throwable {
+		mPausedClients[id]--;
+		syncAddDestination(id, writer, channel);
+	}
+
+	/** Forgets a client that leaves while the track is paused, the track is stopped if nobody else receives it. */
+	public synchronized void syncRemovePausedDestination(int id) {
+		MediaStream stream = id==0 ? mAudioStream : mVideoStream;
+		if (stream == null) return;
+		mPausedClients[id]--;
+		if (stream.getPacketizer().getRtpSocket().getDestinationCount() == 0) {
+			stopUnusedTrack(id);
+		}
+	}
+
+	/** Stops a track that has no client left. */
+	private void stopUnusedTrack(int id) {
+		if (mPausedClients[id] > 0) return;
+		if (getTrack(id).isStreaming()) {
+			syncStop(id);
+			if (!isStreaming()) postSessionStopped();
+		}
+	}
+
+	/**
+	 * Sends FEC packets (RFC 5109) along with the video stream. Must be called before
+	 * {@link #getSessionDescription()} for FEC to be advertised to the clients.
+	 * @param overhead The overhead in percent, 0 disables FEC, {@link #FEC_AUTO} lets the session
+	 * adjust it to the packet loss reported by the clients
+	 */
+	public void setFecOverhead(int overhead) {
+		mFecAuto = overhead == FEC_AUTO;
+		if (mVideoStream != null) {
+			mVideoStream.setFecOverhead(mFecAuto ? FEC_MIN_OVERHEAD : overhead);
+		}
+	}
+
+	/**
+	 * Allows the session to lower the frame rate of the video stream, in addition
+	 * to its bitrate, when packets pile up in the sending queue.
+	 */
+	public void setFrameRateAdaptation(boolean enabled) {
+		if (mBitrateController != null) mBitrateController.setFrameRateAdaptation(enabled);
+	}
+
+	/**
+	 * Asks the video encoder for a key frame. Requests are coalesced so that at most one
+	 * key frame is forced every {@link #MIN_SYNC_FRAME_INTERVAL} ms, no matter how many
+	 * clients ask for one.
+	 */
+	public void requestSyncFrame() {
+		mHandler.post(mRequestSyncFrame);
+	}
+
 	/** Stops all existing streams. */
 	public void stop() {
 		mHandler.post(new Runnable() {
@@ -519,6 +741,7 @@ public class Session {
 	private void syncStop(final int id) {
 		Stream stream = id==0 ? mAudioStream : mVideoStream;
 		if (stream!=null) {
+			if (stream == mVideoStream) mBitrateController.stop();
 			stream.stop();
 		}
 	}		
@@ -697,6 +920,86 @@ public class Session {
 		});
 	}		
 
+	private RtcpReceiver.OnKeyFrameRequestListener mKeyFrameRequestListener = new RtcpReceiver.OnKeyFrameRequestListener() {
+		@Override
+		public void onKeyFrameRequest(int ssrc) {
+			requestSyncFrame();
+		}
+	};
+
+	private RtcpReceiver.OnReceiverReportListener mReceiverReportListener = new RtcpReceiver.OnReceiverReportListener() {
+		@Override
+		public void onReceiverReport(ReceiverReport report) {
+			if (mVideoStream == null) return;
+			// The encoder is shared by all the clients, we follow the one with the worst link
+			float loss = 0;
+			long remb = Long.MAX_VALUE;
+			RtpSocket socket = mVideoStream.getPacketizer().getRtpSocket();
+			for (ReceiverReport r : mVideoStream.getReceiverReports()) {
+				loss = Math.max(loss, r.fractionLost);
+				// Congested clients are only sent the base layer rather than slowing down the encoder for everybody
+				boolean base = socket.isLayered() && r.address != null && !r.bye && updateLayers(socket, r);
+				long limit = base && r.remb < Long.MAX_VALUE/H264VideoStream.TEMPORAL_LAYERS ? r.remb*H264VideoStream.TEMPORAL_LAYERS : r.remb;
+				if (r.remb > 0) remb = Math.min(remb, limit);
+			}
+			mVideoStream.setBitrateLimit(H264VideoStream.LIMIT_RECEIVER, remb != Long.MAX_VALUE ? (int) Math.min(remb, Integer.MAX_VALUE) : 0);
+			if (mFecAuto) {
+				// One FEC packet can repair one loss per group
+				int overhead = Math.max(FEC_MIN_OVERHEAD, Math.min(FEC_MAX_OVERHEAD, (int) Math.ceil(loss*200)));
+				mVideoStream.setFecOverhead(overhead);
+			}
+		}
+	};
+
+	/**
+	 * Sends only the base temporal layer to a client whose link can't take the whole video stream,
+	 * and all the layers again once it can. Returns true if the client is only sent the base layer.
+	 * Clients that get the stream in their RTSP connection are found by the connection their reports came in.
+	 */
+	private boolean updateLayers(RtpSocket socket, ReceiverReport report) {
+		long bitrate = mVideoStream.getEncoderBitrate();
+		boolean base = (report.writer != null ? socket.getMaxLayer(report.writer) : socket.getMaxLayer(report.address, report.port)) == 0;
+		if (!base && (report.fractionLost > LAYER_DROP_LOSS || (report.remb > 0 && report.remb < bitrate))) {
+			Log.i(TAG,"Only the base layer is sent to "+report.address.getHostAddress()+":"+report.port);
+			setMaxLayer(socket, report, 0);
+			return true;
+		}
+		if (base && report.fractionLost < LAYER_RESTORE_LOSS && (report.remb == 0 || report.remb >= bitrate)) {
+			Log.i(TAG,"All the layers are sent to "+report.address.getHostAddress()+":"+report.port+" again");
+			setMaxLayer(socket, report, Integer.MAX_VALUE);
+			return false;
+		}
+		return base;
+	}
+
+	private static void setMaxLayer(RtpSocket socket, ReceiverReport report, int maxLayer) {
+		if (report.writer != null) {
+			socket.setMaxLayer(report.writer, maxLayer);
+		} else {
+			socket.setMaxLayer(report.address, report.port, maxLayer);
+		}
+	}
+
+	private Runnable mRequestSyncFrame = new Runnable() {
+		@Override
+		public void run() {
+			// A key frame is already on its way
+			if (mSyncFramePending) return;
+			long delay = mLastSyncFrame+MIN_SYNC_FRAME_INTERVAL-SystemClock.elapsedRealtime();
+			mSyncFramePending = true;
+			mHandler.postDelayed(mForceSyncFrame, delay>0 ? delay : 0);
+		}
+	};
+
+	private Runnable mForceSyncFrame = new Runnable() {
+		@Override
+		public void run() {
+			mSyncFramePending = false;
+			mLastSyncFrame = SystemClock.elapsedRealtime();
+			if (mVideoStream != null) mVideoStream.requestSyncFrame();
+		}
+	};
+
 	private Runnable mUpdateBitrate = new Runnable() {
 		@Override
 		public void run() {
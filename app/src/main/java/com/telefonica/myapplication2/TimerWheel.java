@@ -0,0 +1,72 @@
+package com.telefonica.myapplication2;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A hashed timer wheel: timers are hashed by deadline into a ring of slots, and each tick only
+ * looks at the timers of one slot, however many timers there are. Deadlines can be pushed back
+ * without touching the wheel, a timer found in its slot before its deadline is simply moved to
+ * the slot of its new deadline. Not thread safe.
+ */
+class TimerWheel<T extends TimerWheel.Timer> {
+
+	/** Something that expires at some point. */
+	interface Timer {
+		/** Returns the deadline in ms, see {@link android.os.SystemClock#elapsedRealtime()}. */
+		long getDeadline();
+	}
+
+	private final long mTick;
+	private final List<List<T>> mSlots;
+	private long mCurrent;
+
+	/**
+	 * @param slots The number of slots of the wheel
+	 * @param tick The duration of a slot in ms
+	 * @param now The current time in ms
+	 */
+	TimerWheel(int slots, long tick, long now) {
+		mTick = tick;
+		mSlots = new ArrayList<List<T>>(slots);
+		for (int i=0; i<slots; i++) {
+			mSlots.add(new ArrayList<T>());
+		}
+		mCurrent = now/tick;
+	}
+
+	/** Adds a timer, it stays in the wheel until it expires. */
+	void add(T timer) {
+		// Timers due during the current tick are handled by the next one
+		long tick = Math.max(timer.getDeadline()/mTick, mCurrent+1);
+		mSlots.get((int) (tick % mSlots.size())).add(timer);
+	}
+
+	/**
+	 * Moves the wheel forward up to now.
+	 * @return The timers that have expired, they are removed from the wheel
+	 */
+	List<T> advance(long now) {
+		List<T> expired = null;
+		long last = now/mTick;
+		// No need to go around the wheel more than once
+		if (last-mCurrent > mSlots.size()) mCurrent = last-mSlots.size();
+		while (mCurrent < last) {
+			mCurrent++;
+			int index = (int) (mCurrent % mSlots.size());
+			List<T> slot = mSlots.get(index);
+			if (slot.isEmpty()) continue;
+			mSlots.set(index, new ArrayList<T>());
+			for (T timer : slot) {
+				if (timer.getDeadline() <= now) {
+					if (expired == null) expired = new ArrayList<T>();
+					expired.add(timer);
+				} else {
+					add(timer);
+				}
+			}
+		}
+		return expired != null ? expired : new ArrayList<T>(0);
+	}
+
+}
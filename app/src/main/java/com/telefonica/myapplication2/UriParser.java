@@ -33,8 +33,11 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.URI;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
 
 import static net.majorkernelpanic.streaming.SessionBuilder.AUDIO_AAC;
 import static net.majorkernelpanic.streaming.SessionBuilder.AUDIO_AMRNB;
@@ -49,6 +52,9 @@ import static net.majorkernelpanic.streaming.SessionBuilder.VIDEO_NONE;
 public class UriParser {
 
 	public final static String TAG = "UriParser";
+
+	/** The multicast group used when the client asks for multicast without specifying a group. */
+	public final static String DEFAULT_MULTICAST_GROUP = "228.5.6.7";
 	
 	/**
 	 * Configures a Session according to the given URI.
@@ -65,6 +71,7 @@ public class UriParser {
 	public static Session parse(String uri) throws IllegalStateException, IOException {		
 		MySessionBuilder builder = MySessionBuilder.getInstance().clone();
 		byte audioApi = 0, videoApi = 0;
+		int fec = 0;
 
 		List<NameValuePair> params = URLEncodedUtils.parse(URI.create(uri),"UTF-8");
 		if (params.size()>0) {
@@ -107,7 +114,7 @@ public class UriParser {
 					}
 					else {
 						// Default multicast address
-						builder.setDestination("228.5.6.7");
+						builder.setDestination(DEFAULT_MULTICAST_GROUP);
 					}
 				}
 
@@ -154,6 +161,20 @@ public class UriParser {
 					}
 				}
 
+				// FEC -> the client can ask for FEC packets, fec=auto or the overhead in percent
+				else if (param.getName().equalsIgnoreCase("fec")) {
+					if (param.getValue()==null || param.getValue().equalsIgnoreCase("auto")) {
+						fec = Session.FEC_AUTO;
+					} else {
+						try {
+							fec = Integer.parseInt(param.getValue());
+							if (fec<0 || fec>100) throw new IllegalStateException();
+						} catch (Exception e) {
+							throw new IllegalStateException("The FEC overhead must be between 0 and 100 !");
+						}
+					}
+				}
+
 				// H.264
 				else if (param.getName().equalsIgnoreCase("h264")) {
 					VideoQuality quality = VideoQuality.parseQuality(param.getValue());
@@ -197,9 +218,42 @@ public class UriParser {
 		if (audioApi>0 && session.getAudioTrack() != null) {
 			session.getAudioTrack().setStreamingMethod(audioApi);
 		}
+
+		if (fec != 0) {
+			session.setFecOverhead(fec);
+		}
 		
 		return session;
 
 	}
 
+	/**
+	 * Returns a key that identifies the stream an URI asks for, whatever the order and the case
+	 * of its parameters, so that the clients asking for the same stream can share a Session.
+	 * A multicast group can only carry one stream, so the key of a multicast stream is its group:
+	 * the first client to join a group decides what is streamed to it.
+	 * @param uri The URI
+	 * @return The key, or null if the stream can't be shared because the URI sets its unicast destination
+	 */
+	public static String getSessionKey(String uri) {
+		List<NameValuePair> params = URLEncodedUtils.parse(URI.create(uri),"UTF-8");
+		for (NameValuePair param : params) {
+			if (param.getName().equalsIgnoreCase("multicast")) {
+				return "multicast="+(param.getValue()!=null ? param.getValue().toLowerCase(Locale.US) : DEFAULT_MULTICAST_GROUP);
+			}
+		}
+		List<String> keys = new ArrayList<String>(params.size());
+		for (NameValuePair param : params) {
+			if (param.getName().equalsIgnoreCase("unicast")) return null;
+			keys.add(param.getName().toLowerCase(Locale.US)+(param.getValue()!=null ? "="+param.getValue().toLowerCase(Locale.US) : ""));
+		}
+		Collections.sort(keys);
+		StringBuilder key = new StringBuilder();
+		for (String k : keys) {
+			if (key.length()>0) key.append('&');
+			key.append(k);
+		}
+		return key.toString();
+	}
+
 }
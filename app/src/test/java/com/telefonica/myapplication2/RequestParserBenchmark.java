@@ -0,0 +1,72 @@
+package com.telefonica.myapplication2;
+
+import net.majorkernelpanic.streaming.Benchmark;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+/**
+ * Measures how many requests {@link RtspServer.RequestParser} parses per second on one thread, the
+ * selector thread parses the requests of all the clients. See {@link Benchmark}.
+ */
+public class RequestParserBenchmark {
+
+	private final static Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+	private final static int ROUNDS = 20000;
+
+	// What a player like VLC sends to start a stream, then a keep-alive
+	private final static String SESSION =
+			"OPTIONS rtsp://192.168.1.10:8086/ RTSP/1.0\r\nCSeq: 2\r\nUser-Agent: LibVLC/3.0.18 (LIVE555 Streaming Media v2016.11.28)\r\n\r\n"+
+			"DESCRIBE rtsp://192.168.1.10:8086/ RTSP/1.0\r\nCSeq: 3\r\nUser-Agent: LibVLC/3.0.18 (LIVE555 Streaming Media v2016.11.28)\r\nAccept: application/sdp\r\n\r\n"+
+			"SETUP rtsp://192.168.1.10:8086/trackID=1 RTSP/1.0\r\nCSeq: 4\r\nUser-Agent: LibVLC/3.0.18 (LIVE555 Streaming Media v2016.11.28)\r\nTransport: RTP/AVP;unicast;client_port=50070-50071\r\n\r\n"+
+			"PLAY rtsp://192.168.1.10:8086/ RTSP/1.0\r\nCSeq: 5\r\nUser-Agent: LibVLC/3.0.18 (LIVE555 Streaming Media v2016.11.28)\r\nSession: 1185d20035702ca\r\nRange: npt=0.000-\r\n\r\n"+
+			"GET_PARAMETER rtsp://192.168.1.10:8086/ RTSP/1.0\r\nCSeq: 6\r\nUser-Agent: LibVLC/3.0.18 (LIVE555 Streaming Media v2016.11.28)\r\nSession: 1185d20035702ca\r\n\r\n";
+	private final static int REQUESTS = 5;
+
+	@Before
+	public void setUp() {
+		Benchmark.assumeEnabled();
+	}
+
+	/** Returns the requests parsed per second, the bytes arriving in reads of at most chunk bytes. */
+	private static double requestsPerSecond(final int chunk) {
+		final byte[] data = SESSION.getBytes(ISO_8859_1);
+		final byte[] buffer = new byte[RtspServer.MAX_REQUEST_SIZE];
+		final ArrayList<RtspServer.Request> requests = new ArrayList<RtspServer.Request>();
+		long elapsed = Benchmark.measure(new Runnable() {
+			@Override
+			public void run() {
+				for (int r=0; r<ROUNDS; r++) {
+					RtspServer.RequestParser parser = new RtspServer.RequestParser();
+					requests.clear();
+					int length = 0;
+					for (int i=0; i<data.length; i+=chunk) {
+						int n = Math.min(chunk, data.length-i);
+						System.arraycopy(data, i, buffer, length, n);
+						length += n;
+						int begin = parser.parse(buffer, length, requests);
+						System.arraycopy(buffer, begin, buffer, 0, length-begin);
+						length -= begin;
+					}
+				}
+			}
+		});
+		assertEquals(REQUESTS, requests.size());
+		return (double) ROUNDS*REQUESTS/elapsed*1e9;
+	}
+
+	@Test
+	public void requestsPerSecond() {
+		// Pipelined, one request per read and requests split by small TCP segments
+		for (int chunk : new int[] {SESSION.length(), 160, 16}) {
+			Benchmark.report("RTSP requests in reads of %4d bytes: %8.0f requests/s on one core",
+					chunk, requestsPerSecond(chunk));
+		}
+	}
+
+}
@@ -0,0 +1,180 @@
+package com.telefonica.myapplication2;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedList;
+
+import static org.junit.Assert.*;
+
+/**
+ * Feeds client bytes to {@link RtspServer.RequestParser} through a buffer handled like the one of a
+ * connection: reads of a few bytes at most, and the consumed bytes compacted away after each parse.
+ */
+public class RequestParserTest {
+
+	private final static Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+	private final LinkedList<RtspServer.Request> mRequests = new LinkedList<RtspServer.Request>();
+	private final ArrayList<String> mFrames = new ArrayList<String>();
+	private RtspServer.RequestParser mParser;
+	private ByteBuffer mInput;
+
+	@Before
+	public void setUp() {
+		mInput = ByteBuffer.allocate(RtspServer.MAX_REQUEST_SIZE);
+		mParser = new RtspServer.RequestParser() {
+			@Override
+			void onInterleavedFrame(int channel, byte[] buffer, int offset, int length) {
+				mFrames.add(channel+":"+new String(buffer, offset, length, ISO_8859_1));
+			}
+		};
+	}
+
+	/**
+	 * Hands the bytes to the parser in reads of at most chunk bytes.
+	 * @return False if the buffer filled up, the connection would be closed
+	 */
+	private boolean feed(byte[] data, int chunk) {
+		for (int i=0; i<data.length; i+=chunk) {
+			int n = Math.min(Math.min(chunk, data.length-i), mInput.remaining());
+			mInput.put(data, i, n);
+			int begin = mParser.parse(mInput.array(), mInput.position(), mRequests);
+			mInput.limit(mInput.position());
+			mInput.position(begin);
+			mInput.compact();
+			if (!mInput.hasRemaining()) return false;
+			i -= chunk-n;
+		}
+		return true;
+	}
+
+	private static byte[] concat(Object... parts) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (Object part : parts) {
+			out.write(part instanceof String ? ((String) part).getBytes(ISO_8859_1) : (byte[]) part);
+		}
+		return out.toByteArray();
+	}
+
+	private static byte[] frame(int channel, String payload) {
+		byte[] data = payload.getBytes(ISO_8859_1);
+		byte[] frame = new byte[4+data.length];
+		frame[0] = '$';
+		frame[1] = (byte) channel;
+		frame[2] = (byte) (data.length >> 8);
+		frame[3] = (byte) data.length;
+		System.arraycopy(data, 0, frame, 4, data.length);
+		return frame;
+	}
+
+	private final static String OPTIONS = "OPTIONS rtsp://host/ RTSP/1.0\r\nCSeq: 1\r\n\r\n";
+	private final static String SETUP = "SETUP rtsp://host/trackID=1 RTSP/1.0\r\nCSeq: 2\r\nTransport:  RTP/AVP/TCP;interleaved=2-3 \r\n\r\n";
+	private final static String ANNOUNCE = "ANNOUNCE rtsp://host/live RTSP/1.0\r\nCSeq: 3\r\nContent-Type: application/sdp\r\nContent-Length: 13\r\n\r\nv=0\r\ns=live\r\n";
+
+	private void assertRequests(int chunk) {
+		assertEquals("chunk "+chunk, 3, mRequests.size());
+		RtspServer.Request options = mRequests.get(0), setup = mRequests.get(1), announce = mRequests.get(2);
+		assertEquals("OPTIONS", options.method);
+		assertEquals("rtsp://host/", options.uri);
+		assertEquals("1", options.headers.get("cseq"));
+		assertEquals("SETUP", setup.method);
+		assertEquals("rtsp://host/trackID=1", setup.uri);
+		assertEquals("RTP/AVP/TCP;interleaved=2-3", setup.headers.get("transport"));
+		assertEquals("ANNOUNCE", announce.method);
+		assertEquals(13, announce.contentLength);
+		assertEquals("application/sdp", announce.headers.get("content-type"));
+		assertEquals("v=0\r\ns=live\r\n", announce.content);
+	}
+
+	@Test
+	public void pipelinedRequests() throws IOException {
+		assertTrue(feed(concat(OPTIONS, SETUP, ANNOUNCE), Integer.MAX_VALUE));
+		assertRequests(0);
+		assertEquals(0, mInput.position());
+	}
+
+	@Test
+	public void splitReads() throws IOException {
+		byte[] data = concat(OPTIONS, SETUP, ANNOUNCE);
+		for (int chunk=1; chunk<=data.length; chunk++) {
+			setUp();
+			mRequests.clear();
+			assertTrue(feed(data, chunk));
+			assertRequests(chunk);
+			assertEquals(0, mInput.position());
+		}
+	}
+
+	@Test
+	public void bodyNotReceivedYet() throws IOException {
+		byte[] data = concat(ANNOUNCE);
+		assertTrue(feed(data, data.length-1));
+		assertEquals(1, mRequests.size());
+		mRequests.clear();
+		// The body is held back until all of it has arrived, even if it looks like the end of headers
+		assertTrue(feed(concat("ANNOUNCE rtsp://host/ RTSP/1.0\r\nContent-Length: 6\r\n\r\n\r\n\r\n"), Integer.MAX_VALUE));
+		assertEquals(0, mRequests.size());
+		assertTrue(feed(concat("ab", OPTIONS), Integer.MAX_VALUE));
+		assertEquals(2, mRequests.size());
+		assertEquals("\r\n\r\nab", mRequests.get(0).content);
+		assertEquals("OPTIONS", mRequests.get(1).method);
+	}
+
+	@Test
+	public void interleavedFramesBetweenRequests() throws IOException {
+		// The RTCP payload contains what looks like the end of headers, it must not be taken for one
+		byte[] data = concat(frame(1, "rr\r\n\r\n"), OPTIONS, frame(3, ""), frame(3, "$"), SETUP, frame(1, "x"), ANNOUNCE, frame(5, "last"));
+		for (int chunk : new int[] {1, 2, 5, 13, data.length}) {
+			setUp();
+			mRequests.clear();
+			mFrames.clear();
+			assertTrue(feed(data, chunk));
+			assertRequests(chunk);
+			assertEquals("chunk "+chunk, "[1:rr\r\n\r\n, 3:, 3:$, 1:x, 5:last]", mFrames.toString());
+		}
+	}
+
+	@Test
+	public void malformedRequests() throws IOException {
+		assertTrue(feed(concat("GARBAGE\r\n\r\n",
+				"PLAY rtsp://host/ RTSP/1.0\r\nno colon\r\n\r\n",
+				"PLAY rtsp://host/ RTSP/1.0\r\nContent-Length: 12345678901\r\n\r\n",
+				"get_parameter rtsp://host/ RTSP/1.0\r\nX-Custom: A\r\n\r\n"), 7));
+		assertEquals(4, mRequests.size());
+		assertNull(mRequests.get(0).method);
+		assertNull(mRequests.get(1).method);
+		// An unparsable length can't tell where the next request starts, it's a bad request
+		assertNull(mRequests.get(2).method);
+		assertEquals("GET_PARAMETER", mRequests.get(3).method);
+		assertEquals("A", mRequests.get(3).headers.get("x-custom"));
+	}
+
+	@Test
+	public void oversizedHeaders() throws IOException {
+		StringBuilder request = new StringBuilder("DESCRIBE rtsp://host/ RTSP/1.0\r\n");
+		while (request.length() < RtspServer.MAX_REQUEST_SIZE) request.append("X-Padding: 0123456789\r\n");
+		request.append("\r\n");
+		assertFalse(feed(concat(OPTIONS, request.toString()), 1000));
+		// What came before is still parsed
+		assertEquals(1, mRequests.size());
+		assertEquals("OPTIONS", mRequests.get(0).method);
+	}
+
+	@Test
+	public void oversizedBody() throws IOException {
+		// The headers are consumed before the body arrives, a body as big as the buffer still fits
+		int size = RtspServer.MAX_REQUEST_SIZE;
+		assertTrue(feed(concat("ANNOUNCE rtsp://host/ RTSP/1.0\r\nContent-Length: "+size+"\r\n\r\n", new byte[size]), 1500));
+		assertEquals(1, mRequests.size());
+		assertEquals(size, mRequests.poll().content.length());
+		assertFalse(feed(concat("ANNOUNCE rtsp://host/ RTSP/1.0\r\nContent-Length: "+(size+1)+"\r\n\r\n", new byte[size+1]), 1500));
+		assertEquals(0, mRequests.size());
+	}
+
+}
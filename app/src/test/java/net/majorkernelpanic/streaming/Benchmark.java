@@ -0,0 +1,33 @@
+package net.majorkernelpanic.streaming;
+
+import org.junit.Assume;
+
+import java.util.Locale;
+
+/**
+ * Helpers of the benchmarks of the unit tests. They are skipped unless the tests are run with
+ * {@code ./gradlew test -Pbenchmark}, their results depend on the host and are only printed:
+ * run them on the JVM to compare implementations, a phone is several times slower.
+ */
+public final class Benchmark {
+
+	private Benchmark() {}
+
+	/** Skips the calling test unless benchmarks are enabled, to be called from a {@code @Before} method. */
+	public static void assumeEnabled() {
+		Assume.assumeTrue("Benchmarks are run with -Pbenchmark", Boolean.getBoolean("benchmark"));
+	}
+
+	/** Runs the task once to warm up the JIT, then again, and returns how long the second run took in ns. */
+	public static long measure(Runnable task) {
+		task.run();
+		long start = System.nanoTime();
+		task.run();
+		return System.nanoTime()-start;
+	}
+
+	public static void report(String format, Object... args) {
+		System.out.println(String.format(Locale.US, format, args));
+	}
+
+}
@@ -0,0 +1,267 @@
+package net.majorkernelpanic.streaming.mp4;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Reads the sample tables of a track built from hand-made box payloads. The payloads are those
+ * of full boxes, version and flags included, like {@link MP4Parser} hands them to the track.
+ */
+public class MP4TrackTest {
+
+	// 10 samples, in chunks of 3, 3, 2, 1 and 1 samples
+	private final static long[] CHUNKS = {1000, 2000, 3000, 4000, 5000};
+	private final static long[] OFFSETS = {1000, 1100, 1201, 2000, 2103, 2207, 3000, 3106, 4000, 5000};
+	private final static long[] DTS = {0, 1000, 2000, 3000, 4000, 5000, 7000, 9000, 10000, 11000};
+	private final static long[] CTS = {2000, 1000, 2000, 2500, 3500, 4500, 6500, 8500, 9500, 10500};
+
+	private MP4Track mTrack;
+
+	/** Builds the payload of a full box from 32 bits words, the first one is the version and the flags. */
+	private static ByteBuffer box(int... words) {
+		ByteBuffer box = ByteBuffer.allocate(4*words.length);
+		for (int word : words) box.putInt(word);
+		box.clear();
+		return box;
+	}
+
+	private static ByteBuffer co64(long... offsets) {
+		ByteBuffer box = ByteBuffer.allocate(8+8*offsets.length);
+		box.putInt(0).putInt(offsets.length);
+		for (long offset : offsets) box.putLong(offset);
+		box.clear();
+		return box;
+	}
+
+	private static ByteBuffer stco(long... offsets) {
+		ByteBuffer box = ByteBuffer.allocate(8+4*offsets.length);
+		box.putInt(0).putInt(offsets.length);
+		for (long offset : offsets) box.putInt((int) offset);
+		box.clear();
+		return box;
+	}
+
+	@Before
+	public void setUp() {
+		mTrack = new MP4Track();
+		mTrack.setBox("stsd", box(0, 0), 0);
+		mTrack.setBox("stsz", box(0, 0, 10, 100, 101, 102, 103, 104, 105, 106, 107, 108, 109), 0);
+		// first_chunk, samples_per_chunk, sample_description_index
+		mTrack.setBox("stsc", box(0, 3, 1, 3, 1, 3, 2, 1, 4, 1, 1), 0);
+		mTrack.setBox("stco", stco(CHUNKS), 0);
+		// sample_count, sample_delta
+		mTrack.setBox("stts", box(0, 3, 5, 1000, 2, 2000, 3, 1000), 0);
+		// Negative composition offsets in version 1
+		mTrack.setBox("ctts", box(0x01000000, 3, 1, 2000, 2, 0, 7, -500), 0);
+		mTrack.setBox("stss", box(0, 3, 1, 5, 9), 0);
+		assertTrue(mTrack.isComplete());
+	}
+
+	private void assertSample(int sample, MP4Track.Cursor cursor) {
+		assertEquals(sample, cursor.sample);
+		assertEquals("offset of "+sample, OFFSETS[sample], cursor.offset);
+		assertEquals("size of "+sample, 100+sample, cursor.size);
+		assertEquals("dts of "+sample, DTS[sample], cursor.dts);
+		assertEquals("cts of "+sample, CTS[sample], cursor.cts);
+	}
+
+	private void walkAndSeek() {
+		MP4Track.Cursor cursor = mTrack.cursor(0);
+		for (int i=0; i<10; i++) {
+			assertSample(i, cursor);
+			assertEquals(i < 9, cursor.next());
+			// Seeking anywhere gives the same cursor as walking there
+			MP4Track.Cursor seek = mTrack.cursor(i);
+			assertSample(i, seek);
+			seek.next();
+			assertEquals(cursor.sample, seek.sample);
+			assertEquals(cursor.offset, seek.offset);
+			assertEquals(cursor.dts, seek.dts);
+		}
+		assertEquals(10, cursor.sample);
+		assertEquals(0, cursor.size);
+		assertEquals(12000, cursor.dts);
+		assertFalse(cursor.next());
+	}
+
+	@Test
+	public void walkAndSeekWithStco() {
+		walkAndSeek();
+	}
+
+	@Test
+	public void walkAndSeekWithCo64() {
+		// Offsets above 4 GB, the samples are placed as with the stco box
+		long base = 5L << 32;
+		long[] chunks = new long[CHUNKS.length];
+		for (int i=0; i<chunks.length; i++) chunks[i] = base+CHUNKS[i];
+		mTrack.setBox("co64", co64(chunks), 0);
+		MP4Track.Cursor cursor = mTrack.cursor(0);
+		for (int i=0; i<10; i++, cursor.next()) {
+			assertEquals(base+OFFSETS[i], cursor.offset);
+			assertEquals(base+OFFSETS[i], mTrack.cursor(i).offset);
+		}
+	}
+
+	@Test
+	public void seekOutOfTheTrack() {
+		assertSample(0, mTrack.cursor(-5));
+		MP4Track.Cursor cursor = mTrack.cursor(42);
+		assertEquals(10, cursor.sample);
+		assertEquals(12000, cursor.dts);
+		assertFalse(cursor.next());
+	}
+
+	@Test
+	public void lastStscEntryRunsToTheEnd() {
+		// A single entry describes all the chunks
+		mTrack.setBox("stsc", box(0, 1, 1, 4, 1), 0);
+		mTrack.setBox("stco", stco(1000, 2000, 3000), 0);
+		MP4Track.Cursor cursor = mTrack.cursor(0);
+		for (int i=0; i<10; i++, cursor.next()) {
+			long offset = 1000*(i/4+1);
+			for (int j=i/4*4; j<i; j++) offset += 100+j;
+			assertEquals(offset, cursor.offset);
+			assertEquals(offset, mTrack.cursor(i).offset);
+		}
+	}
+
+	@Test
+	public void wellFormedTablesPassTheCheck() throws IOException {
+		mTrack.check();
+		mTrack.setBox("stsc", box(0, 1, 1, 4, 1), 0);
+		mTrack.setBox("stco", stco(1000, 2000, 3000), 0);
+		mTrack.check();
+	}
+
+	@Test(expected = IOException.class)
+	public void lastStscEntryWithoutSamples() throws IOException {
+		mTrack.setBox("stsc", box(0, 2, 1, 3, 1, 4, 0, 1), 0);
+		mTrack.check();
+	}
+
+	@Test(expected = IOException.class)
+	public void stscChunksNotIncreasing() throws IOException {
+		mTrack.setBox("stsc", box(0, 2, 3, 3, 1, 1, 4, 1), 0);
+		mTrack.check();
+	}
+
+	@Test(expected = IOException.class)
+	public void samplesOutOfTheChunks() throws IOException {
+		// 3 chunks of 3 samples for 10 samples
+		mTrack.setBox("stsc", box(0, 1, 1, 3, 1), 0);
+		mTrack.setBox("stco", stco(1000, 2000, 3000), 0);
+		mTrack.check();
+	}
+
+	@Test(expected = IOException.class)
+	public void sttsShorterThanTheTrack() throws IOException {
+		mTrack.setBox("stts", box(0, 2, 5, 1000, 2, 2000), 0);
+		mTrack.check();
+	}
+
+	@Test(expected = IOException.class)
+	public void emptySttsRun() throws IOException {
+		mTrack.setBox("stts", box(0, 4, 5, 1000, 0, 500, 2, 2000, 3, 1000), 0);
+		mTrack.check();
+	}
+
+	@Test(expected = IOException.class)
+	public void cttsShorterThanTheTrack() throws IOException {
+		mTrack.setBox("ctts", box(0, 2, 1, 2000, 2, 0), 0);
+		mTrack.check();
+	}
+
+	@Test(expected = IOException.class)
+	public void truncatedStsz() throws IOException {
+		mTrack.setBox("stsz", box(0, 0, 10, 100, 101), 0);
+		mTrack.check();
+	}
+
+	@Test(expected = IOException.class)
+	public void truncatedStsc() throws IOException {
+		mTrack.setBox("stsc", box(0, 3, 1, 3, 1), 0);
+		mTrack.check();
+	}
+
+	@Test
+	public void constantSampleSize() {
+		mTrack.setBox("stsz", box(0, 500, 10), 0);
+		MP4Track.Cursor cursor = mTrack.cursor(4);
+		assertEquals(500, cursor.size);
+		assertEquals(2500, cursor.offset);
+		cursor.next();
+		assertEquals(3000, cursor.offset);
+	}
+
+	@Test
+	public void sampleTimes() {
+		for (int i=0; i<10; i++) {
+			assertEquals(DTS[i], mTrack.getSampleTime(i));
+			assertEquals(i, mTrack.getSampleAt(DTS[i]));
+			assertEquals(i, mTrack.getSampleFrom(DTS[i]));
+			if (i > 0) {
+				assertEquals(i-1, mTrack.getSampleAt(DTS[i]-1));
+				assertEquals(i, mTrack.getSampleFrom(DTS[i-1]+1));
+			}
+		}
+		assertEquals(12000, mTrack.getSampleTime(10));
+		assertEquals(9, mTrack.getSampleAt(99999));
+		assertEquals(10, mTrack.getSampleFrom(11001));
+	}
+
+	@Test
+	public void syncSamples() {
+		int[] sync = {0, 0, 0, 0, 4, 4, 4, 4, 8, 8};
+		for (int i=0; i<10; i++) {
+			assertEquals("sync of "+i, sync[i], mTrack.getSyncSample(i));
+			assertEquals(sync[i] == i, mTrack.isSyncSample(i));
+			assertEquals(sync[i] == i, mTrack.cursor(i).isSync());
+		}
+		assertEquals(8, mTrack.getSyncSample(1000));
+	}
+
+	@Test
+	public void noSyncSampleBefore() {
+		// The first sync sample is sample 3, the samples before it fall back to the first sample
+		mTrack.setBox("stss", box(0, 1, 4), 0);
+		assertEquals(0, mTrack.getSyncSample(2));
+		assertEquals(3, mTrack.getSyncSample(5));
+		assertFalse(mTrack.isSyncSample(0));
+	}
+
+	@Test
+	public void allSamplesAreSyncWithoutStss() {
+		MP4Track track = new MP4Track();
+		track.setBox("stsz", box(0, 0, 3, 1, 1, 1), 0);
+		for (int i=0; i<3; i++) {
+			assertTrue(track.isSyncSample(i));
+			assertEquals(i, track.getSyncSample(i));
+		}
+	}
+
+	@Test
+	public void syncSampleSearchMatchesLinear() {
+		// Sync samples at irregular intervals in a long table
+		int count = 1000;
+		int[] words = new int[2+count];
+		int sample = 1;
+		for (int i=0; i<count; i++) {
+			words[2+i] = sample;
+			sample += 1+(i*7)%13;
+		}
+		words[1] = count;
+		mTrack.setBox("stss", box(words), 0);
+		int last = 0;
+		for (int i=0, j=0; i<sample; i++) {
+			if (j < count && words[2+j]-1 == i) last = words[2+j++]-1;
+			assertEquals(last, mTrack.getSyncSample(i));
+		}
+	}
+
+}
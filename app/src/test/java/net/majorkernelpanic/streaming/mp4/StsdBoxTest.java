@@ -0,0 +1,145 @@
+package net.majorkernelpanic.streaming.mp4;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Parses hand-made stsd payloads whose sample entry holds an avcC or an hvcC box.
+ */
+public class StsdBoxTest {
+
+	private final static byte[] SPS1 = {0x67, 0x64, 0x00, 0x28, (byte) 0xAC};
+	private final static byte[] SPS2 = {0x67, 0x64, 0x00, 0x28, (byte) 0xAD, 0x01};
+	private final static byte[] PPS = {0x68, (byte) 0xEE, 0x3C, (byte) 0x80};
+	private final static byte[] VPS = {0x40, 0x01, 0x0C, 0x01};
+	private final static byte[] HEVC_SPS1 = {0x42, 0x01, 0x01, 0x01, 0x60};
+	private final static byte[] HEVC_SPS2 = {0x42, 0x01, 0x01, 0x02};
+	private final static byte[] HEVC_PPS = {0x44, 0x01, (byte) 0xC1};
+	private final static byte[] SEI = {0x4E, 0x01, 0x05};
+
+	/** Returns the payload of a stsd box with one visual sample entry holding the boxes. */
+	private static ByteBuffer stsd(String type, byte[]... boxes) throws IOException {
+		ByteArrayOutputStream entry = new ByteArrayOutputStream();
+		// The fields of the VisualSampleEntry that follow its size and type
+		entry.write(new byte[78]);
+		for (byte[] box : boxes) entry.write(box);
+		ByteBuffer stsd = ByteBuffer.allocate(16+entry.size());
+		stsd.putInt(0).putInt(1);
+		stsd.putInt(8+entry.size()).put(type.getBytes("ISO-8859-1"));
+		stsd.put(entry.toByteArray());
+		stsd.clear();
+		return stsd;
+	}
+
+	private static byte[] box(String type, byte[] payload) throws IOException {
+		ByteArrayOutputStream box = new ByteArrayOutputStream();
+		int size = 8+payload.length;
+		box.write(new byte[] {(byte) (size >> 24), (byte) (size >> 16), (byte) (size >> 8), (byte) size});
+		box.write(type.getBytes("ISO-8859-1"));
+		box.write(payload);
+		return box.toByteArray();
+	}
+
+	private static void writeNalUnit(ByteArrayOutputStream out, byte[] nalu) {
+		out.write(nalu.length >> 8);
+		out.write(nalu.length);
+		out.write(nalu, 0, nalu.length);
+	}
+
+	private static byte[] avcC(int lengthSize, byte[][] sps, byte[][] pps) {
+		ByteArrayOutputStream avcC = new ByteArrayOutputStream();
+		avcC.write(1);
+		avcC.write(0x64);
+		avcC.write(0x00);
+		avcC.write(0x28);
+		avcC.write(0xFC | lengthSize-1);
+		avcC.write(0xE0 | sps.length);
+		for (byte[] nalu : sps) writeNalUnit(avcC, nalu);
+		avcC.write(pps.length);
+		for (byte[] nalu : pps) writeNalUnit(avcC, nalu);
+		return avcC.toByteArray();
+	}
+
+	private static byte[] hvcC(int lengthSize, int[] types, byte[][][] arrays) {
+		ByteArrayOutputStream hvcC = new ByteArrayOutputStream();
+		hvcC.write(1);
+		hvcC.write(new byte[20], 0, 20);
+		hvcC.write(0x0C | lengthSize-1);
+		hvcC.write(arrays.length);
+		for (int j=0; j<arrays.length; j++) {
+			hvcC.write(0x80 | types[j]);
+			hvcC.write(arrays[j].length >> 8);
+			hvcC.write(arrays[j].length);
+			for (byte[] nalu : arrays[j]) writeNalUnit(hvcC, nalu);
+		}
+		return hvcC.toByteArray();
+	}
+
+	@Test
+	public void avcCWithSeveralSps() throws IOException {
+		// Other boxes may come before the avcC box
+		StsdBox stsd = new StsdBox(stsd("avc1", box("pasp", new byte[8]),
+				box("avcC", avcC(2, new byte[][] {SPS1, SPS2}, new byte[][] {PPS}))));
+		assertEquals("avc1", stsd.getSampleEntryType());
+		assertFalse(stsd.isHevc());
+		assertEquals(2, stsd.getLengthSize());
+		assertEquals("640028", stsd.getProfileLevel());
+		assertEquals(2, stsd.getSPS().size());
+		assertArrayEquals(SPS1, stsd.getSPS().get(0));
+		assertArrayEquals(SPS2, stsd.getSPS().get(1));
+		assertEquals(1, stsd.getPPS().size());
+		assertArrayEquals(PPS, stsd.getPPS().get(0));
+		assertTrue(stsd.getVPS().isEmpty());
+	}
+
+	@Test
+	public void hvcCArrays() throws IOException {
+		// The SEI array is skipped, the SPS array holds two NAL units
+		StsdBox stsd = new StsdBox(stsd("hvc1", box("hvcC", hvcC(4, new int[] {32, 33, 39, 34},
+				new byte[][][] {{VPS}, {HEVC_SPS1, HEVC_SPS2}, {SEI}, {HEVC_PPS}}))));
+		assertEquals("hvc1", stsd.getSampleEntryType());
+		assertTrue(stsd.isHevc());
+		assertEquals(4, stsd.getLengthSize());
+		assertEquals(1, stsd.getVPS().size());
+		assertArrayEquals(VPS, stsd.getVPS().get(0));
+		assertEquals(2, stsd.getSPS().size());
+		assertArrayEquals(HEVC_SPS1, stsd.getSPS().get(0));
+		assertArrayEquals(HEVC_SPS2, stsd.getSPS().get(1));
+		assertEquals(1, stsd.getPPS().size());
+		assertArrayEquals(HEVC_PPS, stsd.getPPS().get(0));
+	}
+
+	@Test(expected = IOException.class)
+	public void noDecoderConfiguration() throws IOException {
+		new StsdBox(stsd("avc1", box("pasp", new byte[8])));
+	}
+
+	@Test(expected = IOException.class)
+	public void truncatedAvcC() throws IOException {
+		byte[] avcC = avcC(4, new byte[][] {SPS1}, new byte[][] {PPS});
+		byte[] truncated = new byte[avcC.length-2];
+		System.arraycopy(avcC, 0, truncated, 0, truncated.length);
+		new StsdBox(stsd("avc1", box("avcC", truncated)));
+	}
+
+	@Test(expected = IOException.class)
+	public void truncatedHvcC() throws IOException {
+		byte[] hvcC = hvcC(4, new int[] {32}, new byte[][][] {{VPS}});
+		byte[] truncated = new byte[hvcC.length-1];
+		System.arraycopy(hvcC, 0, truncated, 0, truncated.length);
+		new StsdBox(stsd("hev1", box("hvcC", truncated)));
+	}
+
+	@Test(expected = IOException.class)
+	public void truncatedSampleEntry() throws IOException {
+		ByteBuffer stsd = stsd("avc1", box("avcC", avcC(4, new byte[][] {SPS1}, new byte[][] {PPS})));
+		stsd.limit(40);
+		new StsdBox(stsd);
+	}
+
+}
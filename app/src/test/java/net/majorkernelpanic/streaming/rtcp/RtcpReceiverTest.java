@@ -0,0 +1,174 @@
+package net.majorkernelpanic.streaming.rtcp;
+
+import net.majorkernelpanic.streaming.rtp.RtpSocket;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Feeds RTCP packets to {@link RtcpReceiver#parse(byte[], int, int, java.net.InetAddress, int)} from the
+ * middle of a larger buffer, like the interleaved paths do, the bytes around them are garbage.
+ */
+public class RtcpReceiverTest {
+
+	private final static int SSRC = 0x11223344, SENDER = 0x55667788;
+
+	private RtcpReceiver mReceiver;
+	private final ArrayList<ReceiverReport> mReports = new ArrayList<ReceiverReport>();
+
+	@Before
+	public void setUp() {
+		mReceiver = new RtcpReceiver(new SenderReport());
+		mReceiver.setSSRC(SSRC);
+		mReceiver.setClockFrequency(90000);
+		mReceiver.setOnReceiverReportListener(new RtcpReceiver.OnReceiverReportListener() {
+			@Override
+			public void onReceiverReport(ReceiverReport report) {
+				mReports.add(report);
+			}
+		});
+	}
+
+	/** Writes the header of an RTCP packet, the length is in bytes. */
+	private static void header(byte[] buffer, int offset, int count, int pt, int length) {
+		buffer[offset] = (byte) (0x80 | count);
+		buffer[offset+1] = (byte) pt;
+		buffer[offset+2] = (byte) ((length/4-1) >> 8);
+		buffer[offset+3] = (byte) (length/4-1);
+		writeInt(buffer, offset+4, SENDER);
+	}
+
+	private static void block(byte[] buffer, int offset, int lost) {
+		writeInt(buffer, offset, SSRC);
+		writeInt(buffer, offset+4, (64 << 24) | lost);
+		writeInt(buffer, offset+8, 1000);
+		writeInt(buffer, offset+12, 900);
+		writeInt(buffer, offset+16, 0);
+		writeInt(buffer, offset+20, 0);
+	}
+
+	private static void writeInt(byte[] buffer, int offset, int value) {
+		buffer[offset] = (byte) (value >> 24);
+		buffer[offset+1] = (byte) (value >> 16);
+		buffer[offset+2] = (byte) (value >> 8);
+		buffer[offset+3] = (byte) value;
+	}
+
+	private static byte[] garbage(int size) {
+		byte[] buffer = new byte[size];
+		Arrays.fill(buffer, (byte) 0x5A);
+		return buffer;
+	}
+
+	@Test
+	public void receiverReport() {
+		byte[] buffer = garbage(256);
+		header(buffer, 100, 1, RtcpReceiver.PT_RR, 32);
+		block(buffer, 108, 3);
+		mReceiver.parse(buffer, 100, 32, null, 0);
+		assertEquals(1, mReports.size());
+		ReceiverReport report = mReports.get(0);
+		assertEquals(0.25f, report.fractionLost, 0.001);
+		assertEquals(3, report.cumulativeLost);
+		assertEquals(1000, report.highestSequence);
+		assertEquals(10f, report.jitter, 0.001);
+	}
+
+	@Test
+	public void interleavedReport() {
+		RtpSocket.InterleavedWriter writer = new RtpSocket.InterleavedWriter() {
+			@Override
+			public void writeInterleaved(int channel, byte[] packet, int offset, int length) {}
+		};
+		byte[] buffer = garbage(64);
+		header(buffer, 0, 1, RtcpReceiver.PT_RR, 32);
+		block(buffer, 8, 0);
+		mReceiver.parse(buffer, 0, 32, null, 0);
+		mReceiver.parse(buffer, 0, 32, null, 0, writer);
+		assertEquals(2, mReports.size());
+		assertNull(mReports.get(0).writer);
+		// The connection the report came in is how the server finds the destination it describes
+		assertSame(writer, mReports.get(1).writer);
+	}
+
+	@Test
+	public void reportCountBeyondThePacket() {
+		// The count announces 2 blocks but the packet only holds one, the bytes after it are not a block
+		byte[] buffer = garbage(256);
+		header(buffer, 100, 2, RtcpReceiver.PT_RR, 32);
+		block(buffer, 108, 3);
+		writeInt(buffer, 132, SSRC);
+		mReceiver.parse(buffer, 100, 32, null, 0);
+		assertEquals(1, mReports.size());
+		assertEquals(3, mReports.get(0).cumulativeLost);
+	}
+
+	@Test
+	public void truncatedSenderReport() {
+		// A sender report whose length leaves no room for its report block
+		byte[] buffer = garbage(256);
+		header(buffer, 100, 1, RtcpReceiver.PT_SR, 28);
+		block(buffer, 128, 3);
+		mReceiver.parse(buffer, 100, 28, null, 0);
+		assertEquals(0, mReports.size());
+	}
+
+	@Test
+	public void truncatedPacket() {
+		// The packet claims more than the length given to the parser
+		byte[] buffer = garbage(256);
+		header(buffer, 100, 1, RtcpReceiver.PT_RR, 32);
+		block(buffer, 108, 3);
+		mReceiver.parse(buffer, 100, 20, null, 0);
+		assertEquals(0, mReports.size());
+	}
+
+	/** Writes a REMB feedback message about our stream, 24 bytes long. */
+	private static void remb(byte[] buffer, int offset, int exp, int mantissa) {
+		header(buffer, offset, RtcpReceiver.FMT_AFB, RtcpReceiver.PT_PSFB, 24);
+		writeInt(buffer, offset+8, 0);
+		buffer[offset+12] = 'R';
+		buffer[offset+13] = 'E';
+		buffer[offset+14] = 'M';
+		buffer[offset+15] = 'B';
+		writeInt(buffer, offset+16, (1 << 24) | (exp << 18) | mantissa);
+		writeInt(buffer, offset+20, SSRC);
+	}
+
+	@Test
+	public void receiverEstimatedBitrate() {
+		byte[] buffer = garbage(64);
+		remb(buffer, 10, 3, 125000);
+		mReceiver.parse(buffer, 10, 24, null, 0);
+		assertEquals(1, mReports.size());
+		assertEquals(1000000, mReports.get(0).remb);
+	}
+
+	@Test
+	public void receiverEstimatedBitrateOverflow() {
+		// The largest exponent shifts the mantissa out of a long, it must not wrap to a small bitrate
+		byte[] buffer = garbage(64);
+		remb(buffer, 10, 63, 0x3FFFF);
+		mReceiver.parse(buffer, 10, 24, null, 0);
+		assertEquals(1, mReports.size());
+		assertEquals(Long.MAX_VALUE, mReports.get(0).remb);
+	}
+
+	@Test
+	public void byeCountBeyondThePacket() {
+		byte[] buffer = garbage(64);
+		header(buffer, 0, 1, RtcpReceiver.PT_RR, 32);
+		block(buffer, 8, 0);
+		// The BYE announces 31 sources but only holds its own, it ends where the buffer does
+		header(buffer, 32, 31, RtcpReceiver.PT_BYE, 8);
+		mReceiver.parse(buffer, 0, 40, null, 0);
+		assertEquals(2, mReports.size());
+		assertTrue(mReports.get(1).bye);
+	}
+
+}
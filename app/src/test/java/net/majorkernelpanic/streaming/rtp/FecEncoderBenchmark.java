@@ -0,0 +1,81 @@
+package net.majorkernelpanic.streaming.rtp;
+
+import net.majorkernelpanic.streaming.Benchmark;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Measures the CPU cost of {@link FecEncoder#protect(ByteBuffer, int)} per Mbit/s of protected stream,
+ * see {@link Benchmark}.
+ */
+public class FecEncoderBenchmark {
+
+	private final static int H = RtpSocket.RTP_HEADER_LENGTH;
+	private final static int PACKETS = 200000;
+
+	@Before
+	public void setUp() {
+		Benchmark.assumeEnabled();
+	}
+
+	/** Returns the ns spent per packet protecting full size packets with an overhead. */
+	private static double nsPerPacket(int overhead, final int payload) {
+		final FecEncoder encoder = new FecEncoder(127);
+		encoder.setOverhead(overhead);
+		final ByteBuffer[] packets = new ByteBuffer[16];
+		Random random = new Random(1);
+		for (int i=0; i<packets.length; i++) {
+			byte[] packet = new byte[H+payload];
+			random.nextBytes(packet);
+			packet[0] = (byte) 0x80;
+			packets[i] = ByteBuffer.wrap(packet);
+		}
+		final int[] groups = new int[1];
+		long elapsed = Benchmark.measure(new Runnable() {
+			@Override
+			public void run() {
+				for (int i=0; i<PACKETS; i++) {
+					ByteBuffer packet = packets[i&15];
+					packet.put(2, (byte) (i >> 8));
+					packet.put(3, (byte) i);
+					if (encoder.protect(packet, H+payload)) groups[0]++;
+				}
+			}
+		});
+		assertTrue(groups[0] > 0);
+		return elapsed/(double) PACKETS;
+	}
+
+	@Test
+	public void encodeCostPerMbps() {
+		int payload = RtpSocket.MTU-H;
+		// Packets per second of a 1 Mbit/s stream of full size packets
+		double packetsPerMbit = 1000000.0/8/RtpSocket.MTU;
+		for (int overhead : new int[] {10, 25, 50, 100}) {
+			double ns = nsPerPacket(overhead, payload);
+			Benchmark.report("FEC %3d%%: %6.0f ns/packet, %6.1f us of CPU per second per Mbit/s, %5.2f%% of a core at 10 Mbit/s",
+					overhead, ns, ns*packetsPerMbit/1000, ns*packetsPerMbit*10/1e7);
+		}
+	}
+
+	@Test
+	public void xorThroughput() {
+		final byte[] a = new byte[RtpSocket.MTU], b = new byte[RtpSocket.MTU];
+		new Random(2).nextBytes(a);
+		final ByteBuffer src = ByteBuffer.wrap(a), dst = ByteBuffer.wrap(b);
+		long elapsed = Benchmark.measure(new Runnable() {
+			@Override
+			public void run() {
+				for (int i=0; i<PACKETS; i++) FecEncoder.xor(src, 0, dst, 0, a.length);
+			}
+		});
+		Benchmark.report("FEC xor: %.0f MB/s", (double) PACKETS*a.length/elapsed*1e3);
+	}
+
+}
@@ -0,0 +1,110 @@
+package net.majorkernelpanic.streaming.rtp;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Protects groups of RTP packets with {@link FecEncoder}, then rebuilds a dropped packet from the
+ * FEC packet and the rest of the group the way a receiver does (RFC 5109, section 8).
+ */
+public class FecEncoderTest {
+
+	private final static int H = RtpSocket.RTP_HEADER_LENGTH, SSRC = 0x12345678;
+
+	private final Random mRandom = new Random(42);
+
+	private byte[] packet(int seq, int timestamp, boolean marker, int payload) {
+		byte[] packet = new byte[H+payload];
+		mRandom.nextBytes(packet);
+		packet[0] = (byte) 0x80;
+		packet[1] = (byte) ((marker ? 0x80 : 0)|96);
+		packet[2] = (byte) (seq >> 8);
+		packet[3] = (byte) seq;
+		ByteBuffer.wrap(packet).putInt(4, timestamp);
+		ByteBuffer.wrap(packet).putInt(8, SSRC);
+		return packet;
+	}
+
+	/**
+	 * Rebuilds the packet of the group that is missing from the FEC packet and the others.
+	 * Its sequence number is known from its place in the mask, its SSRC is that of the stream.
+	 */
+	private static byte[] recover(byte[] fec, int fecLength, byte[][] others, int seq) {
+		ByteBuffer f = ByteBuffer.wrap(fec);
+		int flags = fec[12], pt = fec[13], timestamp = f.getInt(16), length = f.getShort(20)&0xFFFF;
+		int protectionLength = f.getShort(22)&0xFFFF;
+		assertEquals(FecEncoder.HEADER_LENGTH+protectionLength, fecLength);
+		byte[] payload = Arrays.copyOfRange(fec, FecEncoder.HEADER_LENGTH, fecLength);
+		for (byte[] p : others) {
+			flags ^= p[0];
+			pt ^= p[1];
+			timestamp ^= ByteBuffer.wrap(p).getInt(4);
+			length ^= p.length-H;
+			for (int i=0; i<p.length-H; i++) payload[i] ^= p[H+i];
+		}
+		byte[] packet = new byte[H+length];
+		packet[0] = (byte) (0x80 | flags&0x3F);
+		packet[1] = (byte) pt;
+		packet[2] = (byte) (seq >> 8);
+		packet[3] = (byte) seq;
+		ByteBuffer.wrap(packet).putInt(4, timestamp);
+		ByteBuffer.wrap(packet).putInt(8, SSRC);
+		System.arraycopy(payload, 0, packet, H, length);
+		return packet;
+	}
+
+	@Test
+	public void recoversAnyPacketOfTheGroup() {
+		FecEncoder encoder = new FecEncoder(127);
+		encoder.setOverhead(25);
+		// Payloads of different sizes, so that lengths and padding are both exercised
+		int[] sizes = {1200, 17, RtpSocket.MTU-H, 640};
+		byte[][] group = new byte[4][];
+		for (int i=0; i<4; i++) {
+			group[i] = packet(65534+i & 0xFFFF, 90000+i*3000, i == 3, sizes[i]);
+			boolean complete = encoder.protect(ByteBuffer.wrap(group[i]), group[i].length);
+			assertEquals(i == 3, complete);
+		}
+		byte[] fec = encoder.getBuffer();
+		ByteBuffer f = ByteBuffer.wrap(fec);
+		assertEquals(127, fec[1]&0x7F);
+		assertEquals(65534, f.getShort(14)&0xFFFF);
+		// The mask covers the 4 packets, across the wrap of the sequence numbers
+		assertEquals(0xF000, f.getShort(24)&0xFFFF);
+
+		for (int lost=0; lost<4; lost++) {
+			byte[][] others = new byte[3][];
+			for (int i=0, j=0; i<4; i++) if (i != lost) others[j++] = group[i];
+			byte[] recovered = recover(fec, encoder.getLength(), others, 65534+lost & 0xFFFF);
+			assertArrayEquals("packet "+lost, group[lost], recovered);
+		}
+	}
+
+	@Test
+	public void disabled() {
+		FecEncoder encoder = new FecEncoder(127);
+		byte[] p = packet(1, 0, false, 100);
+		for (int i=0; i<20; i++) assertFalse(encoder.protect(ByteBuffer.wrap(p), p.length));
+		encoder.setOverhead(100);
+		assertTrue(encoder.protect(ByteBuffer.wrap(p), p.length));
+	}
+
+	@Test
+	public void xorMatchesBytewise() {
+		for (int n=0; n<40; n++) {
+			byte[] a = new byte[n+5], b = new byte[n+3];
+			mRandom.nextBytes(a);
+			mRandom.nextBytes(b);
+			byte[] expected = b.clone();
+			for (int i=0; i<n; i++) expected[3+i] ^= a[5+i];
+			FecEncoder.xor(ByteBuffer.wrap(a), 5, ByteBuffer.wrap(b), 3, n);
+			assertArrayEquals(expected, b);
+		}
+	}
+
+}
@@ -0,0 +1,124 @@
+package net.majorkernelpanic.streaming.rtp;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Packetizes NAL units preceded by their length, like those of an mp4 file, and looks at the
+ * parameter sets sent with the key frame.
+ */
+public class H264PacketizerTest {
+
+	private final static byte[] SPS1 = {0x67, 0x42, (byte) 0xC0, 0x1E, 0x01};
+	private final static byte[] SPS2 = {0x67, 0x4D, 0x40, 0x1F, 0x02, 0x03};
+	private final static byte[] PPS = {0x68, (byte) 0xCE, 0x3C, (byte) 0x80};
+	private final static byte[] IDR = {0x65, (byte) 0x88, (byte) 0x84, 0x00, 0x33};
+	private final static byte[] SLICE = {0x41, (byte) 0x9A, 0x02, 0x04};
+
+	private final H264Packetizer mPacketizer = new H264Packetizer();
+	private final ArrayList<byte[]> mPackets = new ArrayList<byte[]>();
+	private final ArrayList<byte[]> mChangedSps = new ArrayList<byte[]>();
+
+	@After
+	public void tearDown() {
+		mPacketizer.stop();
+		mPacketizer.getRtpSocket().close();
+	}
+
+	/** Sends the NAL units and waits for the payloads of the RTP packets to be written. */
+	private void packetize(byte[]... nalus) throws Exception {
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		for (byte[] nalu : nalus) {
+			stream.write(new byte[] {0, 0, (byte) (nalu.length >> 8), (byte) nalu.length});
+			stream.write(nalu);
+		}
+		mPacketizer.setOnParameterSetsChangedListener(new H264Packetizer.OnParameterSetsChangedListener() {
+			@Override
+			public void onParameterSetsChanged(byte[] sps, byte[] pps) {
+				synchronized (mChangedSps) {
+					mChangedSps.add(sps);
+				}
+			}
+		});
+		mPacketizer.getRtpSocket().addDestination(new RtpSocket.InterleavedWriter() {
+			@Override
+			public void writeInterleaved(int channel, byte[] packet, int offset, int length) {
+				if (channel != 0) return;
+				synchronized (mPackets) {
+					mPackets.add(Arrays.copyOfRange(packet, offset+RtpSocket.RTP_HEADER_LENGTH, offset+length));
+					mPackets.notifyAll();
+				}
+			}
+		}, 0);
+		// The stream starts with a key frame, like a file played by the server
+		mPacketizer.getRtpSocket().setSkippedPackets(0);
+		mPacketizer.setInputStream(new ByteArrayInputStream(stream.toByteArray()));
+		mPacketizer.start();
+		// One packet per NAL unit and the STAP-A sent before the key frame
+		long deadline = System.currentTimeMillis()+5000;
+		synchronized (mPackets) {
+			while (mPackets.size() < nalus.length+1 && System.currentTimeMillis() < deadline) mPackets.wait(100);
+		}
+		assertEquals(nalus.length+1, mPackets.size());
+	}
+
+	private byte[] stapa() {
+		for (byte[] payload : mPackets) {
+			if ((payload[0]&0x1F) == 24) return payload;
+		}
+		fail("No STAP-A");
+		return null;
+	}
+
+	private static byte[] stapa(byte[]... nalus) {
+		ByteArrayOutputStream stapa = new ByteArrayOutputStream();
+		stapa.write(24);
+		for (byte[] nalu : nalus) {
+			stapa.write(nalu.length >> 8);
+			stapa.write(nalu.length);
+			stapa.write(nalu, 0, nalu.length);
+		}
+		return stapa.toByteArray();
+	}
+
+	@Test(timeout = 10000)
+	public void oneParameterSet() throws Exception {
+		mPacketizer.setStreamParameters(PPS, SPS1);
+		packetize(SPS2, PPS, IDR, SLICE);
+		// The stream uses an SPS that was not announced, the packetizer switches to it
+		assertEquals(1, mChangedSps.size());
+		assertArrayEquals(SPS2, mChangedSps.get(0));
+		assertArrayEquals(stapa(SPS2, PPS), stapa());
+	}
+
+	@Test(timeout = 10000)
+	public void parameterSetsInOneBuffer() throws Exception {
+		// MediaCodec hands the SPS and the PPS in a single codec-config buffer, separated by a start code
+		ByteArrayOutputStream config = new ByteArrayOutputStream();
+		config.write(SPS2);
+		config.write(new byte[] {0, 0, 0, 1});
+		config.write(PPS);
+		mPacketizer.setStreamParameters(PPS, SPS1);
+		packetize(config.toByteArray(), IDR, SLICE);
+		assertEquals(1, mChangedSps.size());
+		assertArrayEquals(SPS2, mChangedSps.get(0));
+		assertArrayEquals(stapa(SPS2, PPS), stapa());
+	}
+
+	@Test(timeout = 10000)
+	public void severalParameterSets() throws Exception {
+		mPacketizer.setStreamParameters(Arrays.asList(PPS), Arrays.asList(SPS1, SPS2));
+		packetize(SPS2, PPS, IDR, SLICE);
+		assertArrayEquals(stapa(SPS1, SPS2, PPS), stapa());
+		// The second SPS of the file is not a change
+		assertEquals(0, mChangedSps.size());
+	}
+
+}
@@ -0,0 +1,108 @@
+package net.majorkernelpanic.streaming.rtsp;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+/**
+ * Reads canned server output with {@link RtspDemuxer}, fed a few bytes at a time like a socket.
+ */
+public class RtspDemuxerTest {
+
+	private final static Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+	private final ArrayList<Integer> mChannels = new ArrayList<Integer>();
+
+	private final RtspDemuxer.OnInterleavedPacketListener mListener = new RtspDemuxer.OnInterleavedPacketListener() {
+		@Override
+		public void onInterleavedPacket(int channel, byte[] buffer, int offset, int length) {
+			mChannels.add(channel);
+		}
+	};
+
+	/** Returns at most 3 bytes per read. */
+	private static InputStream chunked(byte[] data) {
+		return new ByteArrayInputStream(data) {
+			@Override
+			public synchronized int read(byte[] b, int off, int len) {
+				return super.read(b, off, Math.min(len, 3));
+			}
+		};
+	}
+
+	private static byte[] frame(int channel, int length) {
+		byte[] frame = new byte[4+length];
+		frame[0] = '$';
+		frame[1] = (byte) channel;
+		frame[2] = (byte) (length >> 8);
+		frame[3] = (byte) length;
+		return frame;
+	}
+
+	private static byte[] concat(Object... parts) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (Object part : parts) {
+			out.write(part instanceof String ? ((String) part).getBytes(ISO_8859_1) : (byte[]) part);
+		}
+		return out.toByteArray();
+	}
+
+	@Test
+	public void responsesAndInterleavedFrames() throws IOException {
+		byte[] data = concat(frame(1, 40),
+				"RTSP/1.0 200 OK\r\nCSeq: 1\r\nContent-Length: 5\r\n\r\nhello",
+				frame(3, 0),
+				"RTSP/1.0 401 Unauthorized\nCSeq: 2\n\n");
+		RtspDemuxer demuxer = new RtspDemuxer(chunked(data), mListener);
+		RtspClient.Response response = demuxer.readResponse();
+		assertEquals(200, response.status);
+		assertEquals("1", response.headers.get("cseq").trim());
+		assertEquals(401, demuxer.readResponse().status);
+		assertEquals(2, mChannels.size());
+		assertEquals(1, (int) mChannels.get(0));
+		assertEquals(3, (int) mChannels.get(1));
+	}
+
+	@Test
+	public void requestsOfTheServerAreSkipped() throws IOException {
+		byte[] data = concat("GET_PARAMETER rtsp://host/ RTSP/1.0\r\nCSeq: 7\r\nContent-Length: 9\r\n\r\nRTSP/1.0 ",
+				"ANNOUNCE rtsp://host/ RTSP/1.0\r\nCSeq: 8\r\n\r\n",
+				"RTSP/1.0 200 OK\r\nCSeq: 3\r\n\r\n");
+		RtspDemuxer demuxer = new RtspDemuxer(chunked(data), mListener);
+		RtspClient.Response response = demuxer.readResponse();
+		assertEquals(200, response.status);
+		assertEquals("3", response.headers.get("cseq").trim());
+	}
+
+	@Test(expected = IOException.class)
+	public void malformedStatusLine() throws IOException {
+		new RtspDemuxer(chunked(concat("RTSP/1.0 OK\r\n\r\n")), mListener).readResponse();
+	}
+
+	@Test(expected = IOException.class)
+	public void malformedContentLength() throws IOException {
+		new RtspDemuxer(chunked(concat("RTSP/1.0 200 OK\r\nContent-Length: x\r\n\r\n")), mListener).readResponse();
+	}
+
+	@Test(timeout = 5000)
+	public void threadSurvivesMalformedResponses() throws IOException {
+		RtspDemuxer demuxer = new RtspDemuxer(chunked(concat("RTSP/1.0 200 OK\r\n\r\n", "RTSP/1.0 garbage\r\n\r\n")), mListener);
+		demuxer.start();
+		assertEquals(200, demuxer.readResponse().status);
+		// The error is reported to every reader right away instead of after RESPONSE_TIMEOUT
+		for (int i=0; i<2; i++) {
+			try {
+				demuxer.readResponse();
+				fail("The malformed response was parsed");
+			} catch (IOException expected) {}
+		}
+	}
+
+}
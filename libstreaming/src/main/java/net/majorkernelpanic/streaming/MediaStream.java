@@ -23,10 +23,13 @@ package net.majorkernelpanic.streaming;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.InetAddress;
+import java.util.List;
 import java.util.Random;
 
 import net.majorkernelpanic.streaming.audio.AudioStream;
+import net.majorkernelpanic.streaming.rtcp.ReceiverReport;
 import net.majorkernelpanic.streaming.rtp.AbstractPacketizer;
+import net.majorkernelpanic.streaming.rtp.RtpSocket;
 import net.majorkernelpanic.streaming.video.VideoStream;
 import android.annotation.SuppressLint;
 import android.media.MediaCodec;
@@ -35,6 +38,7 @@ import android.net.LocalServerSocket;
 import android.net.LocalSocket;
 import android.net.LocalSocketAddress;
 import android.os.Build;
+import android.os.Bundle;
 import android.os.ParcelFileDescriptor;
 import android.util.Log;
 
@@ -190,6 +194,46 @@ public abstract class MediaStream implements Stream {
 		};
 	}
 
+	/**
+	 * Sends the stream to one more receiver while it is streaming, so that several
+	 * receivers share the same encoder. Only works with UDP.
+	 * @param dest The address of the receiver
+	 * @param rtpPort Destination port that will be used for RTP
+	 * @param rtcpPort Destination port that will be used for RTCP
+	 */
+	public void addDestination(InetAddress dest, int rtpPort, int rtcpPort) {
+		mPacketizer.getRtpSocket().addDestination(dest, rtpPort, rtcpPort);
+	}
+
+	/**
+	 * Sends the stream to one more receiver, interleaved in its RTSP connection. It can be called
+	 * before {@link #start()} to start the stream without any destination port.
+	 * @param writer The writer of the RTSP connection, it must not block
+	 * @param channel The channel used for RTP, the next one is used for RTCP
+	 */
+	public void addDestination(RtpSocket.InterleavedWriter writer, int channel) {
+		mPacketizer.getRtpSocket().addDestination(writer, channel);
+	}
+
+	/**
+	 * Stops writing the stream to a receiver added with {@link #addDestination(RtpSocket.InterleavedWriter, int)}.
+	 * @return The number of destinations the stream is still sent to
+	 */
+	public int removeDestination(RtpSocket.InterleavedWriter writer) {
+		mPacketizer.getRtpSocket().removeDestination(writer);
+		return mPacketizer.getRtpSocket().getDestinationCount();
+	}
+
+	/**
+	 * Stops sending the stream to a receiver, whether it was added with
+	 * {@link #addDestination(InetAddress, int, int)} or was the first destination of the stream.
+	 * @return The number of destinations the stream is still sent to
+	 */
+	public int removeDestination(InetAddress dest, int rtpPort) {
+		mPacketizer.getRtpSocket().removeDestination(dest, rtpPort);
+		return mPacketizer.getRtpSocket().getDestinationCount();
+	}
+
 	/** 
 	 * Returns a pair of source ports, the first one is the 
 	 * one used for RTP and the second one is used for RTCP. 
@@ -239,6 +283,13 @@ public abstract class MediaStream implements Stream {
 		return !mStreaming ? 0 : mPacketizer.getRtpSocket().getBitrate(); 
 	}
 
+	/**
+	 * Returns the last RTCP Receiver Report sent by each receiver of the stream.
+	 */
+	public List<ReceiverReport> getReceiverReports() {
+		return mPacketizer.getRtpSocket().getRtcpReceiver().getReports();
+	}
+
 	/**
 	 * Indicates if the {@link MediaStream} is streaming.
 	 * @return A boolean indicating if the {@link MediaStream} is streaming
@@ -269,7 +320,8 @@ public abstract class MediaStream implements Stream {
 		if (mDestination==null)
 			throw new IllegalStateException("No destination ip address set for the stream !");
 
-		if (mRtpPort<=0 || mRtcpPort<=0)
+		// Receivers may also have been added with addDestination()
+		if ((mRtpPort<=0 || mRtcpPort<=0) && mPacketizer.getRtpSocket().getDestinationCount()==0)
 			throw new IllegalStateException("No destination ports set for the stream !");
 
 		mPacketizer.setTimeToLive(mTTL);
@@ -295,8 +347,7 @@ public abstract class MediaStream implements Stream {
 					mPacketizer.stop();
 				} else {
 					mPacketizer.stop();
-					mMediaCodec.stop();
-					mMediaCodec.release();
+					releaseMediaCodec();
 					mMediaCodec = null;
 				}
 			} catch (Exception e) {
@@ -306,6 +357,40 @@ public abstract class MediaStream implements Stream {
 		}
 	}
  
+	/**
+	 * Asks the encoder to produce a key frame as soon as possible, for example because a receiver
+	 * lost part of the previous one. Only works with the MediaCodec API, on Android 4.4 and above.
+	 */
+	public synchronized void requestSyncFrame() {
+		if (mStreaming && mMode != MODE_MEDIARECORDER_API && mMediaCodec != null) {
+			requestSyncFrame(mMediaCodec);
+		}
+	}
+
+	/** Same as {@link #requestSyncFrame()} for any encoder, for example one that is not attached to a stream yet. */
+	@SuppressLint("NewApi")
+	public static void requestSyncFrame(MediaCodec codec) {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+			Bundle params = new Bundle();
+			params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+			try {
+				codec.setParameters(params);
+			} catch (IllegalStateException e) {
+				Log.e(TAG,"Could not request a sync frame");
+			}
+		}
+	}
+
+	/**
+	 * Stops and releases the MediaCodec of the stream.
+	 * Subclasses may override this to recycle the encoder instead.
+	 */
+	@SuppressLint("NewApi")
+	protected void releaseMediaCodec() {
+		mMediaCodec.stop();
+		mMediaCodec.release();
+	}
+
 	protected abstract void encodeWithMediaRecorder() throws IOException;
 
 	protected abstract void encodeWithMediaCodec() throws Throwable;
@@ -32,6 +32,7 @@ import net.majorkernelpanic.streaming.exceptions.ConfNotSupportedException;
 import net.majorkernelpanic.streaming.exceptions.InvalidSurfaceException;
 import net.majorkernelpanic.streaming.exceptions.StorageUnavailableException;
 import net.majorkernelpanic.streaming.gl.SurfaceView;
+import net.majorkernelpanic.streaming.rtp.RtpSocket;
 import net.majorkernelpanic.streaming.rtsp.RtspClient;
 import net.majorkernelpanic.streaming.video.VideoQuality;
 import net.majorkernelpanic.streaming.video.VideoStream;
@@ -501,6 +502,100 @@ public class Session {
 
 	}	
 
+	/**
+	 * Sends a track to one more receiver, so that several receivers, like several RTSP servers,
+	 * share the same encoder. The track is started if it was not streaming yet.
+	 * @param id The id of the track (0 for audio, 1 for video)
+	 * @param destination The address of the receiver
+	 * @param rtpPort Destination port used for RTP
+	 * @param rtcpPort Destination port used for RTCP
+	 */
+	public synchronized void syncAddDestination(int id, String destination, int rtpPort, int rtcpPort)
+			throws Throwable {
+		MediaStream stream = id==0 ? mAudioStream : mVideoStream;
+		if (stream == null) return;
+		if (!stream.isStreaming()) {
+			mDestination = destination;
+			stream.setDestinationPorts(rtpPort, rtcpPort);
+			syncStart(id);
+		} else {
+			stream.addDestination(InetAddress.getByName(destination), rtpPort, rtcpPort);
+		}
+	}
+
+	/**
+	 * Stops sending a track to a receiver added with {@link #syncAddDestination(int, String, int, int)}.
+	 * The track is stopped once it has no receiver left.
+	 * @param id The id of the track (0 for audio, 1 for video)
+	 * @param destination The address of the receiver
+	 * @param rtpPort Destination port used for RTP
+	 */
+	public synchronized void syncRemoveDestination(int id, String destination, int rtpPort) throws UnknownHostException {
+		MediaStream stream = id==0 ? mAudioStream : mVideoStream;
+		if (stream == null) return;
+		if (stream.removeDestination(InetAddress.getByName(destination), rtpPort) == 0) {
+			stopUnusedTrack(id);
+		}
+	}
+
+	/**
+	 * Sends a track to one more receiver, interleaved in its RTSP connection. The track is started
+	 * if it was not streaming yet, see {@link #syncAddDestination(int, String, int, int)}.
+	 * @param id The id of the track (0 for audio, 1 for video)
+	 * @param writer The writer of the RTSP connection, it must not block
+	 * @param channel The channel used for RTP, the next one is used for RTCP
+	 */
+	public synchronized void syncAddDestination(int id, RtpSocket.InterleavedWriter writer, int channel)
+			throws Throwable {
+		MediaStream stream = id==0 ? mAudioStream : mVideoStream;
+		if (stream == null) return;
+		stream.addDestination(writer, channel);
+		if (!stream.isStreaming()) {
+			// No destination port, the track is only written to the RTSP connection. The ports are
+			// put back once started since the session description still announces them.
+			int[] ports = stream.getDestinationPorts();
+			stream.setDestinationPorts(0, 0);
+			try {
+				syncStart(id);
+			} catch (Throwable t) {
+				stream.removeDestination(writer);
+				throw t;
+			} finally {
+				stream.setDestinationPorts(ports[0], ports[1]);
+			}
+		}
+	}
+
+	/** Stops writing a track to a receiver added with {@link #syncAddDestination(int, RtpSocket.InterleavedWriter, int)}. */
+	public synchronized void syncRemoveDestination(int id, RtpSocket.InterleavedWriter writer) {
+		MediaStream stream = id==0 ? mAudioStream : mVideoStream;
+		if (stream == null) return;
+		if (stream.removeDestination(writer) == 0) {
+			stopUnusedTrack(id);
+		}
+	}
+
+	/**
+	 * Stops the tracks that are not sent anywhere anymore, for example because their receivers have
+	 * been removed with {@link MediaStream#removeDestination(InetAddress, int)} to be added back later.
+	 */
+	public synchronized void syncStopUnusedTracks() {
+		for (int id=0;id<2;id++) {
+			MediaStream stream = id==0 ? mAudioStream : mVideoStream;
+			if (stream != null && stream.getPacketizer() != null && stream.getPacketizer().getRtpSocket().getDestinationCount() == 0) {
+				stopUnusedTrack(id);
+			}
+		}
+	}
+
+	/** Stops a track that has no receiver left. */
+	private void stopUnusedTrack(int id) {
+		if (getTrack(id).isStreaming()) {
+			syncStop(id);
+			if (!isStreaming()) postSessionStopped();
+		}
+	}
+
 	/** Stops all existing streams. */
 	public void stop() {
 		mHandler.post(new Runnable() {
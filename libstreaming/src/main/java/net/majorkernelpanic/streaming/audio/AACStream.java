@@ -65,6 +65,9 @@ public class AACStream extends AudioStream {
 		"AAC LTP (Long Term Prediction)"  // 4	
 	};
 
+	/** Version of the configs stored in the SharedPreferences, increment it to discard the old ones. */
+	private static final int CONFIG_VERSION = 2;
+
 	/** There are 13 supported frequencies by ADTS. **/
 	public static final int[] AUDIO_SAMPLING_RATES = {
 		96000, // 0
@@ -290,7 +293,8 @@ public class AACStream extends AudioStream {
 			setOutputFormat(6);
 		}
 
-		String key = PREF_PREFIX+"aac-"+mQuality.samplingRate;
+		// The result depends on the device and on its system version, and the key is versioned like the H.264 configs
+		String key = PREF_PREFIX+"aac-"+CONFIG_VERSION+"-"+Integer.toHexString(Build.FINGERPRINT.hashCode())+"-"+mQuality.samplingRate+"-"+mQuality.bitRate;
 
 		if (mSettings!=null) {
 			if (mSettings.contains(key)) {
@@ -70,6 +70,9 @@ public class SurfaceView extends android.view.SurfaceView implements Runnable, O
 	private boolean mRunning = true;
 	private int mAspectRatioMode = ASPECT_RATIO_STRETCH;
 
+	// Minimum interval in ns between two frames drawn on the input surface of the MediaCodec
+	private volatile long mMinFrameInterval = 0;
+
 	// The surface in which the preview is rendered
 	private SurfaceManager mViewSurfaceManager = null;
 	
@@ -115,6 +118,15 @@ public class SurfaceView extends android.view.SurfaceView implements Runnable, O
 		}
 	}
 
+	/**
+	 * Caps the frame rate of the frames drawn on the input surface of the MediaCodec
+	 * by dropping frames, the preview is not affected.
+	 * @param framerate The maximum frame rate, 0 to remove the cap
+	 */
+	public void setMaxFrameRate(int framerate) {
+		mMinFrameInterval = framerate > 0 ? 1000000000L/framerate : 0;
+	}
+
 	public void startGLThread() {
 		Log.d(TAG,"Thread started.");
 		if (mTextureManager == null) {
@@ -150,11 +162,13 @@ public class SurfaceView extends android.view.SurfaceView implements Runnable, O
 						mTextureManager.drawFrame();
 						mViewSurfaceManager.swapBuffer();
 
-						if (mCodecSurfaceManager != null) {
+						long frameTs = mTextureManager.getSurfaceTexture().getTimestamp();
+						// Frames arriving too early are dropped, with some tolerance for the jitter of the camera
+						if (mCodecSurfaceManager != null && (mMinFrameInterval == 0 || frameTs-ts >= mMinFrameInterval*9/10)) {
 							mCodecSurfaceManager.makeCurrent();
 							mTextureManager.drawFrame();
 							oldts = ts;
-							ts = mTextureManager.getSurfaceTexture().getTimestamp();
+							ts = frameTs;
 							//Log.d(TAG,"FPS: "+(1000000000/(ts-oldts)));
 							mCodecSurfaceManager.setPresentationTime(ts);
 							mCodecSurfaceManager.swapBuffer();
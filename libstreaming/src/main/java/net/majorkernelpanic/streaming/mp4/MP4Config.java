@@ -32,7 +32,6 @@ public class MP4Config {
 
 	public final static String TAG = "MP4Config";
 	
-	private MP4Parser mp4Parser;
 	private String mProfilLevel, mPPS, mSPS;
 
 	public MP4Config(String profil, String sps, String pps) {
@@ -61,23 +60,17 @@ public class MP4Config {
 	 */
 	public MP4Config (String path) throws IOException, FileNotFoundException {
 
-		StsdBox stsdBox; 
-		
-		// We open the mp4 file and parse it
+		// The moov box is mapped, the stsd box of the video track is read from it
+		MP4Parser mp4Parser = MP4Parser.parse(path);
 		try {
-			mp4Parser = MP4Parser.parse(path);
-		} catch (IOException ignore) {
-			// Maybe enough of the file has been parsed and we can get the stsd box
+			StsdBox stsdBox = mp4Parser.getStsdBox();
+			mPPS = stsdBox.getB64PPS();
+			mSPS = stsdBox.getB64SPS();
+			mProfilLevel = stsdBox.getProfileLevel();
+		} finally {
+			mp4Parser.close();
 		}
 
-		// We find the stsdBox
-		stsdBox = mp4Parser.getStsdBox();
-		mPPS = stsdBox.getB64PPS();
-		mSPS = stsdBox.getB64SPS();
-		mProfilLevel = stsdBox.getProfileLevel();
-
-		mp4Parser.close();
-		
 	}
 
 	public String getProfileLevel() {
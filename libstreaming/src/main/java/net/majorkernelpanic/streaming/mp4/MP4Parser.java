@@ -25,23 +25,36 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 
-import android.util.Base64;
 import android.util.Log;
 
 /**
  * Parse an mp4 file.
  * An mp4 file contains a tree where each node has a name and a size.
- * This class is used by H264Stream.java to determine the SPS and PPS parameters of a short video recorded by the phone.
+ * This class is used by H264Stream.java to determine the SPS and PPS parameters of a short video recorded by the phone,
+ * and indexes the sample tables of each track so that the samples can be read, see {@link MP4Track}.
+ * The top level boxes are only read by their headers, the moov box is mapped in memory and walked
+ * without recursion. The mdat box, however big, is never read.
  */
 public class MP4Parser {
 
 	private static final String TAG = "MP4Parser";
 
+	/** Boxes made of other boxes, the others are not looked into. */
+	private static final String[] CONTAINERS = {"moov", "trak", "edts", "mdia", "minf", "dinf", "stbl", "mvex", "udta"};
+
 	private HashMap<String, Long> mBoxes = new HashMap<String, Long>();
+	private final ArrayList<MP4Track> mTracks = new ArrayList<MP4Track>();
 	private final RandomAccessFile mFile;
-	private long mPos = 0;
+	private final FileChannel mChannel;
+	// The sample tables of the tracks are read from it
+	private MappedByteBuffer mMoov = null;
+	private long mMoovPosition = 0;
 
 
 	/** Parses the mp4 file. **/
@@ -51,10 +64,12 @@ public class MP4Parser {
 	
 	private MP4Parser(final String path) throws IOException, FileNotFoundException {
 		mFile = new RandomAccessFile(new File(path), "r");
+		mChannel = mFile.getChannel();
 		try {
-			parse("",mFile.length());
+			parse();
 		} catch (Exception e) {
 			e.printStackTrace();
+			close();
 			throw new IOException("Parse error: malformed mp4 file");
 		}
 	}
@@ -64,7 +79,26 @@ public class MP4Parser {
 			mFile.close();
 		} catch (Exception e) {};
 	}
+
+	/** Returns the channel of the file, the samples of the tracks can be read from it. */
+	public FileChannel getChannel() {
+		return mChannel;
+	}
+
+	/** Returns the tracks of the file whose sample tables are complete, in the order of the file. */
+	public List<MP4Track> getTracks() {
+		return mTracks;
+	}
+
+	/** Returns the first track of a type, {@link MP4Track#VIDEO} or {@link MP4Track#AUDIO}, or null. */
+	public MP4Track getTrack(String handlerType) {
+		for (MP4Track track : mTracks) {
+			if (track.getHandlerType().equals(handlerType)) return track;
+		}
+		return null;
+	}
 	
+	/** Returns the position of the first box found at a path like /moov/trak/mdia. */
 	public long getBoxPos(String box) throws IOException {
 		Long r = mBoxes.get(box);
 
@@ -72,75 +106,131 @@ public class MP4Parser {
 		return mBoxes.get(box);
 	}
 
+	/**
+	 * Returns the stsd box of the video track. If the sample tables of the video track are not
+	 * complete, returns the first stsd box found in the moov box.
+	 */
 	public StsdBox getStsdBox() throws IOException {
-		try {
-			return new StsdBox(mFile,getBoxPos("/moov/trak/mdia/minf/stbl/stsd"));
-		} catch (IOException e) {
-			throw new IOException("stsd box could not be found");
-		}
+		MP4Track video = getTrack(MP4Track.VIDEO);
+		if (video != null) return new StsdBox(video.getSampleDescription());
+		if (mMoov == null) throw new IOException("stsd box could not be found");
+		return new StsdBox(getPayload(mMoov, (int) (getBoxPos("/moov/trak/mdia/minf/stbl/stsd")-mMoovPosition)));
 	}
 
-	private void parse(String path, long len) throws IOException {
-		ByteBuffer byteBuffer;
-		long sum = 0, newlen = 0;
-		byte[] buffer = new byte[8];
-		String name = "";
-		
-		if(!path.equals("")) mBoxes.put(path, mPos-8);
-
-		while (sum<len) {
-			mFile.read(buffer,0,8);
-			mPos += 8; sum += 8; 
-
-			if (validBoxName(buffer)) {
-				name = new String(buffer,4,4);
-
-				if (buffer[3] == 1) {
-					// 64 bits atom size
-					mFile.read(buffer,0,8);
-					mPos += 8; sum += 8;
-					byteBuffer = ByteBuffer.wrap(buffer,0,8);
-					newlen = byteBuffer.getLong()-16;
-				} else {
-					// 32 bits atom size
-					byteBuffer = ByteBuffer.wrap(buffer,0,4);
-					newlen = byteBuffer.getInt()-8;
-				}
-
-				// 1061109559+8 correspond to "????" in ASCII the HTC Desire S seems to write that sometimes, maybe other phones do
-				// "wide" atom would produce a newlen == 0, and we shouldn't throw an exception because of that
-				if (newlen < 0 || newlen == 1061109559) throw new IOException();
-				
-				Log.d(TAG, "Atom -> name: "+name+" position: "+mPos+", length: "+newlen);
-				sum += newlen;
-				parse(path+'/'+name,newlen);
+	/** Walks the top level boxes by their headers. */
+	private void parse() throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(16);
+		long pos = 0, end = mChannel.size();
+		while (pos+8 <= end) {
+			header.clear();
+			header.limit((int) Math.min(16, end-pos));
+			while (header.hasRemaining()) {
+				if (mChannel.read(header, pos+header.position()) < 0) throw new IOException();
+			}
+			long size = header.getInt(0) & 0xFFFFFFFFL;
+			if (size == 1) {
+				// 64 bits atom size
+				if (header.limit() < 16) throw new IOException();
+				size = header.getLong(8);
+			} else if (size == 0) {
+				// The box extends to the end of the file
+				size = end-pos;
+			}
+			if (size < 8 || pos+size > end) throw new IOException();
+			String name = MP4Track.fourcc(header, 4);
+			Log.d(TAG, "Atom -> name: "+name+" position: "+pos+", length: "+size);
+			if (!mBoxes.containsKey("/"+name)) mBoxes.put("/"+name, pos);
+			if (name.equals("moov") && mMoov == null) {
+				if (size > Integer.MAX_VALUE) throw new IOException();
+				mMoov = mChannel.map(FileChannel.MapMode.READ_ONLY, pos, size);
+				mMoovPosition = pos;
+				walk(mMoov, pos);
+			}
+			pos += size;
+		}
+	}
 
+	/** Walks the boxes in the moov box, the sample tables of each track are kept. */
+	private void walk(ByteBuffer moov, long base) throws IOException {
+		// Ends and paths of the boxes we are in
+		int[] ends = new int[16];
+		String[] paths = new String[16];
+		int depth = 0;
+		ends[0] = moov.limit();
+		paths[0] = "/moov";
+		int pos = (moov.getInt(0) == 1) ? 16 : 8;
+		MP4Track track = null;
+
+		while (depth >= 0) {
+			if (pos+8 > ends[depth]) {
+				pos = ends[depth];
+				depth--;
+				continue;
 			}
-			else {
-				if( len < 8){
-					mFile.seek(mFile.getFilePointer() - 8 + len);
-					sum += len-8;
-				} else {
-					int skipped = mFile.skipBytes((int)(len-8));
-					if (skipped < ((int)(len-8))) {
-						throw new IOException();
-					}
-					mPos += len-8;
-					sum += len-8;
-				}
+			long size = moov.getInt(pos) & 0xFFFFFFFFL;
+			int header = 8;
+			if (size == 1) {
+				size = moov.getLong(pos+8);
+				header = 16;
+			} else if (size == 0) {
+				size = ends[depth]-pos;
 			}
+			if (size < header || pos+size > ends[depth]) throw new IOException();
+			String name = MP4Track.fourcc(moov, pos+4);
+			String path = paths[depth]+'/'+name;
+			if (!mBoxes.containsKey(path)) mBoxes.put(path, base+pos);
+
+			if (name.equals("trak")) {
+				track = new MP4Track();
+				mTracks.add(track);
+			} else if (track != null) {
+				ByteBuffer payload = moov.duplicate();
+				payload.limit(pos+(int) size);
+				payload.position(pos+header);
+				track.setBox(name, payload.slice(), base+pos);
+			}
+
+			if (isContainer(name) && depth+1 < ends.length) {
+				depth++;
+				ends[depth] = pos+(int) size;
+				paths[depth] = path;
+				pos += header;
+			} else {
+				pos += size;
+			}
+		}
+
+		for (int i=mTracks.size()-1; i>=0; i--) {
+			if (!mTracks.get(i).isComplete()) mTracks.remove(i);
+			else mTracks.get(i).check();
 		}
 	}
 
-	private boolean validBoxName(byte[] buffer) {
-		for (int i=0;i<4;i++) {
-			// If the next 4 bytes are neither lowercase letters nor numbers
-			if ((buffer[i+4]< 'a' || buffer[i+4]>'z') && (buffer[i+4]<'0'|| buffer[i+4]>'9') ) return false;
+	/** Returns the payload of the box at a position in a buffer, the walk already checked its size. */
+	private static ByteBuffer getPayload(ByteBuffer buffer, int pos) {
+		long size = buffer.getInt(pos) & 0xFFFFFFFFL;
+		int header = 8;
+		if (size == 1) {
+			size = buffer.getLong(pos+8);
+			header = 16;
+		} else if (size == 0) {
+			size = buffer.limit()-pos;
 		}
-		return true;
+		ByteBuffer payload = buffer.duplicate();
+		payload.limit(pos+(int) size);
+		payload.position(pos+header);
+		return payload.slice();
+	}
+
+	private static boolean isContainer(String name) {
+		for (String container : CONTAINERS) {
+			if (container.equals(name)) return true;
+		}
+		return false;
 	}
 	
-	static String toHexString(byte[] buffer,int start, int len) {
+	/** Returns the bytes of a buffer as a lower case hexadecimal string, as found in SDP files. */
+	public static String toHexString(byte[] buffer,int start, int len) {
 		String c;
 		StringBuilder s = new StringBuilder();
 		for (int i=start;i<start+len;i++) {
@@ -151,105 +241,3 @@ public class MP4Parser {
 	}
 
 }
-
-class StsdBox {
-
-	private RandomAccessFile fis;
-	private byte[] buffer = new byte[4];
-	private long pos = 0;
-
-	private byte[] pps;
-	private byte[] sps;
-	private int spsLength, ppsLength;
-
-	/** Parse the sdsd box in an mp4 file
-	 * fis: proper mp4 file
-	 * pos: stsd box's position in the file
-	 */
-	public StsdBox (RandomAccessFile fis, long pos) {
-
-		this.fis = fis;
-		this.pos = pos;
-
-		findBoxAvcc();
-		findSPSandPPS();
-
-	}
-
-	public String getProfileLevel() {
-		return MP4Parser.toHexString(sps,1,3);
-	}
-
-	public String getB64PPS() {
-		return Base64.encodeToString(pps, 0, ppsLength, Base64.NO_WRAP);
-	}
-
-	public String getB64SPS() {
-		return Base64.encodeToString(sps, 0, spsLength, Base64.NO_WRAP);
-	}
-
-	private boolean findSPSandPPS() {
-		/*
-		 *  SPS and PPS parameters are stored in the avcC box
-		 *  You may find really useful information about this box 
-		 *  in the document ISO-IEC 14496-15, part 5.2.4.1.1
-		 *  The box's structure is described there
-		 *  <pre>
-		 *  aligned(8) class AVCDecoderConfigurationRecord {
-		 *		unsigned int(8) configurationVersion = 1;
-		 *		unsigned int(8) AVCProfileIndication;
-		 *		unsigned int(8) profile_compatibility;
-		 *		unsigned int(8) AVCLevelIndication;
-		 *		bit(6) reserved = ‘111111’b;
-		 *		unsigned int(2) lengthSizeMinusOne;
-		 *		bit(3) reserved = ‘111’b;
-		 *		unsigned int(5) numOfSequenceParameterSets;
-		 *		for (i=0; i< numOfSequenceParameterSets; i++) {
-		 *			unsigned int(16) sequenceParameterSetLength ;
-		 *			bit(8*sequenceParameterSetLength) sequenceParameterSetNALUnit;
-		 *		}
-		 *		unsigned int(8) numOfPictureParameterSets;
-		 *		for (i=0; i< numOfPictureParameterSets; i++) {
-		 *			unsigned int(16) pictureParameterSetLength;
-		 *			bit(8*pictureParameterSetLength) pictureParameterSetNALUnit;
-		 *		}
-		 *	}
-		 *  </pre>
-		 */
-		try {
-
-			// TODO: Here we assume that numOfSequenceParameterSets = 1, numOfPictureParameterSets = 1 !
-			// Here we extract the SPS parameter
-			fis.skipBytes(7);
-			spsLength  = 0xFF&fis.readByte();
-			sps = new byte[spsLength];
-			fis.read(sps,0,spsLength);
-			// Here we extract the PPS parameter
-			fis.skipBytes(2);
-			ppsLength = 0xFF&fis.readByte();
-			pps = new byte[ppsLength];
-			fis.read(pps,0,ppsLength);
-
-		} catch (IOException e) {
-			return false;
-		}
-
-		return true;
-	}
-
-	private boolean findBoxAvcc() {
-		try {
-			fis.seek(pos+8);
-			while (true) {
-				while (fis.read() != 'a');
-				fis.read(buffer,0,3);
-				if (buffer[0] == 'v' && buffer[1] == 'c' && buffer[2] == 'C') break;
-			}
-		} catch (IOException e) {
-			return false;
-		}
-		return true;
-
-	}
-
-}
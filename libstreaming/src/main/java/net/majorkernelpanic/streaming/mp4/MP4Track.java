@@ -0,0 +1,370 @@
+package net.majorkernelpanic.streaming.mp4;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Sample tables of a track of an mp4 file, see {@link MP4Parser#getTracks()}.
+ * The tables are read in place from the moov box mapped by the parser, nothing is copied,
+ * so that long recordings cost no heap. Times are in units of {@link #getTimescale()}
+ * unless stated otherwise, edit lists are ignored.
+ * See ISO/IEC 14496-12, section 8.6 and 8.7.
+ */
+public class MP4Track {
+
+	/** Handler type of video tracks. */
+	public final static String VIDEO = "vide";
+
+	/** Handler type of audio tracks. */
+	public final static String AUDIO = "soun";
+
+	private String mHandler = "";
+	private long mTimescale = 1000, mDuration = 0;
+	private long mStsdPosition = -1;
+
+	// Payloads of the full boxes, version and flags included
+	private ByteBuffer mStsd, mStsz, mStsc, mStco, mStts, mCtts, mStss;
+	private boolean mLargeOffsets = false;
+
+	MP4Track() {}
+
+	/** Called by the parser for each box of the track. */
+	void setBox(String name, ByteBuffer payload, long position) {
+		if (name.equals("mdhd")) {
+			// The timescale and the duration are 64 bits long in version 1
+			if (payload.get(0) == 1) {
+				mTimescale = payload.getInt(20) & 0xFFFFFFFFL;
+				mDuration = payload.getLong(24);
+			} else {
+				mTimescale = payload.getInt(12) & 0xFFFFFFFFL;
+				mDuration = payload.getInt(16) & 0xFFFFFFFFL;
+			}
+			if (mTimescale == 0) mTimescale = 1000;
+		} else if (name.equals("hdlr")) {
+			mHandler = fourcc(payload, 8);
+		} else if (name.equals("stsd")) {
+			mStsd = payload;
+			mStsdPosition = position;
+		} else if (name.equals("stsz")) {
+			mStsz = payload;
+		} else if (name.equals("stsc")) {
+			mStsc = payload;
+		} else if (name.equals("stco") || name.equals("co64")) {
+			mStco = payload;
+			mLargeOffsets = name.equals("co64");
+		} else if (name.equals("stts")) {
+			mStts = payload;
+		} else if (name.equals("ctts")) {
+			mCtts = payload;
+		} else if (name.equals("stss")) {
+			mStss = payload;
+		}
+	}
+
+	/** Returns true if the tables needed to read the samples are all there. */
+	boolean isComplete() {
+		return mStsd != null && mStsz != null && mStsc != null && mStco != null && mStts != null;
+	}
+
+	/**
+	 * Checks that the tables of a complete track hold the entries they announce, that the runs
+	 * of chunks of the stsc box place every sample in a chunk of the stco box, and that the runs of
+	 * the stts and ctts boxes, none of them empty, describe every sample, so that a {@link Cursor}
+	 * never reads past them.
+	 * @throws IOException If the tables are malformed
+	 */
+	void check() throws IOException {
+		int samples = getSampleCount();
+		int chunks = mStco.getInt(4);
+		int entries = mStsc.getInt(4);
+		if (samples < 0 || chunks < 0 || entries < 0) throw new IOException("Negative entry count");
+		if (mStsz.getInt(4) == 0 && 12+4L*samples > mStsz.limit()) throw new IOException("Truncated stsz box");
+		if (8L+(mLargeOffsets ? 8L : 4L)*chunks > mStco.limit()) throw new IOException("Truncated stco box");
+		if (8+12L*entries > mStsc.limit()) throw new IOException("Truncated stsc box");
+		if (8+8L*mStts.getInt(4) > mStts.limit()) throw new IOException("Truncated stts box");
+		if (mCtts != null && 8+8L*mCtts.getInt(4) > mCtts.limit()) throw new IOException("Truncated ctts box");
+		if (mStss != null && 8+4L*mStss.getInt(4) > mStss.limit()) throw new IOException("Truncated stss box");
+		long covered = 0;
+		for (int i=0; i<entries; i++) {
+			// Chunk numbers start at 1 and increase, the last run ends with the stco box
+			int first = mStsc.getInt(8+12*i);
+			int next = i+1 < entries ? mStsc.getInt(8+12*(i+1)) : chunks+1;
+			int perChunk = mStsc.getInt(12+12*i);
+			if (first < 1 || next <= first || perChunk <= 0) throw new IOException("Malformed stsc box");
+			covered += (long) (Math.min(next, chunks+1)-Math.min(first, chunks+1))*perChunk;
+		}
+		if (covered < samples) throw new IOException("Samples out of the chunks of the track");
+		if (runs(mStts) < samples) throw new IOException("Malformed stts box");
+		if (mCtts != null && runs(mCtts) < samples) throw new IOException("Malformed ctts box");
+	}
+
+	/** Returns the number of samples the runs of a stts or ctts box describe, or -1 if a run is empty. */
+	private static long runs(ByteBuffer box) {
+		long samples = 0;
+		for (int i=0, n=box.getInt(4); i<n; i++) {
+			long count = box.getInt(8+8*i) & 0xFFFFFFFFL;
+			if (count == 0) return -1;
+			samples += count;
+		}
+		return samples;
+	}
+
+	/** Returns {@link #VIDEO}, {@link #AUDIO} or the handler type of other tracks. */
+	public String getHandlerType() {
+		return mHandler;
+	}
+
+	/** Returns the type of the first sample entry, like avc1, hvc1 or mp4a. */
+	public String getSampleEntryType() {
+		return mStsd.limit() >= 16 ? fourcc(mStsd, 12) : "";
+	}
+
+	/** Returns the payload of the stsd box, the sample entries start at offset 8. */
+	public ByteBuffer getSampleDescription() {
+		return mStsd.duplicate();
+	}
+
+	/** Returns the position of the stsd box in the file. */
+	public long getSampleDescriptionPosition() {
+		return mStsdPosition;
+	}
+
+	/** Returns the number of time units per second. */
+	public long getTimescale() {
+		return mTimescale;
+	}
+
+	/** Returns the duration of the track in us. */
+	public long getDurationUs() {
+		return toUs(mDuration);
+	}
+
+	/** Converts a time of the track to us. */
+	public long toUs(long time) {
+		return time*1000000/mTimescale;
+	}
+
+	/** Converts a time in us to a time of the track. */
+	public long fromUs(long us) {
+		return us*mTimescale/1000000;
+	}
+
+	public int getSampleCount() {
+		return mStsz.getInt(8);
+	}
+
+	public int getSampleSize(int sample) {
+		int size = mStsz.getInt(4);
+		return size != 0 ? size : mStsz.getInt(12+4*sample);
+	}
+
+	/** Returns true if the sample can be decoded without the previous ones, all samples are if the track has no stss box. */
+	public boolean isSyncSample(int sample) {
+		if (mStss == null) return true;
+		int i = syncIndex(sample);
+		return i >= 0 && mStss.getInt(8+4*i)-1 == sample;
+	}
+
+	/** Returns the last sync sample at or before a sample, or the first sample if there is none. */
+	public int getSyncSample(int sample) {
+		if (mStss == null) return sample;
+		int i = syncIndex(sample);
+		return i >= 0 ? mStss.getInt(8+4*i)-1 : 0;
+	}
+
+	/** Returns the index in the stss box of the last sync sample at or before a sample, or -1. */
+	private int syncIndex(int sample) {
+		int low = 0, high = mStss.getInt(4)-1, found = -1;
+		while (low <= high) {
+			int mid = (low+high) >>> 1;
+			// Sample numbers start at 1 in the stss box
+			if (mStss.getInt(8+4*mid)-1 <= sample) {
+				found = mid;
+				low = mid+1;
+			} else {
+				high = mid-1;
+			}
+		}
+		return found;
+	}
+
+	/** Returns the last sample whose decoding time is at or before a time, or 0. */
+	public int getSampleAt(long time) {
+		int runs = mStts.getInt(4), sample = 0;
+		long t = 0;
+		for (int i=0; i<runs; i++) {
+			int count = mStts.getInt(8+8*i);
+			long delta = mStts.getInt(12+8*i) & 0xFFFFFFFFL;
+			if (delta > 0 && t+count*delta > time) return sample+(int) ((time-t)/delta);
+			t += count*delta;
+			sample += count;
+		}
+		return Math.max(sample-1, 0);
+	}
+
+	/** Returns the first sample whose decoding time is at or after a time, or the number of samples. */
+	public int getSampleFrom(long time) {
+		int sample = getSampleAt(time);
+		return getSampleTime(sample) < time ? sample+1 : sample;
+	}
+
+	/** Returns the decoding time of a sample. */
+	public long getSampleTime(int sample) {
+		int runs = mStts.getInt(4), first = 0;
+		long t = 0;
+		for (int i=0; i<runs; i++) {
+			int count = mStts.getInt(8+8*i);
+			long delta = mStts.getInt(12+8*i) & 0xFFFFFFFFL;
+			if (sample < first+count) return t+(sample-first)*delta;
+			t += count*delta;
+			first += count;
+		}
+		return t;
+	}
+
+	private long getChunkOffset(int chunk) {
+		return mLargeOffsets ? mStco.getLong(8+8*chunk) : mStco.getInt(8+4*chunk) & 0xFFFFFFFFL;
+	}
+
+	/** Returns a cursor on a sample, it then walks the samples in decoding order. */
+	public Cursor cursor(int sample) {
+		Cursor cursor = new Cursor();
+		cursor.seek(sample);
+		return cursor;
+	}
+
+	/**
+	 * Walks the samples of the track, each step costs a few reads in the tables whatever the
+	 * size of the track. The fields describe the current sample.
+	 */
+	public class Cursor {
+
+		/** Index of the sample, starting at 0. It equals the number of samples once they have all been walked. */
+		public int sample;
+		/** Position and size of the sample in the file. */
+		public long offset;
+		public int size;
+		/** Decoding and composition time of the sample. */
+		public long dts, cts;
+
+		private int mChunk, mLeftInChunk, mStscEntry;
+		private int mSttsEntry, mLeftInStts, mCttsEntry, mLeftInCtts;
+
+		private Cursor() {}
+
+		/** Moves the cursor to a sample. */
+		public void seek(int target) {
+			target = Math.max(0, target);
+			if (target >= getSampleCount()) {
+				sample = getSampleCount();
+				dts = getSampleTime(sample);
+				update();
+				return;
+			}
+
+			// Decoding time, from the runs of the stts box
+			dts = 0;
+			mSttsEntry = 0;
+			int left = target, runs = mStts.getInt(4);
+			while (mSttsEntry < runs) {
+				int count = mStts.getInt(8+8*mSttsEntry);
+				long delta = mStts.getInt(12+8*mSttsEntry) & 0xFFFFFFFFL;
+				if (left < count) {
+					dts += left*delta;
+					mLeftInStts = count-left;
+					break;
+				}
+				dts += count*delta;
+				left -= count;
+				mSttsEntry++;
+			}
+
+			// Composition offset, from the runs of the ctts box
+			mCttsEntry = 0;
+			mLeftInCtts = 0;
+			if (mCtts != null) {
+				left = target;
+				runs = mCtts.getInt(4);
+				while (mCttsEntry < runs) {
+					int count = mCtts.getInt(8+8*mCttsEntry);
+					if (left < count) {
+						mLeftInCtts = count-left;
+						break;
+					}
+					left -= count;
+					mCttsEntry++;
+				}
+			}
+
+			// Chunk of the sample, from the runs of chunks of the stsc box
+			int entries = mStsc.getInt(4), first = 0;
+			mStscEntry = 0;
+			mChunk = 0;
+			left = target;
+			while (true) {
+				int perChunk = mStsc.getInt(12+12*mStscEntry);
+				int next = mStscEntry+1 < entries ? mStsc.getInt(8+12*(mStscEntry+1))-1 : Integer.MAX_VALUE;
+				long chunks = next-(mStsc.getInt(8+12*mStscEntry)-1);
+				if (perChunk > 0 && left < chunks*perChunk) {
+					mChunk = (mStsc.getInt(8+12*mStscEntry)-1)+left/perChunk;
+					first = target-left%perChunk;
+					mLeftInChunk = perChunk-left%perChunk;
+					break;
+				}
+				left -= chunks*perChunk;
+				mStscEntry++;
+			}
+
+			// Position of the sample in its chunk
+			offset = getChunkOffset(mChunk);
+			for (int i=first; i<target; i++) offset += getSampleSize(i);
+			sample = target;
+			update();
+		}
+
+		/**
+		 * Moves the cursor to the next sample.
+		 * @return False once the samples have all been walked
+		 */
+		public boolean next() {
+			if (sample >= getSampleCount()) return false;
+			offset += size;
+			dts += mStts.getInt(12+8*mSttsEntry) & 0xFFFFFFFFL;
+			if (--mLeftInStts == 0 && ++mSttsEntry < mStts.getInt(4)) mLeftInStts = mStts.getInt(8+8*mSttsEntry);
+			if (mCtts != null && --mLeftInCtts == 0 && ++mCttsEntry < mCtts.getInt(4)) mLeftInCtts = mCtts.getInt(8+8*mCttsEntry);
+			if (--mLeftInChunk == 0) {
+				mChunk++;
+				if (mStscEntry+1 < mStsc.getInt(4) && mStsc.getInt(8+12*(mStscEntry+1))-1 == mChunk) mStscEntry++;
+				mLeftInChunk = mStsc.getInt(12+12*mStscEntry);
+				if (mChunk < mStco.getInt(4)) offset = getChunkOffset(mChunk);
+			}
+			sample++;
+			update();
+			return sample < getSampleCount();
+		}
+
+		private void update() {
+			if (sample >= getSampleCount()) {
+				size = 0;
+				cts = dts;
+				return;
+			}
+			size = getSampleSize(sample);
+			// Composition offsets are signed in version 1, and in practice in version 0 as well
+			cts = dts+(mCtts != null && mCttsEntry < mCtts.getInt(4) ? mCtts.getInt(12+8*mCttsEntry) : 0);
+		}
+
+		/** Returns true if the current sample is a sync sample. */
+		public boolean isSync() {
+			return isSyncSample(sample);
+		}
+
+	}
+
+	static String fourcc(ByteBuffer buffer, int offset) {
+		char[] name = new char[4];
+		for (int i=0; i<4; i++) name[i] = (char) (buffer.get(offset+i)&0xFF);
+		return new String(name);
+	}
+
+}
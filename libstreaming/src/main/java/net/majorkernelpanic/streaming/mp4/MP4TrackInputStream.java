@@ -0,0 +1,161 @@
+package net.majorkernelpanic.streaming.mp4;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import net.majorkernelpanic.streaming.rtp.MediaCodecInputStream;
+import android.annotation.SuppressLint;
+import android.media.MediaCodec.BufferInfo;
+
+/**
+ * Serves the samples of a track of an mp4 file the way {@link MediaCodecInputStream} serves the
+ * output buffers of an encoder, so that the packetizers stream a file like they stream the camera.
+ * Samples are served in real time: a sample is only read once its decoding time has come, and its
+ * presentation time is given by {@link #getLastBufferInfo()}. The file is read through a window
+ * mapped in memory that slides along the samples, it is never loaded on the heap.
+ * For H.264 tracks, each NAL unit of a sample is served as a buffer of its own preceded by a start
+ * code, like the encoders do.
+ */
+@SuppressLint("NewApi")
+public class MP4TrackInputStream extends MediaCodecInputStream {
+
+	public final static String TAG = "MP4TrackInputStream";
+
+	/** Size of the part of the file mapped at once. */
+	private final static int WINDOW_SIZE = 4*1024*1024;
+
+	private final static byte[] START_CODE = {0, 0, 0, 1};
+
+	private final FileChannel mChannel;
+	private final MP4Track mTrack;
+	private final MP4Track.Cursor mCursor;
+	private final int mLengthSize;
+	private final long mStart, mClock;
+	private final BufferInfo mBufferInfo = new BufferInfo();
+
+	private MappedByteBuffer mWindow = null;
+	private long mWindowStart = 0;
+
+	// What is left of the current sample in the window, and of the buffer being served
+	private int mSamplePosition = 0, mSampleEnd = 0;
+	private int mPrefix = 0, mRemaining = 0;
+	private boolean mStarted = false;
+	private volatile boolean mClosed = false;
+
+	/**
+	 * @param channel The channel of the file, see {@link MP4Parser#getChannel()}
+	 * @param track The track to serve
+	 * @param lengthSize The size of the length that precedes the NAL units of the samples, 0 to serve whole samples
+	 * @param start The time of the track in us from which the samples are served, the first one is the first sample decoded at or after it
+	 * @param clock The time in us, see {@link System#nanoTime()}, at which the sample at start is due
+	 */
+	public MP4TrackInputStream(FileChannel channel, MP4Track track, int lengthSize, long start, long clock) {
+		mChannel = channel;
+		mTrack = track;
+		mLengthSize = lengthSize;
+		mStart = start;
+		mClock = clock;
+		mCursor = track.cursor(track.getSampleFrom(track.fromUs(start)));
+	}
+
+	@Override
+	public void close() {
+		mClosed = true;
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		return read(b, 0, 1) < 0 ? -1 : b[0]&0xFF;
+	}
+
+	@Override
+	public int read(byte[] buffer, int offset, int length) throws IOException {
+		if (mClosed) throw new IOException("This InputStream was closed");
+		try {
+			if (mPrefix == 0 && mRemaining == 0) nextBuffer();
+			int n = 0;
+			while (mPrefix > 0 && n < length) {
+				buffer[offset+n++] = START_CODE[START_CODE.length-mPrefix--];
+			}
+			int min = Math.min(length-n, mRemaining);
+			mWindow.position(mSamplePosition);
+			mWindow.get(buffer, offset+n, min);
+			mSamplePosition += min;
+			mRemaining -= min;
+			return n+min;
+		} catch (RuntimeException e) {
+			// The sample tables point out of the file
+			throw new IOException("Malformed mp4 file: "+e.getMessage());
+		}
+	}
+
+	@Override
+	public int available() {
+		return mPrefix+mRemaining;
+	}
+
+	@Override
+	public BufferInfo getLastBufferInfo() {
+		return mBufferInfo;
+	}
+
+	/** Moves on to the next NAL unit of the sample, or to the next sample once it is due. */
+	private void nextBuffer() throws IOException {
+		while (true) {
+			if (mSamplePosition < mSampleEnd && mLengthSize > 0) {
+				// The next NAL unit of the current sample
+				int size = 0;
+				for (int i=0; i<mLengthSize; i++) size = size<<8 | mWindow.get(mSamplePosition+i)&0xFF;
+				mSamplePosition += mLengthSize;
+				if (size <= 0 || size > mSampleEnd-mSamplePosition) {
+					mSamplePosition = mSampleEnd;
+					continue;
+				}
+				mPrefix = START_CODE.length;
+				mRemaining = size;
+				mBufferInfo.size = size+START_CODE.length;
+				return;
+			}
+			if (mStarted && !mCursor.next()) throw new EOFException("End of the track");
+			mStarted = true;
+			if (mCursor.sample >= mTrack.getSampleCount()) throw new EOFException("End of the track");
+			waitFor(mClock+mTrack.toUs(mCursor.dts)-mStart);
+			map(mCursor.offset, mCursor.size);
+			mSamplePosition = (int) (mCursor.offset-mWindowStart);
+			mSampleEnd = mSamplePosition+mCursor.size;
+			mBufferInfo.presentationTimeUs = mClock+mTrack.toUs(mCursor.cts)-mStart;
+			if (mLengthSize == 0) {
+				mPrefix = 0;
+				mRemaining = mCursor.size;
+				mBufferInfo.size = mCursor.size;
+				return;
+			}
+		}
+	}
+
+	/** Sleeps until a time in us, see {@link System#nanoTime()}. */
+	private void waitFor(long time) throws IOException {
+		long delay = time-System.nanoTime()/1000;
+		if (delay <= 0) return;
+		try {
+			Thread.sleep(delay/1000, (int) (delay%1000)*1000);
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		}
+		if (mClosed) throw new IOException("This InputStream was closed");
+	}
+
+	/** Makes sure that a part of the file is in the mapped window. */
+	private void map(long position, int size) throws IOException {
+		if (mWindow != null && position >= mWindowStart && position+size <= mWindowStart+mWindow.capacity()) return;
+		long length = Math.min(Math.max(WINDOW_SIZE, size), mChannel.size()-position);
+		if (length < size) throw new EOFException("Sample out of the file");
+		mWindow = mChannel.map(FileChannel.MapMode.READ_ONLY, position, length);
+		mWindowStart = position;
+	}
+
+}
@@ -0,0 +1,207 @@
+package net.majorkernelpanic.streaming.mp4;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.util.Base64;
+
+/**
+ * Parses the stsd box of a video track, see {@link MP4Parser#getStsdBox()}.
+ * The parameter sets of the stream are found in the avcC box (H.264) or the hvcC box (H.265)
+ * of the first sample entry. The box is read from a buffer, the boxes of the sample entry are
+ * walked by their headers, so that only the few bytes of the decoder configuration are read.
+ * See ISO/IEC 14496-15, section 5.3.3 and 8.3.3.
+ */
+public class StsdBox {
+
+	/** NAL unit types of the parameter sets of H.265 streams. */
+	private final static int HEVC_VPS = 32, HEVC_SPS = 33, HEVC_PPS = 34;
+
+	// Size of the fields of a VisualSampleEntry before its boxes, see ISO/IEC 14496-12, section 12.1.3
+	private final static int VISUAL_SAMPLE_ENTRY_SIZE = 86;
+
+	private final String mType;
+	private boolean mHevc = false;
+	private int mLengthSize = 4;
+	private String mProfileLevel = "";
+	private final ArrayList<byte[]> mVps = new ArrayList<byte[]>();
+	private final ArrayList<byte[]> mSps = new ArrayList<byte[]>();
+	private final ArrayList<byte[]> mPps = new ArrayList<byte[]>();
+
+	/**
+	 * Parses the payload of a stsd box, see {@link MP4Track#getSampleDescription()}.
+	 * @throws IOException If the first sample entry has neither an avcC nor an hvcC box
+	 */
+	public StsdBox(ByteBuffer stsd) throws IOException {
+		try {
+			// The sample entries follow the version, the flags and the entry count
+			int entry = 8;
+			mType = MP4Track.fourcc(stsd, entry+4);
+			int end = Math.min(stsd.limit(), entry+stsd.getInt(entry));
+			int pos = entry+VISUAL_SAMPLE_ENTRY_SIZE;
+			while (pos+8 <= end) {
+				int size = stsd.getInt(pos);
+				if (size < 8 || pos+size > end) break;
+				String name = MP4Track.fourcc(stsd, pos+4);
+				if (name.equals("avcC")) {
+					parseAvcC(stsd, pos+8, pos+size);
+					return;
+				} else if (name.equals("hvcC")) {
+					parseHvcC(stsd, pos+8, pos+size);
+					return;
+				}
+				pos += size;
+			}
+		} catch (IndexOutOfBoundsException e) {
+			throw new IOException("Malformed stsd box");
+		}
+		throw new IOException("No avcC or hvcC box in the sample entry");
+	}
+
+	/**
+	 * <pre>
+	 * aligned(8) class AVCDecoderConfigurationRecord {
+	 *		unsigned int(8) configurationVersion = 1;
+	 *		unsigned int(8) AVCProfileIndication;
+	 *		unsigned int(8) profile_compatibility;
+	 *		unsigned int(8) AVCLevelIndication;
+	 *		bit(6) reserved = '111111'b;
+	 *		unsigned int(2) lengthSizeMinusOne;
+	 *		bit(3) reserved = '111'b;
+	 *		unsigned int(5) numOfSequenceParameterSets;
+	 *		for (i=0; i< numOfSequenceParameterSets; i++) {
+	 *			unsigned int(16) sequenceParameterSetLength ;
+	 *			bit(8*sequenceParameterSetLength) sequenceParameterSetNALUnit;
+	 *		}
+	 *		unsigned int(8) numOfPictureParameterSets;
+	 *		for (i=0; i< numOfPictureParameterSets; i++) {
+	 *			unsigned int(16) pictureParameterSetLength;
+	 *			bit(8*pictureParameterSetLength) pictureParameterSetNALUnit;
+	 *		}
+	 *		// Followed by more fields for the high profiles
+	 *	}
+	 * </pre>
+	 */
+	private void parseAvcC(ByteBuffer box, int pos, int end) throws IOException {
+		if (pos+7 > end) throw new IOException("Malformed avcC box");
+		byte[] profileLevel = new byte[3];
+		for (int i=0; i<3; i++) profileLevel[i] = box.get(pos+1+i);
+		mProfileLevel = MP4Parser.toHexString(profileLevel, 0, 3);
+		mLengthSize = (box.get(pos+4)&0x03)+1;
+		int count = box.get(pos+5)&0x1F;
+		pos += 6;
+		for (int i=0; i<count; i++) pos = readNalUnit(box, pos, end, mSps);
+		if (pos >= end) throw new IOException("Malformed avcC box");
+		count = box.get(pos++)&0xFF;
+		for (int i=0; i<count; i++) pos = readNalUnit(box, pos, end, mPps);
+	}
+
+	/**
+	 * The 22 bytes of the HEVCDecoderConfigurationRecord before its arrays describe the profile,
+	 * the last one holds lengthSizeMinusOne. Each array then holds the NAL units of one type:
+	 * <pre>
+	 *	unsigned int(8) numOfArrays;
+	 *	for (j=0; j < numOfArrays; j++) {
+	 *		bit(1) array_completeness;
+	 *		unsigned int(1) reserved = 0;
+	 *		unsigned int(6) NAL_unit_type;
+	 *		unsigned int(16) numNalus;
+	 *		for (i=0; i< numNalus; i++) {
+	 *			unsigned int(16) nalUnitLength;
+	 *			bit(8*nalUnitLength) nalUnit;
+	 *		}
+	 *	}
+	 * </pre>
+	 */
+	private void parseHvcC(ByteBuffer box, int pos, int end) throws IOException {
+		if (pos+23 > end) throw new IOException("Malformed hvcC box");
+		mHevc = true;
+		mLengthSize = (box.get(pos+21)&0x03)+1;
+		int arrays = box.get(pos+22)&0xFF;
+		pos += 23;
+		for (int j=0; j<arrays; j++) {
+			if (pos+3 > end) throw new IOException("Malformed hvcC box");
+			int type = box.get(pos)&0x3F;
+			int count = box.getShort(pos+1)&0xFFFF;
+			pos += 3;
+			ArrayList<byte[]> sets = type == HEVC_VPS ? mVps : type == HEVC_SPS ? mSps : type == HEVC_PPS ? mPps : null;
+			for (int i=0; i<count; i++) {
+				if (sets != null) {
+					pos = readNalUnit(box, pos, end, sets);
+				} else {
+					// SEI and other NAL units are skipped
+					if (pos+2 > end) throw new IOException("Malformed hvcC box");
+					pos += 2+(box.getShort(pos)&0xFFFF);
+				}
+			}
+		}
+	}
+
+	/** Reads a NAL unit preceded by its length on 16 bits, returns the position following it. */
+	private static int readNalUnit(ByteBuffer box, int pos, int end, List<byte[]> units) throws IOException {
+		if (pos+2 > end) throw new IOException("Malformed decoder configuration");
+		int length = box.getShort(pos)&0xFFFF;
+		pos += 2;
+		if (pos+length > end) throw new IOException("Malformed decoder configuration");
+		byte[] unit = new byte[length];
+		ByteBuffer view = box.duplicate();
+		view.position(pos);
+		view.get(unit);
+		units.add(unit);
+		return pos+length;
+	}
+
+	/** Returns the type of the sample entry, like avc1, avc3, hvc1 or hev1. */
+	public String getSampleEntryType() {
+		return mType;
+	}
+
+	/** Returns true if the stream is H.265, and false if it is H.264. */
+	public boolean isHevc() {
+		return mHevc;
+	}
+
+	/** Returns the size in bytes of the length that precedes each NAL unit in the samples. */
+	public int getLengthSize() {
+		return mLengthSize;
+	}
+
+	/** Returns the video parameter sets, H.265 only. */
+	public List<byte[]> getVPS() {
+		return mVps;
+	}
+
+	public List<byte[]> getSPS() {
+		return mSps;
+	}
+
+	public List<byte[]> getPPS() {
+		return mPps;
+	}
+
+	/** Returns the profile-level-id of an H.264 stream, see RFC 6184, section 8.1. */
+	public String getProfileLevel() {
+		return mProfileLevel;
+	}
+
+	/** Returns the first picture parameter set in base 64. */
+	public String getB64PPS() {
+		return mPps.isEmpty() ? "" : Base64.encodeToString(mPps.get(0), Base64.NO_WRAP);
+	}
+
+	/** Returns the first sequence parameter set in base 64. */
+	public String getB64SPS() {
+		return mSps.isEmpty() ? "" : Base64.encodeToString(mSps.get(0), Base64.NO_WRAP);
+	}
+
+	/** Returns all the sequence and picture parameter sets of an H.264 stream as sprop-parameter-sets, see RFC 6184, section 8.1. */
+	public String getSpropParameterSets() {
+		StringBuilder sets = new StringBuilder();
+		for (byte[] sps : mSps) sets.append(Base64.encodeToString(sps, Base64.NO_WRAP)).append(',');
+		for (byte[] pps : mPps) sets.append(Base64.encodeToString(pps, Base64.NO_WRAP)).append(',');
+		return sets.length() > 0 ? sets.substring(0, sets.length()-1) : "";
+	}
+
+}
@@ -0,0 +1,73 @@
+package net.majorkernelpanic.streaming.rtcp;
+
+import net.majorkernelpanic.streaming.rtp.RtpSocket.InterleavedWriter;
+
+import java.net.InetAddress;
+
+/**
+ * Link statistics of one receiver of an RTP stream, as given by the last
+ * RTCP Receiver Report (RFC 3550, section 6.4.2) it sent us.
+ * See {@link RtcpReceiver#getReports()}.
+ */
+public class ReceiverReport implements Cloneable {
+
+	/** SSRC of the receiver that sent the report. */
+	public int ssrc;
+
+	/** Address and port the report came from. */
+	public InetAddress address;
+	public int port;
+
+	/** The RTSP connection the report was interleaved in, null if it came with UDP. */
+	public InterleavedWriter writer = null;
+
+	/** CNAME of the receiver taken from its SDES packets, may be null. */
+	public String cname = null;
+
+	/** Fraction of the packets lost since the previous report, between 0 and 1. */
+	public float fractionLost = 0;
+
+	/** Number of packets lost since the beginning of the reception. */
+	public int cumulativeLost = 0;
+
+	/** Extended highest sequence number received. */
+	public long highestSequence = 0;
+
+	/** Interarrival jitter in ms. */
+	public float jitter = 0;
+
+	/** Round trip time in ms, or -1 if the receiver has not received any Sender Report yet. */
+	public long rtt = -1;
+
+	/** Maximum bitrate estimated by the receiver (REMB) in bit/s, 0 if the receiver does not send REMB. */
+	public long remb = 0;
+
+	/** Number of generic NACK entries received from this receiver. */
+	public int nacks = 0;
+
+	/** Time of the last report in ms, see {@link android.os.SystemClock#elapsedRealtime()}. */
+	public long lastUpdate = 0;
+
+	/** True once the receiver has left the session with an RTCP BYE. */
+	public boolean bye = false;
+
+	public ReceiverReport(int ssrc) {
+		this.ssrc = ssrc;
+	}
+
+	public ReceiverReport clone() {
+		try {
+			return (ReceiverReport) super.clone();
+		} catch (CloneNotSupportedException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public String toString() {
+		return "SSRC: "+(ssrc&0xFFFFFFFFL)+(cname!=null?" ("+cname+")":"")
+				+" lost: "+(int)(fractionLost*100)+"% ("+cumulativeLost+")"
+				+" jitter: "+jitter+" ms rtt: "+rtt+" ms"
+				+(remb>0?" remb: "+remb/1000+" kbps":"");
+	}
+
+}
@@ -0,0 +1,377 @@
+package net.majorkernelpanic.streaming.rtcp;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.MulticastSocket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import net.majorkernelpanic.streaming.rtp.RtpSocket.InterleavedWriter;
+
+/**
+ * Reads the RTCP packets sent back by the receivers of a stream on the socket
+ * of a {@link SenderReport}, and keeps one {@link ReceiverReport} per receiver.
+ * Compound packets made of SR, RR, SDES and BYE packets are supported, as well as
+ * the PLI and FIR feedback messages (RFC 4585 and RFC 5104) used by receivers to ask for a key frame
+ * and the generic NACKs (RFC 4585) used to ask for the retransmission of lost packets.
+ * Receivers that support it can also send us their estimation of the available bandwidth (REMB).
+ * RTCP packets received by other means (interleaved in an RTSP connection for example)
+ * can be handed over with {@link #parse(byte[], int, int, InetAddress, int)}.
+ */
+public class RtcpReceiver implements Runnable {
+
+	public static final String TAG = "RtcpReceiver";
+
+	public static final int PT_SR = 200;
+	public static final int PT_RR = 201;
+	public static final int PT_SDES = 202;
+	public static final int PT_BYE = 203;
+	public static final int PT_RTPFB = 205;
+	public static final int PT_PSFB = 206;
+
+	/** Generic NACK, FMT of a RTPFB packet. */
+	public static final int FMT_NACK = 1;
+
+	/** Picture Loss Indication, FMT of a PSFB packet. */
+	public static final int FMT_PLI = 1;
+	/** Full Intra Request, FMT of a PSFB packet. */
+	public static final int FMT_FIR = 4;
+	/** Application layer feedback, FMT of a PSFB packet, used by REMB. */
+	public static final int FMT_AFB = 15;
+
+	/** Receivers that have not sent anything for this long (in ms) are forgotten. */
+	public static final long TIMEOUT = 30000;
+
+	/** Called from the thread of the {@link RtcpReceiver} each time a receiver sends a report, a REMB or a BYE. */
+	public interface OnReceiverReportListener {
+		void onReceiverReport(ReceiverReport report);
+	}
+
+	/** Called from the thread of the {@link RtcpReceiver} when a receiver sends a PLI or a FIR. */
+	public interface OnKeyFrameRequestListener {
+		void onKeyFrameRequest(int ssrc);
+	}
+
+	/**
+	 * Called from the thread of the {@link RtcpReceiver} for each entry of a generic NACK:
+	 * the packet pid is lost, and so is the packet pid+i+1 if the bit i of blp is set.
+	 * The address of the receiver may be null.
+	 */
+	public interface OnNackListener {
+		void onNack(int ssrc, InetAddress address, int pid, int blp);
+	}
+
+	private final SenderReport mReport;
+	private final HashMap<Integer,ReceiverReport> mReports = new HashMap<Integer,ReceiverReport>();
+	private volatile Thread mThread;
+	private int mSSRC = 0;
+	private long mClock = 0;
+	private OnReceiverReportListener mListener = null;
+	private OnKeyFrameRequestListener mKeyFrameRequestListener = null;
+	private OnNackListener mNackListener = null;
+	private final HashMap<Integer,Integer> mFirSequences = new HashMap<Integer,Integer>();
+
+	public RtcpReceiver(SenderReport report) {
+		mReport = report;
+	}
+
+	/** Sets the SSRC of our stream, report blocks about other sources are ignored. */
+	public void setSSRC(int ssrc) {
+		mSSRC = ssrc;
+		synchronized (mReports) {
+			mReports.clear();
+		}
+	}
+
+	/** Sets the clock frequency of the stream in Hz, needed to express the jitter in ms. */
+	public void setClockFrequency(long clock) {
+		mClock = clock;
+	}
+
+	public void setOnReceiverReportListener(OnReceiverReportListener listener) {
+		mListener = listener;
+	}
+
+	public void setOnKeyFrameRequestListener(OnKeyFrameRequestListener listener) {
+		mKeyFrameRequestListener = listener;
+	}
+
+	public void setOnNackListener(OnNackListener listener) {
+		mNackListener = listener;
+	}
+
+	/** Starts reading the RTCP socket of the {@link SenderReport}. */
+	public synchronized void start() {
+		if (mThread == null) {
+			mThread = new Thread(this, TAG);
+			mThread.start();
+		}
+	}
+
+	/**
+	 * Stops reading the RTCP socket. The thread may still be blocked in a receive for a while,
+	 * it exits as soon as it sees it has been replaced, so a new one can be started right away.
+	 */
+	public synchronized void stop() {
+		if (mThread != null) {
+			mThread.interrupt();
+			mThread = null;
+		}
+	}
+
+	/** Returns a copy of the last report of each receiver of the stream. */
+	public List<ReceiverReport> getReports() {
+		long now = SystemClock.elapsedRealtime();
+		ArrayList<ReceiverReport> reports = new ArrayList<ReceiverReport>();
+		synchronized (mReports) {
+			for (Iterator<ReceiverReport> it = mReports.values().iterator(); it.hasNext();) {
+				ReceiverReport report = it.next();
+				if (now-report.lastUpdate > TIMEOUT) {
+					it.remove();
+				} else {
+					reports.add(report.clone());
+				}
+			}
+		}
+		return reports;
+	}
+
+	@Override
+	public void run() {
+		MulticastSocket socket = mReport.getSocket();
+		// Each thread has its own buffer, a stopped one may still parse a last packet while its successor runs
+		byte[] buffer = new byte[SenderReport.MTU];
+		DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+		try {
+			socket.setSoTimeout(1000);
+		} catch (IOException e) {
+			Log.e(TAG, e.getMessage()!=null?e.getMessage():"unknown error");
+			return;
+		}
+		while (mThread == Thread.currentThread() && !Thread.interrupted()) {
+			try {
+				packet.setLength(buffer.length);
+				socket.receive(packet);
+				parse(buffer, 0, packet.getLength(), packet.getAddress(), packet.getPort());
+			} catch (SocketTimeoutException ignore) {
+			} catch (IOException e) {
+				// The socket has been closed
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Parses a compound RTCP packet.
+	 * @param buffer The buffer containing the packet
+	 * @param offset Offset of the packet in the buffer
+	 * @param length Length of the packet
+	 * @param address Address of the sender of the packet, may be null
+	 * @param port Port of the sender of the packet
+	 */
+	public void parse(byte[] buffer, int offset, int length, InetAddress address, int port) {
+		parse(buffer, offset, length, address, port, null);
+	}
+
+	/**
+	 * Same as {@link #parse(byte[], int, int, InetAddress, int)} for a packet interleaved in an RTSP connection.
+	 * @param writer The connection the packet came in, see {@link ReceiverReport#writer}
+	 */
+	public void parse(byte[] buffer, int offset, int length, InetAddress address, int port, InterleavedWriter writer) {
+		int end = offset+length;
+		while (offset+8 <= end) {
+			// Version must be 2
+			if ((buffer[offset]&0xC0) != 0x80) break;
+			int count = buffer[offset]&0x1F;
+			int pt = buffer[offset+1]&0xFF;
+			int len = ((int) getInt(buffer, offset+2, 2)+1)*4;
+			if (offset+len > end) break;
+			int ssrc = (int) getInt(buffer, offset+4, 4);
+			switch (pt) {
+			case PT_SR:
+				parseReportBlocks(buffer, offset+28, offset+len, count, ssrc, address, port, writer);
+				break;
+			case PT_RR:
+				parseReportBlocks(buffer, offset+8, offset+len, count, ssrc, address, port, writer);
+				break;
+			case PT_SDES:
+				parseSdes(buffer, offset, offset+len, count);
+				break;
+			case PT_BYE:
+				parseBye(buffer, offset+4, offset+len, count);
+				break;
+			case PT_RTPFB:
+				if (count == FMT_NACK) parseNack(buffer, offset, offset+len, ssrc, address);
+				break;
+			case PT_PSFB:
+				// For feedback messages the count field holds the FMT
+				parsePsfb(buffer, offset, offset+len, count, ssrc);
+				break;
+			}
+			offset += len;
+		}
+	}
+
+	/** The report blocks that don't fit before the end of the packet are ignored, whatever the count says. */
+	private void parseReportBlocks(byte[] buffer, int offset, int end, int count, int ssrc, InetAddress address, int port, InterleavedWriter writer) {
+		long ntp = SenderReport.toCompactNtp(System.nanoTime());
+		for (int i=0; i<count; i++, offset+=24) {
+			if (offset+24 > end) return;
+			if (mSSRC != 0 && (int) getInt(buffer, offset, 4) != mSSRC) continue;
+			ReceiverReport report;
+			synchronized (mReports) {
+				report = getReport(ssrc);
+				report.address = address;
+				report.port = port;
+				report.writer = writer;
+				report.fractionLost = (buffer[offset+4]&0xFF)/256f;
+				// The cumulative number of packets lost is a signed 24 bits integer
+				report.cumulativeLost = ((int) getInt(buffer, offset+5, 3) << 8) >> 8;
+				report.highestSequence = getInt(buffer, offset+8, 4);
+				long jitter = getInt(buffer, offset+12, 4);
+				report.jitter = mClock>0 ? jitter*1000f/mClock : 0;
+				long lsr = getInt(buffer, offset+16, 4);
+				long dlsr = getInt(buffer, offset+20, 4);
+				if (lsr != 0) {
+					// RTT = A - LSR - DLSR in units of 1/65536 s (RFC 3550, section 6.4.1)
+					long rtt = (ntp-lsr-dlsr) & 0xFFFFFFFFL;
+					if (rtt < 0x80000000L) report.rtt = rtt*1000/65536;
+				}
+				report.lastUpdate = SystemClock.elapsedRealtime();
+				report = report.clone();
+			}
+			if (mListener != null) mListener.onReceiverReport(report);
+		}
+	}
+
+	private void parseSdes(byte[] buffer, int start, int end, int count) {
+		int offset = start+4;
+		for (int i=0; i<count && offset+4<=end; i++) {
+			int ssrc = (int) getInt(buffer, offset, 4);
+			offset += 4;
+			while (offset<end && buffer[offset] != 0) {
+				int type = buffer[offset]&0xFF;
+				int len = offset+1<end ? buffer[offset+1]&0xFF : 0;
+				if (offset+2+len > end) return;
+				// CNAME
+				if (type == 1) {
+					synchronized (mReports) {
+						getReport(ssrc).cname = new String(buffer, offset+2, len);
+					}
+				}
+				offset += 2+len;
+			}
+			// Skips the null item and the padding
+			offset = start+((offset-start+4) & ~3);
+		}
+	}
+
+	private void parseBye(byte[] buffer, int offset, int end, int count) {
+		for (int i=0; i<count && offset+4<=end; i++, offset+=4) {
+			int ssrc = (int) getInt(buffer, offset, 4);
+			ReceiverReport report;
+			synchronized (mReports) {
+				report = mReports.remove(ssrc);
+			}
+			synchronized (mFirSequences) {
+				mFirSequences.remove(ssrc);
+			}
+			if (report != null) {
+				Log.d(TAG, "BYE from "+report);
+				report.bye = true;
+				if (mListener != null) mListener.onReceiverReport(report);
+			}
+		}
+	}
+
+	private void parseNack(byte[] buffer, int offset, int end, int ssrc, InetAddress address) {
+		if (offset+12 > end) return;
+		if (mSSRC != 0 && (int) getInt(buffer, offset+8, 4) != mSSRC) return;
+		int entries = 0;
+		// One FCI entry per group of lost packets: PID and BLP
+		for (offset+=12; offset+4<=end; offset+=4, entries++) {
+			int pid = (int) getInt(buffer, offset, 2);
+			int blp = (int) getInt(buffer, offset+2, 2);
+			if (mNackListener != null) mNackListener.onNack(ssrc, address, pid, blp);
+		}
+		synchronized (mReports) {
+			getReport(ssrc).nacks += entries;
+		}
+	}
+
+	private void parsePsfb(byte[] buffer, int offset, int end, int fmt, int ssrc) {
+		if (offset+12 > end) return;
+		int media = (int) getInt(buffer, offset+8, 4);
+		if (fmt == FMT_PLI) {
+			if (mSSRC != 0 && media != mSSRC) return;
+			onKeyFrameRequest(ssrc);
+		} else if (fmt == FMT_FIR) {
+			// One FCI entry per media sender: SSRC, sequence number and 3 reserved bytes
+			for (offset+=12; offset+8<=end; offset+=8) {
+				if (mSSRC != 0 && (int) getInt(buffer, offset, 4) != mSSRC) continue;
+				int seq = buffer[offset+4]&0xFF;
+				Integer last;
+				synchronized (mFirSequences) {
+					last = mFirSequences.put(ssrc, seq);
+				}
+				// A FIR with the same sequence number is a retransmission of a request we already served
+				if (last == null || last != seq) onKeyFrameRequest(ssrc);
+			}
+		} else if (fmt == FMT_AFB) {
+			parseRemb(buffer, offset+12, end, ssrc);
+		}
+	}
+
+	/** Receiver Estimated Maximum Bitrate, see draft-alvestrand-rmcat-remb. */
+	private void parseRemb(byte[] buffer, int offset, int end, int ssrc) {
+		if (offset+8 > end || buffer[offset] != 'R' || buffer[offset+1] != 'E'
+				|| buffer[offset+2] != 'M' || buffer[offset+3] != 'B') return;
+		int count = buffer[offset+4]&0xFF;
+		int exp = (buffer[offset+5]&0xFF)>>2;
+		long mantissa = (buffer[offset+5]&0x03)<<16 | getInt(buffer, offset+6, 2);
+		boolean concerned = mSSRC == 0;
+		for (int i=0, o=offset+8; i<count && o+4<=end; i++, o+=4) {
+			if ((int) getInt(buffer, o, 4) == mSSRC) concerned = true;
+		}
+		if (!concerned) return;
+		ReceiverReport report;
+		synchronized (mReports) {
+			report = getReport(ssrc);
+			// An 18 bits mantissa shifted by more than 45 bits does not fit, such an estimation means no limit
+			report.remb = exp > 45 ? Long.MAX_VALUE : mantissa << exp;
+			report.lastUpdate = SystemClock.elapsedRealtime();
+			report = report.clone();
+		}
+		if (mListener != null) mListener.onReceiverReport(report);
+	}
+
+	private void onKeyFrameRequest(int ssrc) {
+		if (mKeyFrameRequestListener != null) mKeyFrameRequestListener.onKeyFrameRequest(ssrc);
+	}
+
+	private ReceiverReport getReport(int ssrc) {
+		ReceiverReport report = mReports.get(ssrc);
+		if (report == null) {
+			report = new ReceiverReport(ssrc);
+			report.lastUpdate = SystemClock.elapsedRealtime();
+			mReports.put(ssrc, report);
+		}
+		return report;
+	}
+
+	private static long getInt(byte[] buffer, int begin, int length) {
+		long n = 0;
+		for (int i=begin; i<begin+length; i++) {
+			n = (n<<8) | (buffer[i]&0xFF);
+		}
+		return n;
+	}
+
+}
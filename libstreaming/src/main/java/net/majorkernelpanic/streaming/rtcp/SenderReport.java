@@ -27,9 +27,12 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.MulticastSocket;
 import java.nio.channels.IllegalSelectorException;
 
+import net.majorkernelpanic.streaming.rtp.RtpSocket.InterleavedWriter;
+
 import android.os.SystemClock;
 import android.util.Log;
 
@@ -44,6 +47,9 @@ public class SenderReport {
 	
 	private MulticastSocket usock;
 	private DatagramPacket upack;
+	private volatile InetSocketAddress[] mDestinations = new InetSocketAddress[0];
+	private InterleavedWriter[] mWriters = new InterleavedWriter[0];
+	private int[] mChannels = new int[0];
 
 	private int mTransport;
 	private OutputStream mOutputStream = null;
@@ -147,11 +153,63 @@ public class SenderReport {
 		setLong(mOctetCount, 24, 28);
 	}
 
-	public void setDestination(InetAddress dest, int dport) {
+	/** Sets the destination of the reports, it replaces all other destinations. */
+	public synchronized void setDestination(InetAddress dest, int dport) {
 		mTransport = TRANSPORT_UDP;
 		mPort = dport;
-		upack.setPort(dport);
-		upack.setAddress(dest);
+		mDestinations = new InetSocketAddress[] {new InetSocketAddress(dest, dport)};
+	}
+
+	/** Sends the reports to one more destination. */
+	public synchronized void addDestination(InetAddress dest, int dport) {
+		InetSocketAddress[] destinations = new InetSocketAddress[mDestinations.length+1];
+		System.arraycopy(mDestinations, 0, destinations, 0, mDestinations.length);
+		destinations[mDestinations.length] = new InetSocketAddress(dest, dport);
+		if (mDestinations.length == 0) mPort = dport;
+		mDestinations = destinations;
+	}
+
+	/** Writes the reports in the RTSP connection of a receiver, on the given channel. */
+	public synchronized void addDestination(InterleavedWriter writer, int channel) {
+		InterleavedWriter[] writers = new InterleavedWriter[mWriters.length+1];
+		int[] channels = new int[mChannels.length+1];
+		System.arraycopy(mWriters, 0, writers, 0, mWriters.length);
+		System.arraycopy(mChannels, 0, channels, 0, mChannels.length);
+		writers[mWriters.length] = writer;
+		channels[mChannels.length] = channel;
+		mChannels = channels;
+		mWriters = writers;
+	}
+
+	/** Stops writing the reports to a destination added with {@link #addDestination(InterleavedWriter, int)}. */
+	public synchronized void removeDestination(InterleavedWriter writer) {
+		for (int i=0; i<mWriters.length; i++) {
+			if (mWriters[i] == writer) {
+				InterleavedWriter[] writers = new InterleavedWriter[mWriters.length-1];
+				int[] channels = new int[mChannels.length-1];
+				System.arraycopy(mWriters, 0, writers, 0, i);
+				System.arraycopy(mWriters, i+1, writers, i, writers.length-i);
+				System.arraycopy(mChannels, 0, channels, 0, i);
+				System.arraycopy(mChannels, i+1, channels, i, channels.length-i);
+				mWriters = writers;
+				mChannels = channels;
+				return;
+			}
+		}
+	}
+
+	/** Stops sending the reports to a destination added with {@link #addDestination(InetAddress, int)}. */
+	public synchronized void removeDestination(InetAddress dest, int dport) {
+		InetSocketAddress address = new InetSocketAddress(dest, dport);
+		for (int i=0; i<mDestinations.length; i++) {
+			if (mDestinations[i].equals(address)) {
+				InetSocketAddress[] destinations = new InetSocketAddress[mDestinations.length-1];
+				System.arraycopy(mDestinations, 0, destinations, 0, i);
+				System.arraycopy(mDestinations, i+1, destinations, i, destinations.length-i);
+				mDestinations = destinations;
+				return;
+			}
+		}
 	}
 
 	/**
@@ -177,6 +235,22 @@ public class SenderReport {
 		return mSSRC;
 	}
 
+	/** The socket on which receivers send their RTCP packets, see {@link RtcpReceiver}. */
+	MulticastSocket getSocket() {
+		return usock;
+	}
+
+	/**
+	 * Returns the middle 32 bits of the NTP timestamp used in our reports, that is
+	 * the format of the LSR field of a receiver report block.
+	 * @param ntpts The NTP timestamp in ns, as passed to {@link #send(long, long)}
+	 */
+	public static long toCompactNtp(long ntpts) {
+		long hb = ntpts/1000000000;
+		long lb = ( ( ntpts - hb*1000000000 ) * 4294967296L )/1000000000;
+		return ((hb & 0xFFFF) << 16) | (lb >>> 16);
+	}
+
 	/**
 	 * Resets the reports (total number of bytes sent, number of packets sent, etc.)
 	 */
@@ -211,7 +285,19 @@ public class SenderReport {
 		setLong(rtpts, 16, 20);
 		if (mTransport == TRANSPORT_UDP) {
 			upack.setLength(PACKET_LENGTH);
-			usock.send(upack);		
+			for (InetSocketAddress destination : mDestinations) {
+				upack.setSocketAddress(destination);
+				usock.send(upack);
+			}
+			InterleavedWriter[] writers;
+			int[] channels;
+			synchronized (this) {
+				writers = mWriters;
+				channels = mChannels;
+			}
+			for (int i=0; i<writers.length; i++) {
+				writers[i].writeInterleaved(channels[i], mBuffer, 0, PACKET_LENGTH);
+			}
 		} else {
 			synchronized (mOutputStream) {
 				try {
@@ -0,0 +1,144 @@
+package net.majorkernelpanic.streaming.rtp;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Generates XOR based FEC packets as described in RFC 5109 (ULPFEC) for the packets sent by an {@link RtpSocket}.
+ * Media packets are protected in groups of consecutive packets, one FEC packet with a single protection
+ * level covering the whole payload is generated per group. The size of the groups follows the overhead
+ * set with {@link #setOverhead(int)}, a group of N packets costs one extra packet every N packets.
+ * FEC packets are sent with their own SSRC and payload type.
+ */
+public class FecEncoder {
+
+	/** RTP header, FEC header and ULP level 0 header. */
+	public static final int HEADER_LENGTH = RtpSocket.RTP_HEADER_LENGTH+10+4;
+
+	/** The 16 bits mask of the level 0 header limits the size of a group. */
+	public static final int MAX_GROUP_SIZE = 16;
+
+	private final byte[] mBuffer = new byte[HEADER_LENGTH+RtpSocket.MTU];
+	private final ByteBuffer mView = ByteBuffer.wrap(mBuffer);
+
+	private int mSsrc, mSeq = 0;
+	private int mOverhead = 0, mGroupSize = 0;
+
+	// State of the group being protected
+	private int mCount = 0, mBase, mMask, mLength, mProtectionLength;
+	private int mTimestamp;
+	private byte mFlags, mPayloadType;
+
+	/**
+	 * @param payloadType The payload type of the FEC packets, as advertised in the SDP
+	 */
+	public FecEncoder(int payloadType) {
+		mSsrc = new Random().nextInt();
+		mBuffer[0] = (byte) 0x80;
+		mBuffer[1] = (byte) (payloadType&0x7F);
+		setInt(mSsrc, 8, 4);
+	}
+
+	/**
+	 * Sets the overhead of the FEC packets, it takes effect with the next group of packets.
+	 * @param overhead The overhead in percent of the number of media packets, 0 disables FEC
+	 */
+	public synchronized void setOverhead(int overhead) {
+		mOverhead = Math.max(0, Math.min(100, overhead));
+		mGroupSize = mOverhead == 0 ? 0 : Math.max(1, Math.min(MAX_GROUP_SIZE, Math.round(100f/mOverhead)));
+	}
+
+	public int getOverhead() {
+		return mOverhead;
+	}
+
+	public int getSSRC() {
+		return mSsrc;
+	}
+
+	/**
+	 * Adds a media packet to the current group.
+	 * @param packet The RTP packet, its backing array starts with the RTP header
+	 * @param length The length of the RTP packet
+	 * @return True if the group is complete, the FEC packet can then be sent with
+	 * {@link #getBuffer()} and {@link #getLength()}
+	 */
+	public synchronized boolean protect(ByteBuffer packet, int length) {
+		if (mGroupSize == 0) {
+			mCount = 0;
+			return false;
+		}
+		byte[] p = packet.array();
+		int seq = (p[2]&0xFF)<<8 | (p[3]&0xFF);
+		int payload = length-RtpSocket.RTP_HEADER_LENGTH;
+		if (mCount == 0) {
+			mBase = seq;
+			mMask = mLength = mProtectionLength = mTimestamp = 0;
+			mFlags = mPayloadType = 0;
+		}
+		// Recovery fields: P, X, CC, M, PT, timestamp and length of the protected packets
+		mFlags ^= p[0];
+		mPayloadType ^= p[1];
+		mTimestamp ^= packet.getInt(4);
+		mLength ^= payload;
+		mMask |= 0x8000 >>> ((seq-mBase) & 0xFFFF);
+
+		// The part of the payload that overlaps what we already have is XORed, the rest is copied
+		int n = Math.min(payload, mProtectionLength);
+		xor(packet, RtpSocket.RTP_HEADER_LENGTH, mView, HEADER_LENGTH, n);
+		if (payload > mProtectionLength) {
+			System.arraycopy(p, RtpSocket.RTP_HEADER_LENGTH+n, mBuffer, HEADER_LENGTH+n, payload-n);
+			mProtectionLength = payload;
+		}
+
+		// The FEC packet carries the timestamp of the last packet it protects
+		System.arraycopy(p, 4, mBuffer, 4, 4);
+
+		if (++mCount < mGroupSize) return false;
+		buildHeaders();
+		mCount = 0;
+		return true;
+	}
+
+	/** Returns the buffer holding the last FEC packet. */
+	public byte[] getBuffer() {
+		return mBuffer;
+	}
+
+	/** Returns the length of the last FEC packet. */
+	public int getLength() {
+		return HEADER_LENGTH+mProtectionLength;
+	}
+
+	private void buildHeaders() {
+		setInt(++mSeq, 2, 2);
+		// FEC header: E=0, L=0 (16 bits mask), recovery fields, SN base
+		mBuffer[12] = (byte) (mFlags&0x3F);
+		mBuffer[13] = mPayloadType;
+		setInt(mBase, 14, 2);
+		setInt(mTimestamp, 16, 4);
+		setInt(mLength, 20, 2);
+		// ULP level 0 header: protection length and mask
+		setInt(mProtectionLength, 22, 2);
+		setInt(mMask, 24, 2);
+	}
+
+	private void setInt(int n, int begin, int length) {
+		for (int i=begin+length-1; i>=begin; i--) {
+			mBuffer[i] = (byte) n;
+			n >>= 8;
+		}
+	}
+
+	/** XORs n bytes of src into dst, 8 bytes at a time. */
+	static void xor(ByteBuffer src, int srcOffset, ByteBuffer dst, int dstOffset, int n) {
+		int i = 0;
+		for (; i+8<=n; i+=8) {
+			dst.putLong(dstOffset+i, dst.getLong(dstOffset+i) ^ src.getLong(srcOffset+i));
+		}
+		for (; i<n; i++) {
+			dst.put(dstOffset+i, (byte) (dst.get(dstOffset+i) ^ src.get(srcOffset+i)));
+		}
+	}
+
+}
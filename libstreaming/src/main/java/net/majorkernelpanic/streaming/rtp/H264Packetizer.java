@@ -21,6 +21,9 @@
 package net.majorkernelpanic.streaming.rtp;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 import android.annotation.SuppressLint;
 import android.util.Log;
@@ -39,6 +42,12 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 
 	public final static String TAG = "H264Packetizer";
 
+	/** Notified when the encoder emits other parameter sets than those given with {@link H264Packetizer#setStreamParameters(byte[], byte[])}. */
+	public interface OnParameterSetsChangedListener {
+		/** Called by the thread of the packetizer. */
+		void onParameterSetsChanged(byte[] sps, byte[] pps);
+	}
+
 	private Thread t = null;
 	private int naluLength = 0;
 	private long delay = 0, oldtime = 0;
@@ -47,6 +56,12 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 	byte[] header = new byte[5];	
 	private int count = 0;
 	private int streamType = 1;
+	private byte[] streamSps = null, streamPps = null;
+	// Parameter sets the encoder may emit without them being a change, see checkParameterSets()
+	private List<byte[]> expectedSps = null, expectedPps = null;
+	private OnParameterSetsChangedListener listener = null;
+	// Temporal id found in the last prefix NAL unit, -1 if the next slice has none
+	private int prefixLayer = -1;
 
 
 	public H264Packetizer() {
@@ -74,37 +89,61 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 		}
 	}
 
+	public void setOnParameterSetsChangedListener(OnParameterSetsChangedListener listener) {
+		this.listener = listener;
+	}
+
 	public void setStreamParameters(byte[] pps, byte[] sps) {
-		this.pps = pps;
-		this.sps = sps;
+		setStreamParameters(pps != null ? Collections.singletonList(pps) : null, sps != null ? Collections.singletonList(sps) : null);
+	}
+
+	/**
+	 * Same as {@link #setStreamParameters(byte[], byte[])} for a stream that has several parameter sets,
+	 * like some mp4 files. They are all sent before key frames, and finding any of them in the stream
+	 * is not a change of parameter sets.
+	 */
+	public void setStreamParameters(List<byte[]> pps, List<byte[]> sps) {
+		this.pps = pps != null && !pps.isEmpty() ? pps.get(0) : null;
+		this.sps = sps != null && !sps.isEmpty() ? sps.get(0) : null;
+		expectedPps = this.pps != null ? pps : null;
+		expectedSps = this.sps != null ? sps : null;
+		streamPps = streamSps = null;
 
 		// A STAP-A NAL (NAL type 24) containing the sps and pps of the stream
-		if (pps != null && sps != null) {
-			// STAP-A NAL header + NALU 1 (SPS) size + NALU 2 (PPS) size = 5 bytes
-			stapa = new byte[sps.length + pps.length + 5];
+		if (this.pps != null && this.sps != null) {
+			// STAP-A NAL header + the size of each NALU on 16 bits, the SPS first
+			int length = 1;
+			for (byte[] nalu : sps) length += 2+nalu.length;
+			for (byte[] nalu : pps) length += 2+nalu.length;
+			if (length > MAXPACKETSIZE-rtphl) {
+				// They don't fit in a packet, the decoder still gets them all in the SDP
+				sps = Collections.singletonList(this.sps);
+				pps = Collections.singletonList(this.pps);
+				length = 5+this.sps.length+this.pps.length;
+			}
+			stapa = new byte[length];
 
 			// STAP-A NAL header is 24
 			stapa[0] = 24;
 
-			// Write NALU 1 size into the array (NALU 1 is the SPS).
-			stapa[1] = (byte) (sps.length >> 8);
-			stapa[2] = (byte) (sps.length & 0xFF);
-
-			// Write NALU 2 size into the array (NALU 2 is the PPS).
-			stapa[sps.length + 3] = (byte) (pps.length >> 8);
-			stapa[sps.length + 4] = (byte) (pps.length & 0xFF);
-
-			// Write NALU 1 into the array, then write NALU 2 into the array.
-			System.arraycopy(sps, 0, stapa, 3, sps.length);
-			System.arraycopy(pps, 0, stapa, 5 + sps.length, pps.length);
+			int pos = 1;
+			for (List<byte[]> nalus : Arrays.asList(sps, pps)) {
+				for (byte[] nalu : nalus) {
+					stapa[pos] = (byte) (nalu.length >> 8);
+					stapa[pos+1] = (byte) (nalu.length & 0xFF);
+					System.arraycopy(nalu, 0, stapa, pos+2, nalu.length);
+					pos += 2+nalu.length;
+				}
+			}
 		}
-	}	
+	}
 
 	public void run() {
 		long duration = 0;
 		Log.d(TAG,"H264 packetizer started !");
 		stats.reset();
 		count = 0;
+		prefixLayer = -1;
 
 		if (is instanceof MediaCodecInputStream) {
 			streamType = 1;
@@ -173,6 +212,7 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 
 		// Parses the NAL unit type
 		type = header[4]&0x1F;
+		int layer = layerOf(type);
 
 
 		// The stream already contains NAL unit type 7 or 8, we don't need 
@@ -203,7 +243,13 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 			buffer = socket.requestBuffer();
 			buffer[rtphl] = header[4];
 			len = fill(buffer, rtphl+1,  naluLength-1);
+			if (type == 7 || type == 8) checkParameterSets(buffer, rtphl, naluLength);
+			if (type == 14 && naluLength >= 4) {
+				// The temporal id of the slice that follows is in the SVC extension of the prefix NAL unit
+				layer = prefixLayer = (buffer[rtphl+3]>>5) & 0x07;
+			}
 			socket.updateTimestamp(ts);
+			socket.setLayer(layer);
 			socket.markNextPacket();
 			super.send(naluLength+rtphl);
 			//Log.d(TAG,"----- Single NAL unit - len:"+len+" delay: "+delay);
@@ -223,6 +269,7 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 				buffer[rtphl] = header[0];
 				buffer[rtphl+1] = header[1];
 				socket.updateTimestamp(ts);
+				socket.setLayer(layer);
 				if ((len = fill(buffer, rtphl+2,  naluLength-sum > MAXPACKETSIZE-rtphl-2 ? MAXPACKETSIZE-rtphl-2 : naluLength-sum  ))<0) return; sum += len;
 				// Last packet before next NAL
 				if (sum >= naluLength) {
@@ -238,6 +285,62 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 		}
 	}
 
+	/**
+	 * Returns the temporal layer of a NAL unit, 0 for the base layer. Encoders that support temporal
+	 * scalability tell it in a prefix NAL unit (type 14) sent before each slice. Otherwise the slices
+	 * of the frames that no other frame refers to (nal_ref_idc of 0) make up layer 1, they can be
+	 * dropped without breaking the decoding of the stream. Parameter sets and SEI are in the base layer.
+	 */
+	private int layerOf(int type) {
+		if (type != 1 && type != 5) return 0;
+		int layer = prefixLayer >= 0 ? prefixLayer : ((header[4]>>5) & 0x03) == 0 ? 1 : 0;
+		prefixLayer = -1;
+		return layer;
+	}
+
+	/**
+	 * Compares the SPS and PPS found in the stream with those announced in the SDP.
+	 * MediaCodec hands both in one codec-config buffer, the NAL units are separated by start codes.
+	 */
+	private void checkParameterSets(byte[] buffer, int offset, int length) {
+		if (listener == null || expectedSps == null || expectedPps == null) return;
+		int end = offset+length, start = offset;
+		for (int i=offset; i<=end; i++) {
+			boolean code = i+3 <= end && buffer[i] == 0 && buffer[i+1] == 0 && buffer[i+2] == 1;
+			if (!code && i < end) continue;
+			// The leading zero of a 4 bytes start code is not part of the NAL unit, which never ends with one
+			int last = code && i > start && buffer[i-1] == 0 ? i-1 : i;
+			if (last > start) {
+				int type = buffer[start]&0x1F;
+				if (type == 7) streamSps = Arrays.copyOfRange(buffer, start, last);
+				else if (type == 8) streamPps = Arrays.copyOfRange(buffer, start, last);
+			}
+			start = i+3;
+			i += 2;
+		}
+		if (streamSps == null || streamPps == null) return;
+		if (!contains(expectedSps, streamSps) || !contains(expectedPps, streamPps)) {
+			Log.i(TAG,"The encoder emits other parameter sets than expected");
+			byte[] newSps = streamSps, newPps = streamPps;
+			if (sps != null) {
+				// We still add the parameter sets to the stream ourselves, the new ones must be used
+				setStreamParameters(newPps, newSps);
+			} else {
+				expectedSps = Collections.singletonList(newSps);
+				expectedPps = Collections.singletonList(newPps);
+			}
+			listener.onParameterSetsChanged(newSps, newPps);
+		}
+		streamSps = streamPps = null;
+	}
+
+	private static boolean contains(List<byte[]> nalus, byte[] nalu) {
+		for (byte[] n : nalus) {
+			if (Arrays.equals(n, nalu)) return true;
+		}
+		return false;
+	}
+
 	private int fill(byte[] buffer, int offset,int length) throws IOException {
 		int sum = 0, len;
 		while (sum<length) {
@@ -54,6 +54,9 @@ public class MediaCodecInputStream extends InputStream {
 		mBuffers = mMediaCodec.getOutputBuffers();
 	}
 
+	/** For streams that serve buffers of another origin the same way, they override the read methods and {@link #getLastBufferInfo()}. */
+	protected MediaCodecInputStream() {}
+
 	@Override
 	public void close() {
 		mClosed = true;
@@ -25,9 +25,12 @@ import java.io.OutputStream;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
 import java.net.MulticastSocket;
+import java.nio.ByteBuffer;
+import java.util.Random;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
+import net.majorkernelpanic.streaming.rtcp.RtcpReceiver;
 import net.majorkernelpanic.streaming.rtcp.SenderReport;
 import android.os.SystemClock;
 import android.util.Log;
@@ -51,12 +54,31 @@ public class RtpSocket implements Runnable {
 	public static final int RTP_HEADER_LENGTH = 12;
 	public static final int MTU = 1300;
 
+	/** Number of sent packets kept for retransmissions, must be a power of 2. */
+	public static final int HISTORY_SIZE = 512;
+
+	/** Share of the bitrate of the stream that retransmissions may use on top of it. */
+	public static final float RTX_BUDGET = 0.25f;
+
+	/** Retransmissions are always allowed at least this bitrate in bit/s. */
+	public static final int RTX_MIN_BITRATE = 64000;
+
+	/** Number of packets dropped by default when the stream starts, encoders may start with garbage. */
+	public static final int SKIPPED_PACKETS = 31;
+
 	private MulticastSocket mSocket;
 	private DatagramPacket[] mPackets;
 	private byte[][] mBuffers;
 	private long[] mTimestamps;
+	private long[] mCommitTimes;
+	private int[] mLayers;
+	private volatile boolean mLayered = false;
+	private volatile long mSendLag = 0;
+	private volatile long mPacketsSent = 0, mOctetsSent = 0, mPacketsRetransmitted = 0;
+	private volatile long mFirstPacketTime = 0;
 
 	private SenderReport mReport;
+	private RtcpReceiver mReceiver;
 	
 	private Semaphore mBufferRequested, mBufferCommitted;
 	private Thread mThread;
@@ -67,12 +89,74 @@ public class RtpSocket implements Runnable {
 	private long mOldTimestamp = 0;
 	private int mSsrc, mSeq = 0, mPort = -1;
 	private int mBufferCount, mBufferIn, mBufferOut;
-	private int mCount = 0;
+	private int mCount = 0, mSkipped = SKIPPED_PACKETS;
 	private byte mTcpHeader[];
 	protected OutputStream mOutputStream = null;
 	
 	private AverageBitrate mAverageBitrate;
 
+	private byte[][] mHistory = null;
+	private int[] mHistoryLength, mHistorySeq;
+	private byte[] mRtxBuffer;
+	private DatagramPacket mRtxPacket;
+	private int mRtxPayloadType = -1, mRtxSsrc = 0, mRtxSeq = 0;
+	private long mRtxBudget = 0, mRtxRefill = 0;
+
+	private FecEncoder mFec = null;
+	private ByteBuffer[] mViews;
+	private DatagramPacket mFecPacket;
+
+	private volatile Destination[] mDestinations = new Destination[0];
+
+	/**
+	 * A receiver of the stream, receivers of a multicast group share the same destination.
+	 * The packets are sent with UDP, or written by the {@link InterleavedWriter} if there is one.
+	 */
+	private static class Destination {
+		final InetAddress address;
+		final int port, rtcpPort;
+		final InterleavedWriter writer;
+		int count = 1;
+		// Packets of higher temporal layers are not sent, the sequence numbers are shifted to hide the gaps
+		volatile int maxLayer = Integer.MAX_VALUE;
+		volatile int offset = 0;
+		// Sequence number of the first packet sent after the last one skipped
+		volatile int cleanSince = 0;
+		// Packets and bytes sent to this destination, retransmissions and FEC excluded
+		volatile long packets = 0, octets = 0;
+
+		Destination(InetAddress address, int port, int rtcpPort, InterleavedWriter writer) {
+			this.address = address;
+			this.port = port;
+			this.rtcpPort = rtcpPort;
+			this.writer = writer;
+		}
+
+		boolean matches(InetAddress address, int port, InterleavedWriter writer) {
+			return writer != null ? this.writer == writer : this.writer == null && this.address.equals(address) && this.port == port;
+		}
+
+		/** Same as matches() but the port may also be the RTCP port, the one the reports of the receiver come from. */
+		boolean matchesReceiver(InetAddress address, int port, InterleavedWriter writer) {
+			return matches(address, port, writer) || (writer == null && this.writer == null && this.address.equals(address) && this.rtcpPort == port);
+		}
+	}
+
+	/**
+	 * A receiver that gets the packets interleaved in its RTSP connection (RFC 2326, section 10.12),
+	 * see {@link RtpSocket#addDestination(InterleavedWriter, int)}.
+	 */
+	public interface InterleavedWriter {
+		/**
+		 * Queues a packet for the receiver. Must not block, the packet is dropped if it can't be queued.
+		 * @param channel The channel the packet belongs to
+		 * @param packet The buffer holding the packet, it is reused once the call returns
+		 * @param offset Offset of the packet in the buffer
+		 * @param length Length of the packet
+		 */
+		void writeInterleaved(int channel, byte[] packet, int offset, int length);
+	}
+
 	/**
 	 * This RTP socket implements a buffering mechanism relying on a FIFO of buffers and a Thread.
 	 * @throws IOException
@@ -84,6 +168,7 @@ public class RtpSocket implements Runnable {
 		mBuffers = new byte[mBufferCount][];
 		mPackets = new DatagramPacket[mBufferCount];
 		mReport = new SenderReport();
+		mReceiver = new RtcpReceiver(mReport);
 		mAverageBitrate = new AverageBitrate();
 		mTransport = TRANSPORT_UDP;
 		mTcpHeader = new byte[] {'$',0,0,0};
@@ -126,6 +211,11 @@ public class RtpSocket implements Runnable {
 		mBufferIn = 0;
 		mBufferOut = 0;
 		mTimestamps = new long[mBufferCount];
+		mCommitTimes = new long[mBufferCount];
+		mLayers = new int[mBufferCount];
+		mLayered = false;
+		mFirstPacketTime = 0;
+		mSendLag = 0;
 		mBufferRequested = new Semaphore(mBufferCount);
 		mBufferCommitted = new Semaphore(0);
 		mReport.reset();
@@ -134,6 +224,7 @@ public class RtpSocket implements Runnable {
 	
 	/** Closes the underlying socket. */
 	public void close() {
+		mReceiver.stop();
 		mSocket.close();
 	}
 
@@ -144,6 +235,7 @@ public class RtpSocket implements Runnable {
 			setLong(mBuffers[i], ssrc,8,12);
 		}
 		mReport.setSSRC(mSsrc);
+		mReceiver.setSSRC(mSsrc);
 	}
 
 	/** Returns the SSRC of the stream. */
@@ -151,9 +243,79 @@ public class RtpSocket implements Runnable {
 		return mSsrc;
 	}
 
+	/**
+	 * Keeps the last {@link #HISTORY_SIZE} packets sent, and retransmits the ones that receivers
+	 * report as lost with RTCP generic NACKs. Retransmissions are sent with the RTX payload
+	 * format (RFC 4588) using SSRC multiplexing, and may only use {@link #RTX_BUDGET} of
+	 * the bitrate of the stream. Only works with UDP.
+	 * @param payloadType The payload type of the RTX stream, as advertised in the SDP
+	 */
+	public void setRetransmission(int payloadType) {
+		if (mHistory == null) {
+			mHistory = new byte[HISTORY_SIZE][MTU];
+			mHistoryLength = new int[HISTORY_SIZE];
+			mHistorySeq = new int[HISTORY_SIZE];
+			mRtxBuffer = new byte[MTU+2];
+			mRtxPacket = new DatagramPacket(mRtxBuffer, 1);
+		}
+		mRtxPayloadType = payloadType;
+		do {
+			mRtxSsrc = new Random().nextInt();
+		} while (mRtxSsrc == mSsrc || mRtxSsrc == 0);
+		mRtxBuffer[0] = (byte) 0x80;
+		setLong(mRtxBuffer, mRtxSsrc, 8, 12);
+		mReceiver.setOnNackListener(new RtcpReceiver.OnNackListener() {
+			@Override
+			public void onNack(int ssrc, InetAddress address, int pid, int blp) {
+				if (mTransport != TRANSPORT_UDP) return;
+				try {
+					retransmit(pid, address);
+					for (int i=0; i<16; i++) {
+						if ((blp>>i & 1) != 0) retransmit((pid+i+1) & 0xFFFF, address);
+					}
+				} catch (IOException e) {
+					Log.e(TAG, e.getMessage()!=null?e.getMessage():"unknown error");
+				}
+			}
+		});
+	}
+
+	/** Returns the SSRC of the RTX stream, see {@link #setRetransmission(int)}. */
+	public int getRtxSSRC() {
+		return mRtxSsrc;
+	}
+
+	/**
+	 * Sends XOR based FEC packets (RFC 5109) along with the stream. Only works with UDP.
+	 * @param payloadType The payload type of the FEC packets, as advertised in the SDP
+	 * @param overhead The overhead in percent, can be changed at any time, 0 disables FEC
+	 */
+	public void setFec(int payloadType, int overhead) {
+		if (mFec == null) {
+			mViews = new ByteBuffer[mBufferCount];
+			for (int i=0; i<mBufferCount; i++) {
+				mViews[i] = ByteBuffer.wrap(mBuffers[i]);
+			}
+			mFec = new FecEncoder(payloadType);
+			mFecPacket = new DatagramPacket(mFec.getBuffer(), 1);
+		}
+		mFec.setOverhead(overhead);
+	}
+
+	/** Returns the overhead of the FEC packets in percent, 0 if FEC is disabled. */
+	public int getFecOverhead() {
+		return mFec != null ? mFec.getOverhead() : 0;
+	}
+
 	/** Sets the clock frequency of the stream in Hz. */
 	public void setClockFrequency(long clock) {
 		mClock = clock;
+		mReceiver.setClockFrequency(clock);
+	}
+
+	/** Sets the number of packets dropped when the stream starts, see {@link #SKIPPED_PACKETS}. */
+	public void setSkippedPackets(int count) {
+		mSkipped = count;
 	}
 
 	/** Sets the size of the FIFO in ms. */
@@ -166,17 +328,156 @@ public class RtpSocket implements Runnable {
 		mSocket.setTimeToLive(ttl);
 	}
 
-	/** Sets the destination address and to which the packets will be sent. */
+	/** Sets the destination address and to which the packets will be sent, it replaces all other destinations. */
 	public void setDestination(InetAddress dest, int dport, int rtcpPort) {
 		if (dport != 0 && rtcpPort != 0) {
-			mTransport = TRANSPORT_UDP;
-			mPort = dport;
-			for (int i=0;i<mBufferCount;i++) {
-				mPackets[i].setPort(dport);
-				mPackets[i].setAddress(dest);
+			synchronized (this) {
+				mTransport = TRANSPORT_UDP;
+				mPort = dport;
+				mDestinations = new Destination[] {new Destination(dest, dport, rtcpPort, null)};
+				mReport.setDestination(dest, rtcpPort);
+			}
+		}
+	}
+
+	/**
+	 * Sends the packets to one more destination, so that several receivers can share the same stream.
+	 * A destination added several times, like a multicast group, must be removed as many times.
+	 * Only works with UDP.
+	 */
+	public synchronized void addDestination(InetAddress dest, int dport, int rtcpPort) {
+		if (addDestination(new Destination(dest, dport, rtcpPort, null))) {
+			if (mDestinations.length == 1) mPort = dport;
+			mReport.addDestination(dest, rtcpPort);
+		}
+	}
+
+	/**
+	 * Writes the packets in the RTSP connection of a receiver, in addition to the other destinations.
+	 * Unlike {@link #setOutputStream(OutputStream, byte)}, a slow receiver can't slow down the others
+	 * since the writer does not block. RTCP Sender Reports are written on the next channel.
+	 * @param writer The writer of the connection
+	 * @param channel The channel used for RTP
+	 */
+	public synchronized void addDestination(InterleavedWriter writer, int channel) {
+		if (addDestination(new Destination(null, channel, channel+1, writer))) {
+			mReport.addDestination(writer, channel+1);
+		}
+	}
+
+	/** Stops sending the packets to a destination added with {@link #addDestination(InetAddress, int, int)}. */
+	public synchronized void removeDestination(InetAddress dest, int dport) {
+		Destination d = removeDestination(dest, dport, null);
+		if (d != null) mReport.removeDestination(d.address, d.rtcpPort);
+	}
+
+	/** Stops writing the packets to a destination added with {@link #addDestination(InterleavedWriter, int)}. */
+	public synchronized void removeDestination(InterleavedWriter writer) {
+		if (removeDestination(null, 0, writer) != null) mReport.removeDestination(writer);
+	}
+
+	/** Returns true if the destination was not there yet. */
+	private boolean addDestination(Destination destination) {
+		for (Destination d : mDestinations) {
+			if (d.matches(destination.address, destination.port, destination.writer)) {
+				d.count++;
+				return false;
 			}
-			mReport.setDestination(dest, rtcpPort);
 		}
+		Destination[] destinations = new Destination[mDestinations.length+1];
+		System.arraycopy(mDestinations, 0, destinations, 0, mDestinations.length);
+		destinations[mDestinations.length] = destination;
+		mDestinations = destinations;
+		return true;
+	}
+
+	/** Returns the destination if it's not used anymore and has been removed. */
+	private Destination removeDestination(InetAddress dest, int dport, InterleavedWriter writer) {
+		for (int i=0; i<mDestinations.length; i++) {
+			Destination d = mDestinations[i];
+			if (d.matches(dest, dport, writer)) {
+				if (--d.count > 0) return null;
+				Destination[] destinations = new Destination[mDestinations.length-1];
+				System.arraycopy(mDestinations, 0, destinations, 0, i);
+				System.arraycopy(mDestinations, i+1, destinations, i, destinations.length-i);
+				mDestinations = destinations;
+				return d;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Only sends the packets of the temporal layers up to maxLayer to a destination added with
+	 * {@link #addDestination(InetAddress, int, int)}, see {@link #setLayer(int)}. The sequence numbers
+	 * of the packets sent to it are shifted so that the receiver sees no gap. Retransmissions and
+	 * FEC packets that refer to packets the receiver never got are not sent to it.
+	 * @param dport The RTP port of the destination, or its RTCP port
+	 * @param maxLayer The highest temporal layer sent, {@link Integer#MAX_VALUE} for all of them
+	 */
+	public synchronized void setMaxLayer(InetAddress dest, int dport, int maxLayer) {
+		setMaxLayer(dest, dport, null, maxLayer);
+	}
+
+	/** Same as {@link #setMaxLayer(InetAddress, int, int)} for a destination added with {@link #addDestination(InterleavedWriter, int)}. */
+	public synchronized void setMaxLayer(InterleavedWriter writer, int maxLayer) {
+		setMaxLayer(null, 0, writer, maxLayer);
+	}
+
+	private void setMaxLayer(InetAddress dest, int dport, InterleavedWriter writer, int maxLayer) {
+		for (Destination d : mDestinations) {
+			if (d.matchesReceiver(dest, dport, writer)) d.maxLayer = maxLayer;
+		}
+	}
+
+	/**
+	 * Returns the highest temporal layer sent to a destination, see {@link #setMaxLayer(InetAddress, int, int)}.
+	 * @param dport The RTP port of the destination, or its RTCP port
+	 */
+	public int getMaxLayer(InetAddress dest, int dport) {
+		return getMaxLayer(dest, dport, null);
+	}
+
+	/** Same as {@link #getMaxLayer(InetAddress, int)} for a destination added with {@link #addDestination(InterleavedWriter, int)}. */
+	public int getMaxLayer(InterleavedWriter writer) {
+		return getMaxLayer(null, 0, writer);
+	}
+
+	private int getMaxLayer(InetAddress dest, int dport, InterleavedWriter writer) {
+		for (Destination d : mDestinations) {
+			if (d.matchesReceiver(dest, dport, writer)) return d.maxLayer;
+		}
+		return Integer.MAX_VALUE;
+	}
+
+	/** Returns true once packets of other layers than the base layer have been sent, see {@link #setLayer(int)}. */
+	public boolean isLayered() {
+		return mLayered;
+	}
+
+	/**
+	 * Returns the number of packets and bytes sent to a destination added with
+	 * {@link #addDestination(InetAddress, int, int)} since it was added, or null if it's not a destination.
+	 */
+	public long[] getDestinationStatistics(InetAddress dest, int dport) {
+		return getDestinationStatistics(dest, dport, null);
+	}
+
+	/** Same as {@link #getDestinationStatistics(InetAddress, int)} for a destination added with {@link #addDestination(InterleavedWriter, int)}. */
+	public long[] getDestinationStatistics(InterleavedWriter writer) {
+		return getDestinationStatistics(null, 0, writer);
+	}
+
+	private long[] getDestinationStatistics(InetAddress dest, int dport, InterleavedWriter writer) {
+		for (Destination d : mDestinations) {
+			if (d.matches(dest, dport, writer)) return new long[] {d.packets, d.octets};
+		}
+		return null;
+	}
+
+	/** Returns the number of distinct destinations the packets are sent to. */
+	public int getDestinationCount() {
+		return mDestinations.length;
 	}
 	
 	/**
@@ -197,6 +498,11 @@ public class RtpSocket implements Runnable {
 		return mPort;
 	}
 
+	/** Returns the {@link RtcpReceiver} that collects the reports sent back by the receivers of the stream. */
+	public RtcpReceiver getRtcpReceiver() {
+		return mReceiver;
+	}
+
 	public int[] getLocalPorts() {
 		return new int[] {
 			mSocket.getLocalPort(),
@@ -213,6 +519,7 @@ public class RtpSocket implements Runnable {
 	public byte[] requestBuffer() throws InterruptedException {
 		mBufferRequested.acquire();
 		mBuffers[mBufferIn][1] &= 0x7F;
+		mLayers[mBufferIn] = 0;
 		return mBuffers[mBufferIn];
 	}
 
@@ -222,6 +529,7 @@ public class RtpSocket implements Runnable {
 		if (mThread == null) {
 			mThread = new Thread(this);
 			mThread.start();
+			if (mTransport == TRANSPORT_UDP) mReceiver.start();
 		}
 		
 		if (++mBufferIn>=mBufferCount) mBufferIn = 0;
@@ -233,6 +541,7 @@ public class RtpSocket implements Runnable {
 	public void commitBuffer(int length) throws IOException {
 		updateSequence();
 		mPackets[mBufferIn].setLength(length);
+		mCommitTimes[mBufferIn] = SystemClock.elapsedRealtime();
 
 		mAverageBitrate.push(length);
 
@@ -242,6 +551,7 @@ public class RtpSocket implements Runnable {
 		if (mThread == null) {
 			mThread = new Thread(this);
 			mThread.start();
+			if (mTransport == TRANSPORT_UDP) mReceiver.start();
 		}		
 		
 	}
@@ -251,6 +561,47 @@ public class RtpSocket implements Runnable {
 		return mAverageBitrate.average();
 	}
 
+	/** Returns the number of packets waiting in the FIFO to be sent. */
+	public int getQueueLength() {
+		return mBufferCommitted.availablePermits();
+	}
+
+	/** Returns the size of the FIFO in packets, {@link #requestBuffer()} blocks when it is full. */
+	public int getQueueCapacity() {
+		return mBufferCount;
+	}
+
+	/**
+	 * Returns an average of the time packets spend in the FIFO before being sent in ms,
+	 * not counting the cache set with {@link #setCacheSize(long)}.
+	 */
+	public long getSendLag() {
+		return mSendLag;
+	}
+
+	/** Returns the number of packets sent since the socket was created, whatever the number of destinations. */
+	public long getPacketCount() {
+		return mPacketsSent;
+	}
+
+	/** Returns the number of bytes sent since the socket was created, whatever the number of destinations. */
+	public long getOctetCount() {
+		return mOctetsSent;
+	}
+
+	/**
+	 * Returns when the first packet of the stream was sent in ms, see {@link SystemClock#elapsedRealtime()},
+	 * or 0 if nothing has been sent yet.
+	 */
+	public long getFirstPacketTime() {
+		return mFirstPacketTime;
+	}
+
+	/** Returns the number of packets sent again on the RTX stream, see {@link #setRetransmission(int)}. */
+	public long getRetransmissionCount() {
+		return mPacketsRetransmitted;
+	}
+
 	/** Increments the sequence number. */
 	private void updateSequence() {
 		setLong(mBuffers[mBufferIn], ++mSeq, 2, 4);
@@ -270,6 +621,15 @@ public class RtpSocket implements Runnable {
 		mBuffers[mBufferIn][1] |= 0x80;
 	}
 
+	/**
+	 * Sets the temporal layer of the packet, 0 for the base layer. Destinations may be sent only
+	 * the lower layers, see {@link #setMaxLayer(InetAddress, int, int)}.
+	 */
+	public void setLayer(int layer) {
+		mLayers[mBufferIn] = layer;
+		if (layer > 0) mLayered = true;
+	}
+
 	/** The Thread sends the packets in the FIFO one by one at a constant rate. */
 	@Override
 	public void run() {
@@ -299,9 +659,20 @@ public class RtpSocket implements Runnable {
 				}
 				mReport.update(mPackets[mBufferOut].getLength(), (mTimestamps[mBufferOut]/100L)*(mClock/1000L)/10000L);
 				mOldTimestamp = mTimestamps[mBufferOut];
-				if (mCount++>30) {
+				long lag = SystemClock.elapsedRealtime()-mCommitTimes[mBufferOut]-mCacheSize;
+				mSendLag = (7*mSendLag+Math.max(lag,0))/8;
+				if (mCount++>=mSkipped) {
+					if (mFirstPacketTime == 0) mFirstPacketTime = SystemClock.elapsedRealtime();
+					mPacketsSent++;
+					mOctetsSent += mPackets[mBufferOut].getLength();
 					if (mTransport == TRANSPORT_UDP) {
-						mSocket.send(mPackets[mBufferOut]);
+						Destination[] destinations = mDestinations;
+						sendLayered(mBufferOut, destinations);
+						if (mHistory != null) keepPacket(mBufferOut);
+						if (mFec != null && mFec.protect(mViews[mBufferOut], mPackets[mBufferOut].getLength())) {
+							mFecPacket.setLength(mFec.getLength());
+							sendFec(destinations);
+						}
 					} else {
 						sendTCP();
 					}
@@ -313,9 +684,126 @@ public class RtpSocket implements Runnable {
 			e.printStackTrace();
 		}
 		mThread = null;
+		mReceiver.stop();
 		resetFifo();
 	}
 
+	/**
+	 * Sends a packet of the FIFO to the destinations that get its temporal layer, with
+	 * the sequence number each of them expects.
+	 */
+	private void sendLayered(int i, Destination[] destinations) throws IOException {
+		DatagramPacket packet = mPackets[i];
+		byte[] buffer = mBuffers[i];
+		int seq = (buffer[2]&0xFF)<<8 | (buffer[3]&0xFF);
+		for (Destination d : destinations) {
+			if (mLayers[i] > d.maxLayer) {
+				d.offset = (d.offset+1) & 0xFFFF;
+				d.cleanSince = (seq+1) & 0xFFFF;
+				continue;
+			}
+			if (d.offset != 0) setLong(buffer, (seq-d.offset) & 0xFFFF, 2, 4);
+			if (d.writer != null) {
+				d.writer.writeInterleaved(d.port, buffer, 0, packet.getLength());
+			} else {
+				packet.setAddress(d.address);
+				packet.setPort(d.port);
+				mSocket.send(packet);
+			}
+			d.packets++;
+			d.octets += packet.getLength();
+			if (d.offset != 0) setLong(buffer, seq, 2, 4);
+		}
+	}
+
+	/**
+	 * Sends the last FEC packet to the UDP destinations that got all the packets it protects,
+	 * with the sequence number base each of them expects. FEC is useless to the interleaved
+	 * destinations since TCP is already reliable.
+	 */
+	private void sendFec(Destination[] destinations) throws IOException {
+		byte[] buffer = mFecPacket.getData();
+		int base = (buffer[14]&0xFF)<<8 | (buffer[15]&0xFF);
+		for (Destination d : destinations) {
+			if (d.writer != null) continue;
+			int offset = d.offset;
+			if (offset != 0 && !isAfter(base, d.cleanSince)) continue;
+			if (offset != 0) setLong(buffer, (base-offset) & 0xFFFF, 14, 16);
+			mFecPacket.setAddress(d.address);
+			mFecPacket.setPort(d.port);
+			mSocket.send(mFecPacket);
+			if (offset != 0) setLong(buffer, base, 14, 16);
+		}
+	}
+
+	/** Returns true if the sequence number a is b or comes after b. */
+	private static boolean isAfter(int a, int b) {
+		return ((a-b) & 0xFFFF) < 0x8000;
+	}
+
+	/** Copies a packet that has just been sent into the history, indexed by its sequence number. */
+	private void keepPacket(int i) {
+		int len = mPackets[i].getLength();
+		int seq = (mBuffers[i][2]&0xFF)<<8 | (mBuffers[i][3]&0xFF);
+		int slot = seq & (HISTORY_SIZE-1);
+		synchronized (mHistory) {
+			System.arraycopy(mBuffers[i], 0, mHistory[slot], 0, len);
+			mHistoryLength[slot] = len;
+			mHistorySeq[slot] = seq;
+		}
+	}
+
+	/**
+	 * Sends a packet of the history again on the RTX stream, if it's still there and the budget allows it.
+	 * Only the destinations at the address of the receiver that lost it get the packet, or all of them if
+	 * that address is unknown. The sequence number is the one the receiver got, which differs from ours
+	 * if the receiver is not sent all the temporal layers.
+	 */
+	private void retransmit(int seq, InetAddress address) throws IOException {
+		Destination[] destinations = mDestinations;
+		boolean known = false;
+		for (Destination d : destinations) {
+			if (address != null && d.writer == null && d.address.equals(address)) known = true;
+		}
+		synchronized (mHistory) {
+			for (Destination d : destinations) {
+				if (d.writer != null || (known && !d.address.equals(address))) continue;
+				int offset = d.offset;
+				int original = (seq+offset) & 0xFFFF;
+				if (offset != 0 && !isAfter(original, d.cleanSince)) continue;
+				int slot = original & (HISTORY_SIZE-1);
+				int len = mHistoryLength[slot];
+				if (len == 0 || mHistorySeq[slot] != original) continue;
+				if (!consumeRtxBudget(len+2)) return;
+				byte[] packet = mHistory[slot];
+				// Marker and timestamp of the original packet, payload type, sequence number and SSRC of the RTX stream
+				mRtxBuffer[1] = (byte) ((packet[1]&0x80) | mRtxPayloadType);
+				setLong(mRtxBuffer, ++mRtxSeq, 2, 4);
+				System.arraycopy(packet, 4, mRtxBuffer, 4, 4);
+				// The payload starts with the original sequence number
+				setLong(mRtxBuffer, seq, RTP_HEADER_LENGTH, RTP_HEADER_LENGTH+2);
+				System.arraycopy(packet, RTP_HEADER_LENGTH, mRtxBuffer, RTP_HEADER_LENGTH+2, len-RTP_HEADER_LENGTH);
+				mRtxPacket.setLength(len+2);
+				mRtxPacket.setAddress(d.address);
+				mRtxPacket.setPort(d.port);
+				mSocket.send(mRtxPacket);
+				mPacketsRetransmitted++;
+			}
+		}
+	}
+
+	/** Token bucket that keeps retransmissions below {@link #RTX_BUDGET} of the bitrate of the stream. */
+	private boolean consumeRtxBudget(int length) {
+		long now = SystemClock.elapsedRealtime();
+		long rate = Math.max((long) (getBitrate()*RTX_BUDGET), RTX_MIN_BITRATE)/8;
+		// At most 250 ms worth of retransmissions can be sent in a burst
+		mRtxBudget = Math.min(mRtxBudget+(now-mRtxRefill)*rate/1000, rate/4);
+		mRtxRefill = now;
+		if (mRtxBudget < length) return false;
+		mRtxBudget -= length;
+		return true;
+	}
+
 	private void sendTCP() {
 		synchronized (mOutputStream) {
 			int len = mPackets[mBufferOut].getLength();
@@ -21,27 +21,34 @@
 package net.majorkernelpanic.streaming.rtsp;
 
 import java.io.BufferedOutputStream;
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.nio.charset.Charset;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Locale;
 import java.util.concurrent.Semaphore;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import net.majorkernelpanic.streaming.MediaStream;
 import net.majorkernelpanic.streaming.Session;
 import net.majorkernelpanic.streaming.Stream;
+import net.majorkernelpanic.streaming.rtcp.ReceiverReport;
 import net.majorkernelpanic.streaming.rtp.RtpSocket;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
 /**
@@ -49,6 +56,8 @@ import android.util.Log;
  * A basic and asynchronous RTSP client.
  * The original purpose of this class was to implement a small RTSP client compatible with Wowza.
  * It implements Digest Access Authentication according to RFC 2069. 
+ * Several clients can share the same {@link Session} to publish it to several servers at once,
+ * for example a primary and a backup ingest server, with a single encoder for each track.
  */
 public class RtspClient {
 
@@ -80,6 +89,25 @@ public class RtspClient {
 	 * reconnect as long as {@link #stopStream()} is not called.
 	 */
 	public final static int MESSAGE_CONNECTION_RECOVERED = 0x05;
+
+	/**
+	 * Message sent once the first RTP packet has been sent after a connection, or once the streams
+	 * are resumed after a reconnection. The time it took since the connection started is given by
+	 * {@link #getStartupTime()}.
+	 */
+	public final static int MESSAGE_STREAMING_STARTED = 0x06;
+
+	/**
+	 * When the connection is lost, the streams keep running for this long in ms so that they can be
+	 * resumed right away on reconnection. Past that, they are stopped until the connection is back.
+	 */
+	private final static long OUTAGE_TIMEOUT = 20000;
+
+	/** The first packet is not waited for longer than this after a connection in ms. */
+	private final static long STARTUP_TIMEOUT = 10000;
+
+	/** Over TCP, packets are dropped rather than queued past this many bytes if the server does not keep up. */
+	private final static int MAX_INTERLEAVED_QUEUE = 256*1024;
 	
 	private final static int STATE_STARTED = 0x00;
 	private final static int STATE_STARTING = 0x01;
@@ -95,6 +123,7 @@ public class RtspClient {
 		public Session session;
 		public int port;
 		public int transport;
+		public boolean pipelining;
 		
 		public Parameters clone() {
 			Parameters params = new Parameters();
@@ -105,6 +134,7 @@ public class RtspClient {
 			params.session = session;
 			params.port = port;
 			params.transport = transport;
+			params.pipelining = pipelining;
 			return params;
 		}
 	}
@@ -117,11 +147,27 @@ public class RtspClient {
 	private Socket mSocket;
 	private String mSessionID;
 	private String mAuthorization;
-	private BufferedReader mBufferedReader;
+	private RtspDemuxer mDemuxer;
 	private OutputStream mOutputStream;
 	private Callback mCallback;
 	private Handler mMainHandler;
 	private Handler mHandler;
+	// Turned off if the server does not cope with pipelined requests, until the stream is stopped
+	private boolean mPipelining;
+	private long mConnectTime = 0, mLostTime = 0;
+	private boolean mOutageStopped = false;
+	private volatile long mStartupTime = -1;
+
+	// Where the tracks are sent: the ports given by the server for each track, or the
+	// RTSP connection over TCP, and whether each track is currently sent there
+	private volatile InetAddress mServerAddress;
+	private final int[][] mServerPorts = new int[2][2];
+	private volatile Interleaver mInterleaver;
+	private final boolean[] mAttached = new boolean[2];
+
+	// Statistics of the previous connections since the stream was started
+	private volatile long mPacketsSent = 0, mOctetsSent = 0, mPacketsDropped = 0;
+	private volatile int mReconnections = 0;
 
 	/**
 	 * The callback interface you need to implement to know what's going on with the 
@@ -137,6 +183,7 @@ public class RtspClient {
 		mTmpParameters.port = 1935;
 		mTmpParameters.path = "/";
 		mTmpParameters.transport = TRANSPORT_UDP;
+		mTmpParameters.pipelining = true;
 		mAuthorization = null;
 		mCallback = null;
 		mMainHandler = new Handler(Looper.getMainLooper());
@@ -213,6 +260,60 @@ public class RtspClient {
 		mTmpParameters.transport = mode;
 	}
 	
+	/**
+	 * Sends the requests of the handshake with the server without waiting for the response of each
+	 * of them, so that it takes two round trips whatever the number of tracks. If the server does not
+	 * accept that, the client falls back to one request at a time, and remembers it until the stream
+	 * is stopped. Enabled by default.
+	 */
+	public void setPipelining(boolean enabled) {
+		mTmpParameters.pipelining = enabled;
+	}
+
+	/**
+	 * Returns the time in ms between the last connection to the server, or reconnection,
+	 * and the first RTP packet sent, or -1 if no packet has been sent yet.
+	 */
+	public long getStartupTime() {
+		return mStartupTime;
+	}
+
+	/** Returns the number of RTP packets sent to the server since the stream was started, retransmissions excluded. */
+	public long getPacketCount() {
+		return mPacketsSent+getConnectionStatistics()[0];
+	}
+
+	/** Returns the number of bytes of RTP packets sent to the server since the stream was started, retransmissions excluded. */
+	public long getOctetCount() {
+		return mOctetsSent+getConnectionStatistics()[1];
+	}
+
+	/** Returns the number of RTP packets dropped because the server did not read them fast enough, only happens over TCP. */
+	public long getDroppedPacketCount() {
+		return mPacketsDropped;
+	}
+
+	/** Returns the number of times the client reconnected to the server since the stream was started. */
+	public int getReconnectionCount() {
+		return mReconnections;
+	}
+
+	/** Returns the last RTCP Receiver Report the server sent for each track, the other receivers of the session are left out. */
+	public List<ReceiverReport> getReceiverReports() {
+		List<ReceiverReport> reports = new ArrayList<ReceiverReport>();
+		Parameters parameters = mParameters;
+		InetAddress address = mServerAddress;
+		if (parameters == null || address == null) return reports;
+		for (int i=0;i<2;i++) {
+			Stream stream = parameters.session.getTrack(i);
+			if (!(stream instanceof MediaStream)) continue;
+			for (ReceiverReport report : ((MediaStream) stream).getReceiverReports()) {
+				if (address.equals(report.address)) reports.add(report);
+			}
+		}
+		return reports;
+	}
+
 	public boolean isStreaming() {
 		return mState==STATE_STARTED|mState==STATE_STARTING;
 	}
@@ -236,15 +337,22 @@ public class RtspClient {
 				
 				// If the user calls some methods to configure the client, it won't modify its behavior until the stream is restarted
 				mParameters = mTmpParameters.clone();
-				mParameters.session.setDestination(mTmpParameters.host);
+				mPipelining = mParameters.pipelining;
+				mStartupTime = -1;
+				mPacketsSent = mOctetsSent = mPacketsDropped = 0;
+				mReconnections = 0;
 				
-				try {
-					mParameters.session.syncConfigure();
-				} catch (Exception e) {
-					mParameters.session = null;
-					mState = STATE_STOPPED;
-					return;
-				}				
+				// The session may already be streaming to other servers, only its other tracks are configured
+				synchronized (mParameters.session) {
+					if (!mParameters.session.isStreaming()) mParameters.session.setDestination(mTmpParameters.host);
+					try {
+						mParameters.session.syncConfigure();
+					} catch (Exception e) {
+						mParameters.session = null;
+						mState = STATE_STOPPED;
+						return;
+					}
+				}
 				
 				try {
 					tryConnection();
@@ -255,11 +363,10 @@ public class RtspClient {
 				}
 				
 				try {
-					mParameters.session.syncStart();
+					attachStreams();
 					mState = STATE_STARTED;
-					if (mParameters.transport == TRANSPORT_UDP) {
-						mHandler.post(mConnectionMonitor);
-					}
+					mHandler.post(mStartupMonitor);
+					mHandler.post(mConnectionMonitor);
 				} catch (Exception e) {
 					abort();
 				} catch (Throwable throwable){
@@ -272,15 +379,13 @@ public class RtspClient {
 	}
 
 	/**
-	 * Stops the stream, and informs the RTSP server.
+	 * Stops the stream, and informs the RTSP server. The tracks of the session keep
+	 * streaming as long as other clients send them to other servers.
 	 */
 	public void stopStream() {
 		mHandler.post(new Runnable () {
 			@Override
 			public void run() {
-				if (mParameters != null && mParameters.session != null) {
-					mParameters.session.stop();
-				}
 				if (mState != STATE_STOPPED) {
 					mState = STATE_STOPPING;
 					abort();
@@ -295,6 +400,10 @@ public class RtspClient {
 	}
 	
 	private void abort() {
+		if (mParameters != null && mParameters.session != null) {
+			detachStreams();
+			mParameters.session.syncStopUnusedTracks();
+		}
 		try {
 			sendRequestTeardown();
 		} catch (Exception ignore) {}
@@ -303,86 +412,150 @@ public class RtspClient {
 		} catch (Exception ignore) {}
 		mHandler.removeCallbacks(mConnectionMonitor);
 		mHandler.removeCallbacks(mRetryConnection);
+		mHandler.removeCallbacks(mStartupMonitor);
 		mState = STATE_STOPPED;
 	}
 	
 	private void tryConnection() throws IOException {
+		// The sequence numbers and the session id of the previous connection start over
 		mCSeq = 0;
+		mSessionID = null;
+		mConnectTime = SystemClock.elapsedRealtime();
 		mSocket = new Socket(mParameters.host, mParameters.port);
-		mBufferedReader = new BufferedReader(new InputStreamReader(mSocket.getInputStream()));
+		mSocket.setTcpNoDelay(true);
+		mServerAddress = mSocket.getInetAddress();
+		mDemuxer = new RtspDemuxer(mSocket.getInputStream(), mInterleavedListener);
 		mOutputStream = new BufferedOutputStream(mSocket.getOutputStream());
+		if (mPipelining) {
+			boolean accepted;
+			try {
+				accepted = sendRequestsPipelined();
+			} catch (SocketException e) {
+				// Some servers close the connection, if the server is really gone the next attempt fails as well
+				accepted = false;
+			}
+			if (accepted) {
+				Log.d(TAG,"Handshake done in "+(SystemClock.elapsedRealtime()-mConnectTime)+" ms");
+				startDemuxer();
+				return;
+			}
+			// The server did not cope with pipelined requests, we start over one request at a time
+			Log.w(TAG,"Pipelined requests failed, falling back to sequential requests");
+			mPipelining = false;
+			try {
+				mSocket.close();
+			} catch (IOException ignore) {}
+			tryConnection();
+			return;
+		}
 		sendRequestAnnounce();
 		sendRequestSetup();
 		sendRequestRecord();
+		Log.d(TAG,"Handshake done in "+(SystemClock.elapsedRealtime()-mConnectTime)+" ms");
+		startDemuxer();
 	}
-	
+
+	/**
+	 * Over TCP the server sends its RTCP reports on the RTSP connection, from now on they are read
+	 * as they come instead of piling up in the socket until the next response is waited for.
+	 */
+	private void startDemuxer() {
+		if (mParameters.transport == TRANSPORT_TCP) mDemuxer.start();
+	}
+
+	/** Hands the RTCP packets the server interleaves on odd channels to the receiver of the matching track. */
+	private final RtspDemuxer.OnInterleavedPacketListener mInterleavedListener = new RtspDemuxer.OnInterleavedPacketListener() {
+		@Override
+		public void onInterleavedPacket(int channel, byte[] buffer, int offset, int length) {
+			// Channels 2i and 2i+1 carry the RTP and RTCP packets of track i
+			if ((channel&1) == 0 || channel/2 > 1) return;
+			Socket socket = mSocket;
+			Parameters parameters = mParameters;
+			if (socket == null || parameters == null) return;
+			Stream stream = parameters.session.getTrack(channel/2);
+			if (!(stream instanceof MediaStream)) return;
+			((MediaStream) stream).getPacketizer().getRtpSocket().getRtcpReceiver()
+					.parse(buffer, offset, length, socket.getInetAddress(), socket.getPort());
+		}
+	};
+
+	/**
+	 * Sends ANNOUNCE and the SETUP of the first track at once, then the SETUP of the other track and
+	 * RECORD at once, so that the handshake takes two round trips instead of one per request. The
+	 * second batch names the session created by the first SETUP, RECORD must carry it (RFC 2326).
+	 * If the server asks for credentials, the first batch is sent again with them.
+	 * @return False if the server did not accept all the requests
+	 */
+	private boolean sendRequestsPipelined() throws IllegalStateException, SocketException, IOException {
+		String body = mParameters.session.getSessionDescription();
+		int first = mParameters.session.getTrack(0) != null ? 0 : 1;
+		boolean accepted = false;
+		for (int attempt=0; attempt<2; attempt++) {
+			String batch = announceRequest(body, false)+setupRequest(first, false);
+			Log.i(TAG,"ANNOUNCE and SETUP pipelined");
+			mOutputStream.write(batch.getBytes("UTF-8"));
+			mOutputStream.flush();
+
+			Response response = mDemuxer.readResponse();
+			parseSession(response);
+			if (response.status == 401 && attempt == 0) {
+				if (mParameters.username == null || mParameters.password == null) throw new IllegalStateException("Authentication is enabled and setCredentials(String,String) was not called !");
+				authenticate(response);
+				// The SETUP has been refused as well
+				mDemuxer.readResponse();
+				continue;
+			}
+			if (response.status == 401) throw new RuntimeException("Bad credentials !");
+			if (response.status == 403) throw new RuntimeException("Access forbidden !");
+			accepted = response.status < 300;
+			response = mDemuxer.readResponse();
+			accepted &= response.status < 300;
+			if (response.status < 300) onSetupResponse(first, mParameters.session.getTrack(first), response);
+			break;
+		}
+		if (!accepted) return false;
+
+		// The session exists now, the requests that follow can name it
+		StringBuilder batch = new StringBuilder();
+		Stream other = first == 0 ? mParameters.session.getTrack(1) : null;
+		if (other != null) batch.append(setupRequest(1, true));
+		batch.append(recordRequest(true));
+		Log.i(TAG,(other != null ? "SETUP and " : "")+"RECORD pipelined");
+		mOutputStream.write(batch.toString().getBytes("UTF-8"));
+		mOutputStream.flush();
+		if (other != null) {
+			Response response = mDemuxer.readResponse();
+			accepted = response.status < 300;
+			if (accepted) onSetupResponse(1, other, response);
+		}
+		return mDemuxer.readResponse().status < 300 && accepted;
+	}
+
 	/**
 	 * Forges and sends the ANNOUNCE request 
 	 */
 	private void sendRequestAnnounce() throws IllegalStateException, SocketException, IOException {
 
 		String body = mParameters.session.getSessionDescription();
-		String request = "ANNOUNCE rtsp://"+mParameters.host+":"+mParameters.port+mParameters.path+" RTSP/1.0\r\n" +
-				"CSeq: " + (++mCSeq) + "\r\n" +
-				"Content-Length: " + body.length() + "\r\n" +
-				"Content-Type: application/sdp\r\n\r\n" +
-				body;
+		// Credentials accepted by the server before are sent right away, that saves a round trip when reconnecting
+		String request = announceRequest(body, false);
 		Log.i(TAG,request.substring(0, request.indexOf("\r\n")));
 
 		mOutputStream.write(request.getBytes("UTF-8"));
 		mOutputStream.flush();
-		Response response = Response.parseResponse(mBufferedReader);
-
-		if (response.headers.containsKey("server")) {
-			Log.v(TAG,"RTSP server name:" + response.headers.get("server"));
-		} else {
-			Log.v(TAG,"RTSP server name unknown");
-		}
-
-		if (response.headers.containsKey("session")) {
-			try {
-				Matcher m = Response.rexegSession.matcher(response.headers.get("session"));
-				m.find();
-				mSessionID = m.group(1);
-			} catch (Exception e) {
-				throw new IOException("Invalid response from server. Session id: "+mSessionID);
-			}
-		}
+		Response response = mDemuxer.readResponse();
+		parseSession(response);
 
 		if (response.status == 401) {
-			String nonce, realm;
-			Matcher m;
-
 			if (mParameters.username == null || mParameters.password == null) throw new IllegalStateException("Authentication is enabled and setCredentials(String,String) was not called !");
-
-			try {
-				m = Response.rexegAuthenticate.matcher(response.headers.get("www-authenticate")); m.find();
-				nonce = m.group(2);
-				realm = m.group(1);
-			} catch (Exception e) {
-				throw new IOException("Invalid response from server");
-			}
-
-			String uri = "rtsp://"+mParameters.host+":"+mParameters.port+mParameters.path;
-			String hash1 = computeMd5Hash(mParameters.username+":"+m.group(1)+":"+mParameters.password);
-			String hash2 = computeMd5Hash("ANNOUNCE"+":"+uri);
-			String hash3 = computeMd5Hash(hash1+":"+m.group(2)+":"+hash2);
-
-			mAuthorization = "Digest username=\""+mParameters.username+"\",realm=\""+realm+"\",nonce=\""+nonce+"\",uri=\""+uri+"\",response=\""+hash3+"\"";
-
-			request = "ANNOUNCE rtsp://"+mParameters.host+":"+mParameters.port+mParameters.path+" RTSP/1.0\r\n" +
-					"CSeq: " + (++mCSeq) + "\r\n" +
-					"Content-Length: " + body.length() + "\r\n" +
-					"Authorization: " + mAuthorization + "\r\n" +
-					"Session: " + mSessionID + "\r\n" +
-					"Content-Type: application/sdp\r\n\r\n" +
-					body;
+			authenticate(response);
+			request = announceRequest(body, true);
 
 			Log.i(TAG,request.substring(0, request.indexOf("\r\n")));
 
 			mOutputStream.write(request.getBytes("UTF-8"));
 			mOutputStream.flush();
-			response = Response.parseResponse(mBufferedReader);
+			response = mDemuxer.readResponse();
 
 			if (response.status == 401) throw new RuntimeException("Bad credentials !");
 
@@ -392,6 +565,53 @@ public class RtspClient {
 
 	}
 
+	private String announceRequest(String body, boolean session) {
+		return "ANNOUNCE rtsp://"+mParameters.host+":"+mParameters.port+mParameters.path+" RTSP/1.0\r\n" +
+				"CSeq: " + (++mCSeq) + "\r\n" +
+				"Content-Length: " + body.length() + "\r\n" +
+				(mAuthorization != null ? "Authorization: " + mAuthorization + "\r\n" : "") +
+				(session && mSessionID != null ? "Session: " + mSessionID + "\r\n" : "") +
+				"Content-Type: application/sdp\r\n\r\n" +
+				body;
+	}
+
+	/** Computes the Digest Access Authentication answer to a 401 response, it is then sent with every request. */
+	private void authenticate(Response response) throws IOException {
+		String nonce, realm;
+		Matcher m;
+
+		try {
+			m = Response.rexegAuthenticate.matcher(response.headers.get("www-authenticate")); m.find();
+			nonce = m.group(2);
+			realm = m.group(1);
+		} catch (Exception e) {
+			throw new IOException("Invalid response from server");
+		}
+
+		String uri = "rtsp://"+mParameters.host+":"+mParameters.port+mParameters.path;
+		String hash1 = computeMd5Hash(mParameters.username+":"+realm+":"+mParameters.password);
+		String hash2 = computeMd5Hash("ANNOUNCE"+":"+uri);
+		String hash3 = computeMd5Hash(hash1+":"+nonce+":"+hash2);
+
+		mAuthorization = "Digest username=\""+mParameters.username+"\",realm=\""+realm+"\",nonce=\""+nonce+"\",uri=\""+uri+"\",response=\""+hash3+"\"";
+	}
+
+	/** Keeps the session id given by the server, if any. */
+	private void parseSession(Response response) throws IOException {
+		if (response.headers.containsKey("server")) {
+			Log.v(TAG,"RTSP server name:" + response.headers.get("server"));
+		}
+		if (response.headers.containsKey("session")) {
+			try {
+				Matcher m = Response.rexegSession.matcher(response.headers.get("session"));
+				m.find();
+				mSessionID = m.group(1);
+			} catch (Exception e) {
+				throw new IOException("Invalid response from server. Session id: "+mSessionID);
+			}
+		}
+	}
+
 	/**
 	 * Forges and sends the SETUP request 
 	 */
@@ -399,42 +619,43 @@ public class RtspClient {
 		for (int i=0;i<2;i++) {
 			Stream stream = mParameters.session.getTrack(i);
 			if (stream != null) {
-				String params = mParameters.transport==TRANSPORT_TCP ? 
-						("TCP;interleaved="+2*i+"-"+(2*i+1)) : ("UDP;unicast;client_port="+(5000+2*i)+"-"+(5000+2*i+1)+";mode=receive");
-				String request = "SETUP rtsp://"+mParameters.host+":"+mParameters.port+mParameters.path+"/trackID="+i+" RTSP/1.0\r\n" +
-						"Transport: RTP/AVP/"+params+"\r\n" +
-						addHeaders();
+				String request = setupRequest(i, true);
 
 				Log.i(TAG,request.substring(0, request.indexOf("\r\n")));
 
 				mOutputStream.write(request.getBytes("UTF-8"));
 				mOutputStream.flush();
-				Response response = Response.parseResponse(mBufferedReader);
-				Matcher m;
-				
-				if (response.headers.containsKey("session")) {
-					try {
-						m = Response.rexegSession.matcher(response.headers.get("session"));
-						m.find();
-						mSessionID = m.group(1);
-					} catch (Exception e) {
-						throw new IOException("Invalid response from server. Session id: "+mSessionID);
-					}
-				}
-				
-				if (mParameters.transport == TRANSPORT_UDP) {
-					try {
-						m = Response.rexegTransport.matcher(response.headers.get("transport")); m.find();
-						stream.setDestinationPorts(Integer.parseInt(m.group(3)), Integer.parseInt(m.group(4)));
-						Log.d(TAG, "Setting destination ports: "+Integer.parseInt(m.group(3))+", "+Integer.parseInt(m.group(4)));
-					} catch (Exception e) {
-						e.printStackTrace();
-						int[] ports = stream.getDestinationPorts();
-						Log.d(TAG,"Server did not specify ports, using default ports: "+ports[0]+"-"+ports[1]);
-					}
-				} else {
-					stream.setOutputStream(mOutputStream, (byte)(2*i));
-				}
+				onSetupResponse(i, stream, mDemuxer.readResponse());
+			}
+		}
+	}
+
+	private String setupRequest(int i, boolean session) {
+		String params = mParameters.transport==TRANSPORT_TCP ? 
+				("TCP;interleaved="+2*i+"-"+(2*i+1)) : ("UDP;unicast;client_port="+(5000+2*i)+"-"+(5000+2*i+1)+";mode=receive");
+		return "SETUP rtsp://"+mParameters.host+":"+mParameters.port+mParameters.path+"/trackID="+i+" RTSP/1.0\r\n" +
+				"Transport: RTP/AVP/"+params+"\r\n" +
+				addHeaders(session);
+	}
+
+	/** Sets the destination of a track with the ports given by the server. */
+	private void onSetupResponse(int i, Stream stream, Response response) throws IOException {
+		Matcher m;
+		parseSession(response);
+
+		// Over TCP, track i is sent on channels 2i and 2i+1 of the RTSP connection
+		if (mParameters.transport == TRANSPORT_UDP) {
+			try {
+				m = Response.rexegTransport.matcher(response.headers.get("transport")); m.find();
+				mServerPorts[i][0] = Integer.parseInt(m.group(3));
+				mServerPorts[i][1] = Integer.parseInt(m.group(4));
+				Log.d(TAG, "Setting destination ports: "+mServerPorts[i][0]+", "+mServerPorts[i][1]);
+			} catch (Exception e) {
+				e.printStackTrace();
+				int[] ports = stream.getDestinationPorts();
+				mServerPorts[i][0] = ports[0];
+				mServerPorts[i][1] = ports[1];
+				Log.d(TAG,"Server did not specify ports, using default ports: "+ports[0]+"-"+ports[1]);
 			}
 		}
 	}
@@ -443,40 +664,50 @@ public class RtspClient {
 	 * Forges and sends the RECORD request 
 	 */
 	private void sendRequestRecord() throws IllegalStateException, SocketException, IOException {
-		String request = "RECORD rtsp://"+mParameters.host+":"+mParameters.port+mParameters.path+" RTSP/1.0\r\n" +
-				"Range: npt=0.000-\r\n" +
-				addHeaders();
+		String request = recordRequest(true);
 		Log.i(TAG,request.substring(0, request.indexOf("\r\n")));
 		mOutputStream.write(request.getBytes("UTF-8"));
 		mOutputStream.flush();
-		Response.parseResponse(mBufferedReader);
+		mDemuxer.readResponse();
+	}
+
+	private String recordRequest(boolean session) {
+		return "RECORD rtsp://"+mParameters.host+":"+mParameters.port+mParameters.path+" RTSP/1.0\r\n" +
+				"Range: npt=0.000-\r\n" +
+				addHeaders(session);
 	}
 
 	/**
 	 * Forges and sends the TEARDOWN request 
 	 */
 	private void sendRequestTeardown() throws IOException {
-		String request = "TEARDOWN rtsp://"+mParameters.host+":"+mParameters.port+mParameters.path+" RTSP/1.0\r\n" + addHeaders();
+		String request = "TEARDOWN rtsp://"+mParameters.host+":"+mParameters.port+mParameters.path+" RTSP/1.0\r\n" + addHeaders(true);
 		Log.i(TAG,request.substring(0, request.indexOf("\r\n")));
-		mOutputStream.write(request.getBytes("UTF-8"));
-		mOutputStream.flush();
+		// Over TCP, the packets of the tracks may be written at the same time
+		synchronized (mOutputStream) {
+			mOutputStream.write(request.getBytes("UTF-8"));
+			mOutputStream.flush();
+		}
 	}
 	
 	/**
 	 * Forges and sends the OPTIONS request 
 	 */
 	private void sendRequestOption() throws IOException {
-		String request = "OPTIONS rtsp://"+mParameters.host+":"+mParameters.port+mParameters.path+" RTSP/1.0\r\n" + addHeaders();
+		String request = "OPTIONS rtsp://"+mParameters.host+":"+mParameters.port+mParameters.path+" RTSP/1.0\r\n" + addHeaders(true);
 		Log.i(TAG,request.substring(0, request.indexOf("\r\n")));
-		mOutputStream.write(request.getBytes("UTF-8"));
-		mOutputStream.flush();
-		Response.parseResponse(mBufferedReader);
+		synchronized (mOutputStream) {
+			mOutputStream.write(request.getBytes("UTF-8"));
+			mOutputStream.flush();
+		}
+		mDemuxer.readResponse();
 	}	
 
-	private String addHeaders() {
+	/** @param session Whether to name the session, if there is one */
+	private String addHeaders(boolean session) {
 		return "CSeq: " + (++mCSeq) + "\r\n" +
 				"Content-Length: 0\r\n" +
-				"Session: " + mSessionID + "\r\n" +
+				(session && mSessionID != null ? "Session: " + mSessionID + "\r\n" : "") +
 				// For some reason you may have to remove last "\r\n" in the next line to make the RTSP client work with your wowza server :/
 				(mAuthorization != null ? "Authorization: " + mAuthorization + "\r\n":"") + "\r\n";
 	}
@@ -497,7 +728,13 @@ public class RtspClient {
 					// Happens if the OPTION request fails
 					postMessage(ERROR_CONNECTION_LOST);
 					Log.e(TAG, "Connection lost with the server...");
-					mParameters.session.stop();
+					// The encoders keep running, their packets are dropped until the connection is back
+					mLostTime = SystemClock.elapsedRealtime();
+					mOutageStopped = false;
+					detachStreams();
+					try {
+						mSocket.close();
+					} catch (Exception ignore) {}
 					mHandler.post(mRetryConnection);
 				}
 			}
@@ -513,19 +750,120 @@ public class RtspClient {
 					Log.e(TAG, "Trying to reconnect...");
 					tryConnection();
 					try {
-						mParameters.session.start();
+						boolean streaming = mParameters.session.isStreaming();
+						if (!streaming) mStartupTime = -1;
+						attachStreams();
+						mReconnections++;
 						mHandler.post(mConnectionMonitor);
 						postMessage(MESSAGE_CONNECTION_RECOVERED);
-					} catch (Exception e) {
+						if (streaming) {
+							mStartupTime = SystemClock.elapsedRealtime()-mConnectTime;
+							Log.i(TAG,"Streams resumed "+mStartupTime+" ms after reconnecting, "+(SystemClock.elapsedRealtime()-mLostTime)+" ms after the connection was lost");
+							postMessage(MESSAGE_STREAMING_STARTED);
+						} else {
+							mHandler.post(mStartupMonitor);
+						}
+					} catch (Throwable t) {
 						abort();
 					}
+				} catch (RuntimeException e) {
+					// The server refused our credentials, trying again won't help
+					Log.e(TAG, "Reconnection refused: "+e.getMessage());
+					postError(ERROR_WRONG_CREDENTIALS, e);
+					abort();
 				} catch (IOException e) {
+					if (SystemClock.elapsedRealtime()-mLostTime > OUTAGE_TIMEOUT && !mOutageStopped) {
+						Log.w(TAG, "Connection lost for too long, the streams no other server receives are stopped");
+						mParameters.session.syncStopUnusedTracks();
+						mOutageStopped = true;
+					}
 					mHandler.postDelayed(mRetryConnection,1000);
 				}
 			}
 		}
 	};
-	
+
+	/**
+	 * Sends the tracks to the server, the ones that are not streaming yet are started. If the video
+	 * track was already streaming, to another server or before the connection was lost, a key frame
+	 * is asked for so that the server does not have to wait for the next one.
+	 */
+	private void attachStreams() throws Throwable {
+		Session session = mParameters.session;
+		boolean streaming = session.getVideoTrack() != null && session.getVideoTrack().isStreaming();
+		if (mParameters.transport == TRANSPORT_TCP) mInterleaver = new Interleaver(mOutputStream);
+		for (int i=0;i<2;i++) {
+			if (session.getTrack(i) == null) continue;
+			if (mParameters.transport == TRANSPORT_TCP) {
+				session.syncAddDestination(i, mInterleaver, 2*i);
+			} else {
+				session.syncAddDestination(i, mServerAddress.getHostAddress(), mServerPorts[i][0], mServerPorts[i][1]);
+			}
+			mAttached[i] = true;
+		}
+		if (streaming) session.getVideoTrack().requestSyncFrame();
+	}
+
+	/**
+	 * Stops sending the tracks to the server, without stopping them, so that they can be sent
+	 * again right away on reconnection. See {@link Session#syncStopUnusedTracks()}.
+	 */
+	private void detachStreams() {
+		long[] sent = getConnectionStatistics();
+		mPacketsSent += sent[0];
+		mOctetsSent += sent[1];
+		for (int i=0;i<2;i++) {
+			if (!mAttached[i]) continue;
+			mAttached[i] = false;
+			MediaStream stream = (MediaStream) mParameters.session.getTrack(i);
+			if (mParameters.transport == TRANSPORT_TCP) {
+				stream.removeDestination(mInterleaver);
+			} else {
+				stream.removeDestination(mServerAddress, mServerPorts[i][0]);
+			}
+		}
+		if (mInterleaver != null) {
+			mInterleaver.close();
+			mInterleaver = null;
+		}
+	}
+
+	/** Returns the number of packets and bytes sent to the server since the last connection. */
+	private long[] getConnectionStatistics() {
+		long[] total = new long[2];
+		Parameters parameters = mParameters;
+		Interleaver interleaver = mInterleaver;
+		if (parameters == null || parameters.session == null) return total;
+		for (int i=0;i<2;i++) {
+			Stream stream = parameters.session.getTrack(i);
+			if (!mAttached[i] || !(stream instanceof MediaStream)) continue;
+			RtpSocket socket = ((MediaStream) stream).getPacketizer().getRtpSocket();
+			long[] sent = parameters.transport == TRANSPORT_TCP ?
+					socket.getDestinationStatistics(interleaver) : socket.getDestinationStatistics(mServerAddress, mServerPorts[i][0]);
+			if (sent != null) {
+				total[0] += sent[0];
+				total[1] += sent[1];
+			}
+		}
+		return total;
+	}
+
+	/** Waits for the first RTP packet of the session to be sent after a connection. */
+	private Runnable mStartupMonitor = new Runnable() {
+		@Override
+		public void run() {
+			if (mState != STATE_STARTED) return;
+			// The tracks may have been streaming to other servers long before, only what this server got counts
+			if (getConnectionStatistics()[0] > 0) {
+				mStartupTime = SystemClock.elapsedRealtime()-mConnectTime;
+				Log.i(TAG,"First packet sent "+mStartupTime+" ms after connecting");
+				postMessage(MESSAGE_STREAMING_STARTED);
+			} else if (SystemClock.elapsedRealtime()-mConnectTime < STARTUP_TIMEOUT) {
+				mHandler.postDelayed(mStartupMonitor, 10);
+			}
+		}
+	};
+
 	final protected static char[] hexArray = {'0','1','2','3','4','5','6','7','8','9','a','b','c','d','e','f'};
 
 	private static String bytesToHex(byte[] bytes) {
@@ -572,6 +910,81 @@ public class RtspClient {
 		});
 	}	
 
+	/**
+	 * Writes the packets of the tracks in the RTSP connection with its own thread, so that a server
+	 * that does not keep up can't slow down the other servers the session is sent to. Packets are
+	 * dropped rather than queued past {@link #MAX_INTERLEAVED_QUEUE} bytes.
+	 */
+	private class Interleaver implements RtpSocket.InterleavedWriter, Runnable {
+
+		private final OutputStream mOutput;
+		private final LinkedList<byte[]> mQueue = new LinkedList<byte[]>();
+		private int mQueued = 0;
+		private boolean mClosed = false;
+
+		Interleaver(OutputStream output) {
+			mOutput = output;
+			new Thread(this, "net.majorkernelpanic.streaming.RtspClient.Interleaver").start();
+		}
+
+		/** Called by the RTP sockets of the tracks, must not block. */
+		@Override
+		public void writeInterleaved(int channel, byte[] packet, int offset, int length) {
+			synchronized (mQueue) {
+				if (mClosed) return;
+				if (mQueued+length+4 > MAX_INTERLEAVED_QUEUE) {
+					mPacketsDropped++;
+					return;
+				}
+				byte[] frame = new byte[length+4];
+				frame[0] = '$';
+				frame[1] = (byte) channel;
+				frame[2] = (byte) (length>>8);
+				frame[3] = (byte) (length&0xFF);
+				System.arraycopy(packet, offset, frame, 4, length);
+				mQueue.add(frame);
+				mQueued += frame.length;
+				mQueue.notify();
+			}
+		}
+
+		void close() {
+			synchronized (mQueue) {
+				mClosed = true;
+				mQueue.clear();
+				mQueued = 0;
+				mQueue.notify();
+			}
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					byte[] frame;
+					boolean last;
+					synchronized (mQueue) {
+						while (mQueue.isEmpty() && !mClosed) mQueue.wait();
+						if (mClosed) return;
+						frame = mQueue.removeFirst();
+						mQueued -= frame.length;
+						last = mQueue.isEmpty();
+					}
+					// RTSP requests may be written at the same time
+					synchronized (mOutput) {
+						mOutput.write(frame);
+						if (last) mOutput.flush();
+					}
+				}
+			} catch (InterruptedException ignore) {
+			} catch (IOException e) {
+				// The connection monitor will notice it
+				Log.e(TAG, "Interleaved packets could not be written: "+e.getMessage());
+				close();
+			}
+		}
+	}
+
 	static class Response {
 
 		// Parses method & uri
@@ -589,29 +1002,25 @@ public class RtspClient {
 		public int status;
 		public HashMap<String,String> headers = new HashMap<String,String>();
 
-		/** Parse the method, URI & headers of a RTSP request */
-		public static Response parseResponse(BufferedReader input) throws IOException, IllegalStateException, SocketException {
+		private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+		/** Parses the status line & headers of a RTSP response held in buffer between begin and end, the body is not included */
+		public static Response parseResponse(byte[] buffer, int begin, int end) throws IllegalStateException {
 			Response response = new Response();
-			String line;
+			String[] lines = new String(buffer, begin, end-begin, ISO_8859_1).split("\r?\n");
 			Matcher matcher;
-			// Parsing request method & URI
-			if ((line = input.readLine())==null) throw new SocketException("Connection lost");
-			matcher = regexStatus.matcher(line);
+			// Parsing the status line
+			matcher = regexStatus.matcher(lines[0]);
 			matcher.find();
 			response.status = Integer.parseInt(matcher.group(1));
 
-			// Parsing headers of the request
-			while ( (line = input.readLine()) != null) {
-				//Log.e(TAG,"l: "+line.length()+", c: "+line);
-				if (line.length()>3) {
-					matcher = rexegHeader.matcher(line);
-					matcher.find();
+			// Parsing headers of the response
+			for (int i=1; i<lines.length; i++) {
+				matcher = rexegHeader.matcher(lines[i]);
+				if (matcher.find()) {
 					response.headers.put(matcher.group(1).toLowerCase(Locale.US),matcher.group(2));
-				} else {
-					break;
 				}
 			}
-			if (line==null) throw new SocketException("Connection lost");
 
 			Log.d(TAG, "Response from server: "+response.status);
 
@@ -0,0 +1,205 @@
+package net.majorkernelpanic.streaming.rtsp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketException;
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+/**
+ * Reads the RTSP connection of an {@link RtspClient}, on which the server may send RTP and RTCP
+ * packets interleaved with its responses (RFC 2326, section 10.12). Interleaved packets are handed
+ * to the listener straight from the buffer the connection is read into, responses are parsed.
+ * The connection is first read synchronously with {@link #readResponse()}. Once {@link #start()}
+ * is called, a thread reads it and queues the responses, so that the packets the server sends
+ * while nobody waits for a response are not left in the socket. Requests of the server are skipped.
+ */
+class RtspDemuxer implements Runnable {
+
+	public final static String TAG = "RtspDemuxer";
+
+	/** A response is not waited for longer than this in ms once the connection is read by the thread. */
+	public final static long RESPONSE_TIMEOUT = 10000;
+
+	private final static Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+	// Queued once the thread stops, so that nobody waits for a response that can't come
+	private final static RtspClient.Response CLOSED = new RtspClient.Response();
+
+	/** Called by the thread reading the connection. */
+	interface OnInterleavedPacketListener {
+		/**
+		 * @param channel The channel of the packet
+		 * @param buffer The buffer holding the packet, it is reused once the call returns
+		 */
+		void onInterleavedPacket(int channel, byte[] buffer, int offset, int length);
+	}
+
+	private final InputStream mInput;
+	private final OnInterleavedPacketListener mListener;
+	// Large enough for the biggest interleaved frame, the data not consumed yet lies between mStart and mEnd
+	private final byte[] mBuffer = new byte[4+0xFFFF];
+	private int mStart = 0, mEnd = 0;
+
+	private final LinkedBlockingQueue<RtspClient.Response> mResponses = new LinkedBlockingQueue<RtspClient.Response>();
+	private Thread mThread = null;
+	private volatile IOException mError = null;
+
+	RtspDemuxer(InputStream input, OnInterleavedPacketListener listener) {
+		mInput = input;
+		mListener = listener;
+	}
+
+	/** Reads the connection with a thread from now on, the responses are then queued. */
+	synchronized void start() {
+		if (mThread == null) {
+			mThread = new Thread(this, TAG);
+			mThread.start();
+		}
+	}
+
+	/** Returns the next response of the server, the interleaved packets that come before it are handed to the listener. */
+	RtspClient.Response readResponse() throws IOException {
+		if (mThread == null) return next();
+		RtspClient.Response response;
+		try {
+			response = mResponses.poll(RESPONSE_TIMEOUT, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			throw new SocketException("Interrupted");
+		}
+		if (response == CLOSED) {
+			mResponses.add(CLOSED);
+			throw mError;
+		}
+		if (response != null) return response;
+		throw new SocketException("No response from the server");
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (!Thread.interrupted()) {
+				mResponses.add(next());
+			}
+		} catch (IOException e) {
+			// The connection has been closed
+			mError = e;
+			Log.d(TAG, "Connection closed: "+e.getMessage());
+		} catch (RuntimeException e) {
+			// Whatever the server sends, it must not take the process down with this thread
+			mError = new IOException("Malformed data from the server: "+e.getMessage());
+			Log.e(TAG, mError.getMessage());
+		}
+		if (mError == null) mError = new SocketException("Interrupted");
+		mResponses.add(CLOSED);
+	}
+
+	private RtspClient.Response next() throws IOException {
+		while (true) {
+			fill(1);
+			if (mBuffer[mStart] == '$') {
+				fill(4);
+				int channel = mBuffer[mStart+1]&0xFF;
+				int length = (mBuffer[mStart+2]&0xFF)<<8 | (mBuffer[mStart+3]&0xFF);
+				fill(4+length);
+				if (mListener != null) mListener.onInterleavedPacket(channel, mBuffer, mStart+4, length);
+				mStart += 4+length;
+				continue;
+			}
+			// The headers of a response end with an empty line
+			int end;
+			while ((end = endOfHeaders()) < 0) {
+				if (mEnd-mStart == mBuffer.length) throw new IOException("Response too long");
+				fill(mEnd-mStart+1);
+			}
+			int length = getContentLength(mStart, end);
+			if (!startsWith(mStart, "RTSP/")) {
+				// A request of the server, like GET_PARAMETER or ANNOUNCE (RFC 2326, section 10), it is ignored
+				Log.d(TAG, "Request from the server ignored: "+firstLine(mStart, end));
+				mStart = end;
+				skip(length);
+				continue;
+			}
+			RtspClient.Response response;
+			try {
+				response = RtspClient.Response.parseResponse(mBuffer, mStart, end);
+			} catch (RuntimeException e) {
+				throw new IOException("Malformed response: "+firstLine(mStart, end));
+			}
+			mStart = end;
+			// The body is skipped
+			skip(length);
+			return response;
+		}
+	}
+
+	/** Returns the value of the Content-Length header found in the headers between two positions, or 0. */
+	private int getContentLength(int start, int end) throws IOException {
+		String headers = new String(mBuffer, start, end-start, ISO_8859_1).toLowerCase(Locale.US);
+		int i = headers.indexOf("\ncontent-length:");
+		if (i < 0) return 0;
+		i += "\ncontent-length:".length();
+		int eol = headers.indexOf('\n', i);
+		try {
+			int length = Integer.parseInt(headers.substring(i, eol < 0 ? headers.length() : eol).trim());
+			if (length < 0) throw new NumberFormatException();
+			return length;
+		} catch (NumberFormatException e) {
+			throw new IOException("Malformed Content-Length");
+		}
+	}
+
+	private boolean startsWith(int start, String prefix) {
+		if (mEnd-start < prefix.length()) return false;
+		for (int i=0; i<prefix.length(); i++) {
+			if (mBuffer[start+i] != prefix.charAt(i)) return false;
+		}
+		return true;
+	}
+
+	private String firstLine(int start, int end) {
+		int i = start;
+		while (i < end && mBuffer[i] != '\r' && mBuffer[i] != '\n') i++;
+		return new String(mBuffer, start, i-start, ISO_8859_1);
+	}
+
+	/** Skips the body of a message. */
+	private void skip(int length) throws IOException {
+		while (length > 0) {
+			fill(1);
+			int n = Math.min(length, mEnd-mStart);
+			mStart += n;
+			length -= n;
+		}
+	}
+
+	/** Returns the position following the empty line that ends the headers of a response, or -1. */
+	private int endOfHeaders() {
+		for (int i=mStart; i<mEnd; i++) {
+			if (mBuffer[i] != '\n') continue;
+			if (i+1 < mEnd && mBuffer[i+1] == '\n') return i+2;
+			if (i+2 < mEnd && mBuffer[i+1] == '\r' && mBuffer[i+2] == '\n') return i+3;
+		}
+		return -1;
+	}
+
+	/** Reads the connection until at least n bytes are available from mStart. */
+	private void fill(int n) throws IOException {
+		if (mEnd-mStart >= n) return;
+		if (mStart+n > mBuffer.length) {
+			System.arraycopy(mBuffer, mStart, mBuffer, 0, mEnd-mStart);
+			mEnd -= mStart;
+			mStart = 0;
+		}
+		while (mEnd-mStart < n) {
+			int len = mInput.read(mBuffer, mEnd, mBuffer.length-mEnd);
+			if (len < 0) throw new SocketException("Connection lost");
+			mEnd += len;
+		}
+	}
+
+}